@@ -1,5 +1,8 @@
 package com.github.adaviding.numerics;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Constants and methods for 32-bit floating point numbers.
  */
@@ -116,12 +119,216 @@ public class F {
     }
     /**
      * Parses a floating point number from a string.  Returns NaN if the parse failed.
+     *
+     * Decimal numbers are parsed by {@link #tryParse(CharSequence, int, int)}, which does not throw.  Only a string that
+     * it rejects and that looks like a hexadecimal number or has a type suffix, such as "0x1p3" or "1.5f", is given to
+     * {@link Float#parseFloat(String)}, so most malformed values do not cost an exception each.
      * @param s The string to be parsed.
      */
     public static float tryParse(String s)
     {
-        try { return Float.parseFloat(s); }
-        catch(Exception x) {}
+        if (s == null)
+            return Float.NaN;
+        float output = tryParse(s, 0, s.length());
+        return Float.isNaN(output) ? parseLiteral(s) : output;
+    }
+    /**
+     * Parses a decimal number from a range of characters without throwing.  The number is an optional sign, digits
+     * with an optional decimal point, and an optional exponent, surrounded by optional whitespace.  The result is
+     * rounded as by {@link Float#parseFloat(String)}.
+     *
+     * Numbers are computed from their first 18 significant digits without allocating.  Those digits bound the number
+     * within a relative error of 10^-17, which decides its rounding unless it lies within about 10^-15 of halfway
+     * between two floats.  Such a number, or one whose decimal exponent is beyond 22 once its digits are aligned, or
+     * whose result is subnormal, is given to {@link Float#parseFloat(String)}, which allocates.
+     * @param s The characters.
+     * @param start The index of the first character.
+     * @param end The index after the last character.
+     * @return The number, or NaN if the range does not hold a decimal number.
+     */
+    public static float tryParse(CharSequence s, int start, int end)
+    {
+        return parseDecimal(s, null, start, end);
+    }
+    /**
+     * Parses a decimal number from a range of bytes, such as a field of a memory-mapped text file, without throwing.
+     * Allocation happens only on the rare path described by {@link #tryParse(CharSequence, int, int)}.
+     * @param b The bytes, which are read with absolute gets.  The position of the buffer is not modified.
+     * @param start The index of the first byte.
+     * @param end The index after the last byte.
+     * @return The number, or NaN if the range does not hold a decimal number.
+     */
+    public static float tryParse(ByteBuffer b, int start, int end)
+    {
+        return parseDecimal(null, b, start, end);
+    }
+
+    /**
+     * The greatest number of significant digits accumulated in a long.
+     */
+    private static final int MaxDigits = 18;
+    /**
+     * The magnitude beyond which the digits of an exponent are ignored, since the number is then 0 or infinite.
+     */
+    private static final int MaxExponent = 100000;
+    /**
+     * The powers of 10 that are exact in double precision.
+     */
+    private static final double[] PowersOfTen = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /**
+     * Computes the float nearest to a decimal number whose first significant digits are known.
+     *
+     * If no digit was dropped and the digits are an exact double, then the digits and the power are exact doubles, so
+     * their product or quotient is rounded once.  Rounding that double to a float is then the correct rounding, unless
+     * the double is halfway between two floats.
+     *
+     * Otherwise the number lies in [digits, digits + 1) * 10^exponent, or is digits * 10^exponent if no digit was
+     * dropped.  Each bound is computed with a relative error below 2^-51, so the interval widened by 2^-50 holds the
+     * number.  Rounding is monotonic, so if both ends of that interval round to the same float, so does the number.
+     * @param digits The significant digits.
+     * @param exponent The power of 10 of the last digit.
+     * @param truncated True if nonzero digits were dropped after the last digit.
+     * @return The magnitude, or NaN if it must be computed by {@link Float#parseFloat(String)}.
+     */
+    private static float decimal(long digits, int exponent, boolean truncated)
+    {
+        if (digits == 0)
+            return 0f;
+        if (exponent < -22 || exponent > 22)
+            return Float.NaN;
+        if (!truncated && digits <= (1L << 53))
+        {
+            double d = scale(digits, exponent);
+            if (d < Float.MIN_NORMAL || d > Float.MAX_VALUE)
+                return Float.NaN;
+            if ((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L)
+                return Float.NaN;
+            return (float)d;
+        }
+        double low = scale(digits, exponent);
+        double high = truncated ? scale(digits + 1, exponent) : low;
+        low -= low * 0x1p-50;
+        high += high * 0x1p-50;
+        if (low < Float.MIN_NORMAL || high > Float.MAX_VALUE)
+            return Float.NaN;
+        float output = (float)low;
+        return output == (float)high ? output : Float.NaN;
+    }
+    private static double scale(long digits, int exponent)
+    {
+        return exponent >= 0 ? digits * PowersOfTen[exponent] : digits / PowersOfTen[-exponent];
+    }
+    /**
+     * Parses a decimal number from the characters of s, or if s is null, from the bytes of b.  Bytes are read as
+     * ISO-8859-1 characters, so a byte that is not ASCII is never whitespace, a digit, or a sign.
+     */
+    private static float parseDecimal(CharSequence s, ByteBuffer b, int start, int end)
+    {
+        while (start < end && at(s, b, start) <= ' ')
+            start++;
+        while (end > start && at(s, b, end - 1) <= ' ')
+            end--;
+        int i = start;
+        boolean negative = false;
+        if (i < end && (at(s, b, i) == '-' || at(s, b, i) == '+'))
+            negative = at(s, b, i++) == '-';
+
+        long digits = 0;
+        int significant = 0, exponent = 0;
+        boolean any = false, truncated = false, point = false;
+        for (; i < end; i++)
+        {
+            char c = at(s, b, i);
+            if (c == '.' && !point)
+            {
+                point = true;
+                continue;
+            }
+            int d = c - '0';
+            if (d < 0 || d > 9)
+                break;
+            any = true;
+            if (significant < MaxDigits && (digits != 0 || d != 0))
+            {
+                digits = 10 * digits + d;
+                significant++;
+                if (point)
+                    exponent--;
+            }
+            else
+            {
+                //  A leading zero, or a digit beyond those that fit in the long.
+                if (digits != 0 && !point)
+                    exponent++;
+                else if (digits == 0 && point)
+                    exponent--;
+                truncated |= d != 0;
+            }
+        }
+        if (!any)
+            return Float.NaN;
+        if (i < end && (at(s, b, i) == 'e' || at(s, b, i) == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (at(s, b, i) == '-' || at(s, b, i) == '+'))
+                negativeExponent = at(s, b, i++) == '-';
+            int e = 0, first = i;
+            for (; i < end; i++)
+            {
+                int d = at(s, b, i) - '0';
+                if (d < 0 || d > 9)
+                    break;
+                if (e < MaxExponent)
+                    e = 10 * e + d;
+            }
+            if (i == first)
+                return Float.NaN;
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end)
+            return Float.NaN;
+
+        float output = decimal(digits, exponent, truncated);
+        if (Float.isNaN(output))
+            output = Float.parseFloat(text(s, b, start, end));
+        else if (negative)
+            output = -output;
+        return output;
+    }
+    private static char at(CharSequence s, ByteBuffer b, int i)
+    {
+        return s != null ? s.charAt(i) : (char)(b.get(i) & 0xFF);
+    }
+    private static String text(CharSequence s, ByteBuffer b, int start, int end)
+    {
+        if (s != null)
+            return s.subSequence(start, end).toString();
+        byte[] bytes = new byte[end - start];
+        for (int j = 0; j < bytes.length; j++)
+            bytes[j] = b.get(start + j);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+    /**
+     * Parses the forms of a Java literal that are not decimal numbers: "NaN", "Infinity", a hexadecimal number, or a
+     * number with a type suffix.  Only the last two are given to {@link Float#parseFloat(String)}.
+     * @return The number, or NaN if the string is none of these.
+     */
+    private static float parseLiteral(String s)
+    {
+        String t = s.trim();
+        int i = t.startsWith("-") || t.startsWith("+") ? 1 : 0;
+        if (t.startsWith("Infinity", i) && t.length() == i + 8)
+            return t.charAt(0) == '-' ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+        char last = t.isEmpty() ? ' ' : t.charAt(t.length() - 1);
+        if (t.startsWith("0x", i) || t.startsWith("0X", i) || last == 'f' || last == 'F' || last == 'd' || last == 'D')
+        {
+            try { return Float.parseFloat(t); }
+            catch(Exception x) {}
+        }
         return Float.NaN;
     }
 }
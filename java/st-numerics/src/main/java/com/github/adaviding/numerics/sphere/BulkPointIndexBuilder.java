@@ -0,0 +1,467 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Builds a {@link PointIndexFile} from more points than fit in memory, by an external merge sort.
+ *
+ * Points are added as a stream, and are buffered until the buffer reaches the size allowed by the memory budget.
+ * Each full buffer is located on the threads of a pool, sorted by cell id, and spilled to a temporary file as a run
+ * of records:
+ * {@literal
+ * 		long  --> the cell id
+ * 		float --> the latitude in degrees
+ * 		float --> the longitude in degrees
+ * 		float --> the unit vector (x,y,z)
+ * 		long  --> the payload
+ * }
+ * {@link #build(Path)} merges the runs into the index file.  A merge reads from as many runs at a time as the budget
+ * allows buffers for, so if there are more runs than that, groups of them are first merged into longer runs.  The
+ * points are written to the columns of the file as they leave the merge, so neither the merge nor the file is held in
+ * memory.
+ *
+ * The memory of an instance is bounded by its budget, plus the directory of the file, which is at most 32 MB.  The
+ * temporary files take 36 bytes per point, and are deleted as they are merged, by {@link #build(Path)}, or by
+ * {@link #close()}.  An instance builds one file and is not thread safe.
+ */
+public final class BulkPointIndexBuilder implements Closeable
+{
+	/**
+	 * The memory budget of a builder constructed without one, in bytes.
+	 */
+	public static final long DefaultMemory = 256L << 20;
+	/**
+	 * The smallest memory budget, in bytes.
+	 */
+	public static final long MinimumMemory = 1L << 20;
+	/**
+	 * The bytes of memory taken by a buffered point: the coordinate and payload as added, and the located point.
+	 */
+	private static final int BytesPerPoint = 52;
+	/**
+	 * The length of a record of a run, in bytes.
+	 */
+	private static final int RecordSize = 36;
+	/**
+	 * The number of records in the buffer through which a run is read or written.
+	 */
+	private static final int RecordsPerBuffer = 8192;
+	/**
+	 * The greatest number of runs merged at a time.
+	 */
+	private static final int MaximumFanIn = 256;
+
+	private final int level;
+	private final Path directory;
+	private final ForkJoinPool pool;
+	private final int runCapacity;
+	private final int fanIn;
+	private float[] lat = new float[1024];
+	private float[] lon = new float[1024];
+	private long[] payloads = new long[1024];
+	private int buffered;
+	private final PointIndex run;
+	/**
+	 * The runs that have not been merged, in the order of the points they hold, and their numbers of points.
+	 */
+	private ArrayList<Path> runs = new ArrayList<Path>();
+	private ArrayList<Long> runSizes = new ArrayList<Long>();
+	/**
+	 * The temporary files that exist, which include the output of a merge in progress.
+	 */
+	private final ArrayList<Path> files = new ArrayList<Path>();
+	private boolean built;
+
+	/**
+	 * Constructs a builder with the default memory budget, which locates points on the threads of the common pool.
+	 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+	 * @param directory The directory of the temporary files.
+	 */
+	public BulkPointIndexBuilder(int level, Path directory) {
+		this(level, directory, DefaultMemory, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Constructs a builder.
+	 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+	 * @param directory The directory of the temporary files.
+	 * @param memory The memory budget in bytes, at least {@link #MinimumMemory}.  It bounds the number of points that
+	 *               are sorted in memory at a time, and the number of runs that are merged at a time.
+	 * @param pool The pool that locates the points, see {@link ParallelLocator}.
+	 */
+	public BulkPointIndexBuilder(int level, Path directory, long memory, ForkJoinPool pool) {
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+		if(memory < MinimumMemory)
+			throw new IllegalArgumentException("The memory budget must be at least " + MinimumMemory + " bytes.");
+		this.level = level;
+		this.directory = directory;
+		this.pool = pool;
+		this.runCapacity = (int)Math.min(Integer.MAX_VALUE - 8, memory / BytesPerPoint);
+		this.fanIn = (int)Math.max(2, Math.min(MaximumFanIn, memory / ((long)RecordsPerBuffer * RecordSize) - 1));
+		this.run = new PointIndex(level, 0);
+	}
+	/**
+	 * Gets the layer at which points are located.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Adds a point.
+	 * @param lat The latitude in degrees.  A point with an empty coordinate is not written to the file.
+	 * @param lon The longitude in degrees.
+	 * @param payload The payload.
+	 * @throws IOException If a run cannot be spilled.
+	 */
+	public void add(float lat, float lon, long payload) throws IOException {
+		this.checkOpen();
+		if(this.buffered == this.lat.length)
+			this.grow();
+		this.lat[this.buffered] = lat;
+		this.lon[this.buffered] = lon;
+		this.payloads[this.buffered] = payload;
+		if(++this.buffered == this.runCapacity)
+			this.spill();
+	}
+	/**
+	 * Adds a range of arrays of points.
+	 * @param lat The latitudes in degrees.  Points with empty coordinates are not written to the file.
+	 * @param lon The longitudes in degrees.
+	 * @param payloads The payloads.
+	 * @param offset The index of the first point.
+	 * @param length The number of points.
+	 * @throws IOException If a run cannot be spilled.
+	 */
+	public void addAll(float[] lat, float[] lon, long[] payloads, int offset, int length) throws IOException {
+		if(offset < 0 || length < 0 || offset + length > lat.length || offset + length > lon.length
+				|| offset + length > payloads.length)
+			throw new IndexOutOfBoundsException("The range exceeds the bounds of the arrays.");
+		this.checkOpen();
+		while(length > 0) {
+			if(this.buffered == this.lat.length)
+				this.grow();
+			int n = Math.min(length, this.lat.length - this.buffered);
+			System.arraycopy(lat, offset, this.lat, this.buffered, n);
+			System.arraycopy(lon, offset, this.lon, this.buffered, n);
+			System.arraycopy(payloads, offset, this.payloads, this.buffered, n);
+			this.buffered += n;
+			offset += n;
+			length -= n;
+			if(this.buffered == this.runCapacity)
+				this.spill();
+		}
+	}
+	/**
+	 * Sorts every point added, and writes the index file.  The builder cannot be used afterwards.
+	 * @param path The path of the file, which is replaced if it exists.
+	 * @return The number of points in the file.
+	 * @throws IOException If a file cannot be read or written.
+	 */
+	public long build(Path path) throws IOException {
+		this.checkOpen();
+		this.built = true;
+		try {
+			this.locate();
+			if(this.runs.isEmpty()) {
+				//	Every point fits in memory, so they are written without a run.
+				PointIndex run = this.run;
+				PointIndexFile.Writer writer = new PointIndexFile.Writer(path, this.level, run.size);
+				try {
+					for(int i=0; i<run.size; i++)
+						writer.append(run.ids[i], run.lats[i], run.lons[i], run.xs[i], run.ys[i], run.zs[i], run.payloads[i]);
+					writer.finish();
+				} finally {
+					writer.close();
+				}
+				return run.size;
+			}
+			if(this.run.size > 0)
+				this.write(this.run);
+			this.release();
+
+			//	Each pass merges consecutive groups of runs, until one merge can read every run.
+			while(this.runs.size() > this.fanIn) {
+				ArrayList<Path> runs = new ArrayList<Path>();
+				ArrayList<Long> runSizes = new ArrayList<Long>();
+				for(int start=0; start<this.runs.size(); start+=this.fanIn) {
+					int end = Math.min(this.runs.size(), start + this.fanIn);
+					if(end - start == 1) {
+						runs.add(this.runs.get(start));
+						runSizes.add(this.runSizes.get(start));
+						continue;
+					}
+					Path merged = this.createRun();
+					runs.add(merged);
+					runSizes.add(this.merge(start, end, new RunWriter(merged)));
+				}
+				this.runs = runs;
+				this.runSizes = runSizes;
+			}
+			long size = 0;
+			for(long n : this.runSizes)
+				size += n;
+			this.merge(0, this.runs.size(), new IndexWriter(new PointIndexFile.Writer(path, this.level, size)));
+			return size;
+		} finally {
+			this.close();
+		}
+	}
+	/**
+	 * Deletes the temporary files.  The builder cannot be used afterwards.
+	 * @throws IOException If a file cannot be deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.built = true;
+		this.release();
+		for(Path file : this.files)
+			Files.deleteIfExists(file);
+		this.files.clear();
+		this.runs.clear();
+		this.runSizes.clear();
+	}
+
+	private void checkOpen() {
+		if(this.built)
+			throw new IllegalStateException("The builder has already built its file, or has been closed.");
+	}
+	private void grow() {
+		int n = (int)Math.min(this.runCapacity, 2L * this.lat.length);
+		this.lat = Arrays.copyOf(this.lat, n);
+		this.lon = Arrays.copyOf(this.lon, n);
+		this.payloads = Arrays.copyOf(this.payloads, n);
+	}
+	private void release() {
+		this.lat = null;
+		this.lon = null;
+		this.payloads = null;
+		this.run.clear();
+		this.run.trimToSize();
+	}
+	/**
+	 * Locates and sorts the buffered points.
+	 */
+	private void locate() {
+		this.run.clear();
+		this.run.addAll(this.pool, this.lat, this.lon, this.payloads, 0, this.buffered);
+		this.buffered = 0;
+		this.run.sort();
+	}
+	private void spill() throws IOException {
+		this.locate();
+		if(this.run.size > 0)
+			this.write(this.run);
+	}
+	/**
+	 * Writes sorted points to a new run.
+	 */
+	private void write(PointIndex points) throws IOException {
+		Path path = this.createRun();
+		this.runs.add(path);
+		this.runSizes.add((long)points.size);
+		RunWriter output = new RunWriter(path);
+		try {
+			for(int i=0; i<points.size; i++)
+				output.append(points.ids[i], points.lats[i], points.lons[i], points.xs[i], points.ys[i], points.zs[i], points.payloads[i]);
+			output.finish();
+		} finally {
+			output.close();
+		}
+	}
+	private Path createRun() throws IOException {
+		Path output = Files.createTempFile(this.directory, "points-", ".run");
+		this.files.add(output);
+		return output;
+	}
+	/**
+	 * Merges a range of the runs, and deletes them.
+	 * @param start The index of the first run.
+	 * @param end The index after the last run.
+	 * @param output Receives the merged points.  It is finished and closed.
+	 * @return The number of points merged.
+	 */
+	private long merge(int start, int end, Sink output) throws IOException {
+		int count = end - start;
+		RunReader[] readers = new RunReader[count];
+		try {
+			for(int r=0; r<count; r++)
+				readers[r] = new RunReader(this.runs.get(start + r), this.runSizes.get(start + r));
+
+			//	A min-heap of the readers, by the cell id of their current record and then by the order of the runs.
+			int[] heap = new int[count];
+			int n = 0;
+			for(int r=0; r<count; r++)
+				if(readers[r].next())
+					siftUp(heap, n++, r, readers);
+			long merged = 0;
+			while(n > 0) {
+				RunReader top = readers[heap[0]];
+				output.append(top.id, top.lat, top.lon, top.x, top.y, top.z, top.payload);
+				merged++;
+				if(!top.next())
+					heap[0] = heap[--n];
+				siftDown(heap, n, readers);
+			}
+			output.finish();
+			return merged;
+		} finally {
+			output.close();
+			for(int r=0; r<count; r++)
+				if(readers[r] != null)
+					readers[r].close();
+			for(int r=start; r<end; r++) {
+				Path run = this.runs.get(r);
+				Files.deleteIfExists(run);
+				this.files.remove(run);
+			}
+		}
+	}
+	private static boolean less(RunReader[] readers, int a, int b) {
+		long x = readers[a].id, y = readers[b].id;
+		return x < y || x == y && a < b;
+	}
+	private static void siftUp(int[] heap, int i, int reader, RunReader[] readers) {
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(!less(readers, reader, heap[parent]))
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = reader;
+	}
+	private static void siftDown(int[] heap, int n, RunReader[] readers) {
+		if(n == 0)
+			return;
+		int reader = heap[0], i = 0;
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= n)
+				break;
+			if(child + 1 < n && less(readers, heap[child + 1], heap[child]))
+				child++;
+			if(!less(readers, heap[child], reader))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = reader;
+	}
+
+	/**
+	 * A destination of merged points.
+	 */
+	private static abstract class Sink
+	{
+		abstract void append(long id, float lat, float lon, float x, float y, float z, long payload) throws IOException;
+		abstract void finish() throws IOException;
+		abstract void close() throws IOException;
+	}
+
+	private static final class IndexWriter extends Sink
+	{
+		private final PointIndexFile.Writer writer;
+
+		IndexWriter(PointIndexFile.Writer writer) {
+			this.writer = writer;
+		}
+		@Override
+		void append(long id, float lat, float lon, float x, float y, float z, long payload) throws IOException {
+			this.writer.append(id, lat, lon, x, y, z, payload);
+		}
+		@Override
+		void finish() throws IOException {
+			this.writer.finish();
+		}
+		@Override
+		void close() throws IOException {
+			this.writer.close();
+		}
+	}
+
+	private static final class RunWriter extends Sink
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(RecordsPerBuffer * RecordSize).order(ByteOrder.nativeOrder());
+
+		RunWriter(Path path) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		@Override
+		void append(long id, float lat, float lon, float x, float y, float z, long payload) throws IOException {
+			if(!this.buffer.hasRemaining())
+				this.flush();
+			this.buffer.putLong(id).putFloat(lat).putFloat(lon).putFloat(x).putFloat(y).putFloat(z).putLong(payload);
+		}
+		@Override
+		void finish() throws IOException {
+			this.flush();
+		}
+		@Override
+		void close() throws IOException {
+			this.channel.close();
+		}
+		private void flush() throws IOException {
+			this.buffer.flip();
+			while(this.buffer.hasRemaining())
+				this.channel.write(this.buffer);
+			this.buffer.clear();
+		}
+	}
+
+	private static final class RunReader
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(RecordsPerBuffer * RecordSize).order(ByteOrder.nativeOrder());
+		private long remaining;
+		long id;
+		float lat, lon, x, y, z;
+		long payload;
+
+		RunReader(Path path, long size) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			this.remaining = size;
+			this.buffer.limit(0);
+		}
+		/**
+		 * Reads the next record.
+		 * @return False if the run has no more records.
+		 */
+		boolean next() throws IOException {
+			if(this.remaining == 0)
+				return false;
+			ByteBuffer b = this.buffer;
+			if(!b.hasRemaining()) {
+				b.clear();
+				b.limit((int)Math.min(b.capacity(), this.remaining * RecordSize));
+				while(b.hasRemaining())
+					if(this.channel.read(b) < 0)
+						throw new IOException("A run ended before its last record.");
+				b.flip();
+			}
+			this.id = b.getLong();
+			this.lat = b.getFloat();
+			this.lon = b.getFloat();
+			this.x = b.getFloat();
+			this.y = b.getFloat();
+			this.z = b.getFloat();
+			this.payload = b.getLong();
+			this.remaining--;
+			return true;
+		}
+		void close() throws IOException {
+			this.channel.close();
+		}
+	}
+}
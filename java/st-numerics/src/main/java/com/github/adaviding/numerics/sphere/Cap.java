@@ -46,7 +46,7 @@ public class Cap
             }
             else
             {
-                float dist = (float)LatLon.distRadians(this.position, p);
+                float dist = (float)(D.DegreesPerRadian * LatLon.distRadians(this.position, p));
                 if (Float.isNaN(this.domeRadius))
                     this.domeRadius = dist;
                 else if(dist > this.domeRadius)
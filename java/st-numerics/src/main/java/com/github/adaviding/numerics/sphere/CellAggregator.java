@@ -0,0 +1,210 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Aggregates streams of values at coordinates into {@link CellStatistics} per subtriangle of one layer.
+ *
+ * Each record (lat, lon, value) is located at the layer of the aggregator, and its value is accumulated into one of
+ * a fixed number of partial tables, chosen by the id of the calling thread.  Each partial table is guarded by its own
+ * lock, and there are at least twice as many partial tables as processors, so threads rarely wait for each other.
+ * Arrays of records are split into tasks of a {@link ForkJoinPool}, and each task locates a block of records with
+ * {@link ParallelLocator} before accumulating the whole block under one lock.
+ *
+ * {@link #result()} merges the partial tables, and {@link #drain()} merges them and starts new ones, so a streaming
+ * pipeline can emit its aggregates periodically without holding every cell it has ever seen.  The partial tables
+ * belong to the aggregator, not to the threads, so they are released with it.  Likewise each task allocates the cell
+ * ids of its block, rather than keeping a buffer per thread.
+ *
+ * Records with an empty coordinate, or whose value is NaN, are ignored.  Every method may be called from any number
+ * of threads at once.
+ */
+public final class CellAggregator
+{
+	/**
+	 * The number of records located and accumulated by one task.
+	 */
+	private static final int BlockSize = 1 << 14;
+	/**
+	 * The multiplier of Fibonacci hashing, which spreads consecutive thread ids over the partial tables.
+	 */
+	private static final long Golden = 0x9E3779B97F4A7C15L;
+
+	private final int level;
+	/**
+	 * The locks of the partial tables.
+	 */
+	private final Object[] locks;
+	/**
+	 * The partial tables, each guarded by the lock of the same index.
+	 */
+	private final CellStatistics[] partials;
+	/**
+	 * 64 minus the base-2 logarithm of the number of partial tables.
+	 */
+	private final int shift;
+
+	/**
+	 * Constructs an aggregator.
+	 * @param level The layer at which records are located, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public CellAggregator(int level) {
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+		this.level = level;
+		int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())) << 2;
+		this.locks = new Object[count];
+		this.partials = new CellStatistics[count];
+		for(int i=0; i<count; i++) {
+			this.locks[i] = new Object();
+			this.partials[i] = new CellStatistics(level);
+		}
+		this.shift = 64 - Integer.numberOfTrailingZeros(count);
+	}
+	/**
+	 * Gets the layer at which records are located.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Adds a record to the partial table of the calling thread.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param value The value.
+	 */
+	public void add(float lat, float lon, double value) {
+		if(Double.isNaN(value))
+			return;
+		long packed = Tessellation.locateProjected(lat, lon, this.level);
+		if(packed == 0L)
+			return;
+		int p = this.partial();
+		synchronized(this.locks[p]) {
+			this.partials[p].accumulate(CellId.fromPacked64(packed), value);
+		}
+	}
+	/**
+	 * Adds arrays of records on the threads of the common pool.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.  The length must equal the length of lat.
+	 * @param values The values.  The length must equal the length of lat.
+	 */
+	public void addAll(float[] lat, float[] lon, double[] values) {
+		this.addAll(ForkJoinPool.commonPool(), lat, lon, values, 0, lat.length);
+	}
+	/**
+	 * Adds a range of arrays of records, each block to the partial table of the thread that locates it.
+	 * @param pool The pool that executes the tasks.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.
+	 * @param values The values.
+	 * @param offset The index of the first record.
+	 * @param length The number of records.
+	 */
+	public void addAll(ForkJoinPool pool, float[] lat, float[] lon, double[] values, int offset, int length) {
+		if(offset < 0 || length < 0 || offset + length > lat.length || offset + length > lon.length
+				|| offset + length > values.length)
+			throw new IndexOutOfBoundsException("The range exceeds the bounds of the arrays.");
+		AggregateTask task = new AggregateTask(this, lat, lon, values, offset, length);
+		if(length <= BlockSize)
+			task.compute();
+		else
+			pool.invoke(task);
+	}
+	/**
+	 * Merges the partial tables.  The partial tables are not modified, so a later result includes the records of this
+	 * one.  Records added while the result is computed may or may not be included.
+	 * @return A new table of the aggregates of the records added so far.
+	 */
+	public CellStatistics result() {
+		CellStatistics output = new CellStatistics(this.level);
+		for(int p=0; p<this.partials.length; p++) {
+			synchronized(this.locks[p]) {
+				output.merge(this.partials[p]);
+			}
+		}
+		return output;
+	}
+	/**
+	 * Merges the partial tables and replaces them with empty ones, so the aggregator holds no cells afterwards.  Each
+	 * record is included in exactly one drained table, even if records are added while the tables are drained.
+	 * @return A new table of the aggregates of the records added since the last drain.
+	 */
+	public CellStatistics drain() {
+		CellStatistics[] taken = new CellStatistics[this.partials.length];
+		for(int p=0; p<this.partials.length; p++) {
+			synchronized(this.locks[p]) {
+				taken[p] = this.partials[p];
+				this.partials[p] = new CellStatistics(this.level);
+			}
+		}
+		//	The largest table is the output, so the fewest cells are inserted.
+		int largest = 0;
+		for(int p=1; p<taken.length; p++)
+			if(taken[p].size() > taken[largest].size())
+				largest = p;
+		for(int p=0; p<taken.length; p++)
+			if(p != largest)
+				taken[largest].merge(taken[p]);
+		return taken[largest];
+	}
+
+	/**
+	 * Gets the index of the partial table of the calling thread.
+	 */
+	private int partial() {
+		return (int)((Thread.currentThread().getId() * Golden) >>> this.shift);
+	}
+	/**
+	 * Locates a block of records, and accumulates it into the partial table of the calling thread.
+	 */
+	private void accumulate(float[] lat, float[] lon, double[] values, int offset, int length) {
+		long[] ids = new long[length];
+		ParallelLocator.locate(null, lat, lon, offset, length, this.level, ids, 0);
+		int p = this.partial();
+		synchronized(this.locks[p]) {
+			CellStatistics table = this.partials[p];
+			for(int i=0; i<length; i++) {
+				double value = values[offset + i];
+				if(ids[i] != 0L && !Double.isNaN(value))
+					table.accumulate(CellId.fromPacked64(ids[i]), value);
+			}
+		}
+	}
+
+	private static final class AggregateTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final CellAggregator aggregator;
+		private final float[] lat;
+		private final float[] lon;
+		private final double[] values;
+		private final int offset;
+		private final int length;
+
+		AggregateTask(CellAggregator aggregator, float[] lat, float[] lon, double[] values, int offset, int length) {
+			this.aggregator = aggregator;
+			this.lat = lat;
+			this.lon = lon;
+			this.values = values;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		protected void compute() {
+			if(length <= BlockSize) {
+				aggregator.accumulate(lat, lon, values, offset, length);
+				return;
+			}
+			int half = ((length >>> 1) + BlockSize - 1) / BlockSize * BlockSize;
+			invokeAll(
+					new AggregateTask(aggregator, lat, lon, values, offset, half),
+					new AggregateTask(aggregator, lat, lon, values, offset + half, length - half));
+		}
+	}
+}
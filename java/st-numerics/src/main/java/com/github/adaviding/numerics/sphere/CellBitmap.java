@@ -0,0 +1,575 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of the subtriangles of one layer, such as the cells of a layer that hold data.
+ *
+ * Each cell of the layer is numbered by its index in cell id order, which is its cell id shifted right past the
+ * sentinel:  index = id >>> (62 - 2L).  A layer L holds 2^(2L+1) cells, so layer 13 holds about 134 million.  The
+ * indices are split into a high 16-bit key and a low 16-bit value, in the manner of a roaring bitmap.  The values that
+ * share a key are held in a container, which is either a sorted array of at most {@link #ArrayLimit} values, or a
+ * bitmap of 2^16 bits when the container is denser than that.  Empty containers are not stored.  A set of scattered
+ * cells therefore takes 2 bytes per cell, and a dense region takes 1 bit per cell.
+ *
+ * The binary operations take time linear in the number of containers, and the bitmap containers are combined a word
+ * at a time.  Instances are not thread safe.
+ */
+public class CellBitmap
+{
+	/**
+	 * The greatest layer.  Its 2^29 cell indices, and the exclusive end of any range of them, fit in an int.
+	 */
+	public static final int MaxLevel = 14;
+	/**
+	 * The greatest number of values in an array container.  A bitmap container takes the same 8 KB as an array of this
+	 * length.
+	 */
+	static final int ArrayLimit = 4096;
+	/**
+	 * The number of words in a bitmap container.
+	 */
+	private static final int BitmapWords = 1024;
+
+	/**
+	 * The layer of the cells.
+	 */
+	public final int level;
+	/**
+	 * The number of containers.
+	 */
+	private int size = 0;
+	/**
+	 * The high 16 bits of the indices held by each container, in ascending order.
+	 */
+	private char[] keys = new char[4];
+	/**
+	 * The number of values in each container.
+	 */
+	private int[] cardinalities = new int[4];
+	/**
+	 * The sorted low 16 bits of the indices held by each array container, or null for a bitmap container.
+	 */
+	private char[][] arrays = new char[4][];
+	/**
+	 * The bits of each bitmap container, or null for an array container.
+	 */
+	private long[][] bitmaps = new long[4][];
+
+	/**
+	 * Constructs an empty set.
+	 * @param level The layer of the cells, in the range [1,{@link #MaxLevel}].
+	 */
+	public CellBitmap(int level) {
+		if(level < 1 || level > MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + MaxLevel + "].");
+		this.level = level;
+	}
+	/**
+	 * Gets the index of a cell within the layer.
+	 * @param id The cell id, see {@link CellId}.  The layer must be at least {@link #level}, and a deeper cell is
+	 *           replaced by its ancestor at the layer.
+	 * @return The index, in the range [0,2^(2L+1)).
+	 */
+	public int index(long id) {
+		if(CellId.level(id) < this.level)
+			throw new IllegalArgumentException("The cell is coarser than the layer of the bitmap.");
+		return (int)(id >>> (62 - 2*this.level));
+	}
+	/**
+	 * Gets the cell at an index within the layer.
+	 * @param index The index, in the range [0,2^(2L+1)).
+	 * @return The cell id, see {@link CellId}.
+	 */
+	public long cellId(int index) {
+		return ((long)index << (62 - 2*this.level)) | CellId.lsbForLevel(this.level);
+	}
+	/**
+	 * Adds a cell.  A cell deeper than the layer adds its ancestor, and a coarser cell adds all of its descendants at
+	 * the layer.
+	 * @param id The cell id, see {@link CellId}.
+	 */
+	public void add(long id) {
+		if(CellId.level(id) >= this.level) {
+			this.addIndex(this.index(id));
+		} else {
+			int shift = 62 - 2*this.level;
+			this.addRange((int)(CellId.rangeMin(id) >>> shift), (int)(CellId.rangeMax(id) >>> shift) + 1);
+		}
+	}
+	/**
+	 * Adds the cells of a union, see {@link #add(long)}.
+	 * @param union The union.
+	 */
+	public void add(CellUnion union) {
+		for(int i=0; i<union.size(); i++)
+			this.add(union.cellId(i));
+	}
+	/**
+	 * Adds a cell by its index.
+	 * @param index The index, in the range [0,2^(2L+1)).
+	 */
+	public void addIndex(int index) {
+		char key = (char)(index >>> 16), low = (char)index;
+		int c = this.findOrInsert(key);
+		long[] bits = this.bitmaps[c];
+		if(bits != null) {
+			long mask = 1L << low;
+			if((bits[low >>> 6] & mask) == 0L) {
+				bits[low >>> 6] |= mask;
+				this.cardinalities[c]++;
+			}
+			return;
+		}
+		char[] values = this.arrays[c];
+		int n = this.cardinalities[c];
+		int i = Arrays.binarySearch(values, 0, n, low);
+		if(i >= 0)
+			return;
+		i = -i - 1;
+		if(n == ArrayLimit) {
+			this.bitmaps[c] = toBitmap(values, n);
+			this.arrays[c] = null;
+			this.bitmaps[c][low >>> 6] |= 1L << low;
+		} else {
+			if(n == values.length)
+				this.arrays[c] = values = Arrays.copyOf(values, Math.min(2 * n, ArrayLimit));
+			System.arraycopy(values, i, values, i + 1, n - i);
+			values[i] = low;
+		}
+		this.cardinalities[c] = n + 1;
+	}
+	/**
+	 * Adds a range of cells by their indices.
+	 * @param from The first index, inclusive.
+	 * @param to The last index, exclusive.
+	 */
+	public void addRange(int from, int to) {
+		while(from < to) {
+			char key = (char)(from >>> 16);
+			int end = Math.min(to, ((from >>> 16) + 1) << 16);
+			int c = this.findOrInsert(key);
+			long[] bits = this.bitmaps[c];
+			if(bits == null)
+				bits = toBitmap(this.arrays[c], this.cardinalities[c]);
+			setBits(bits, from & 0xFFFF, ((end - 1) & 0xFFFF) + 1);
+			this.store(c, bits, cardinality(bits));
+			from = end;
+		}
+	}
+	/**
+	 * Determines whether all the cells of the layer within a cell are in the set.
+	 * @param id The cell id, see {@link CellId}.  A cell deeper than the layer is tested by its ancestor.
+	 * @return True if the cell, or every descendant of it at the layer, is in the set.
+	 */
+	public boolean contains(long id) {
+		if(CellId.level(id) >= this.level)
+			return this.containsIndex(this.index(id));
+		int shift = 62 - 2*this.level;
+		long from = CellId.rangeMin(id) >>> shift, to = (CellId.rangeMax(id) >>> shift) + 1;
+		return this.countRange((int)from, (int)to) == to - from;
+	}
+	/**
+	 * Determines whether any of the cells of the layer within a cell are in the set.
+	 * @param id The cell id, see {@link CellId}.  A cell deeper than the layer is tested by its ancestor.
+	 * @return True if the cell, or any descendant of it at the layer, is in the set.
+	 */
+	public boolean intersects(long id) {
+		if(CellId.level(id) >= this.level)
+			return this.containsIndex(this.index(id));
+		int shift = 62 - 2*this.level;
+		int from = (int)(CellId.rangeMin(id) >>> shift);
+		int next = this.nextSetIndex(from);
+		return next >= 0 && next <= (int)(CellId.rangeMax(id) >>> shift);
+	}
+	/**
+	 * Determines whether a cell is in the set.
+	 * @param index The index of the cell, in the range [0,2^(2L+1)).
+	 * @return True if the cell is in the set, false otherwise.
+	 */
+	public boolean containsIndex(int index) {
+		int c = this.find((char)(index >>> 16));
+		if(c < 0)
+			return false;
+		char low = (char)index;
+		long[] bits = this.bitmaps[c];
+		if(bits != null)
+			return (bits[low >>> 6] & (1L << low)) != 0L;
+		return Arrays.binarySearch(this.arrays[c], 0, this.cardinalities[c], low) >= 0;
+	}
+	/**
+	 * Finds the next cell in the set.
+	 * @param from The index at which to start, inclusive.
+	 * @return The least index of a cell in the set that is at least from, or -1 if there is none.
+	 */
+	public int nextSetIndex(int from) {
+		if(from < 0)
+			from = 0;
+		int c = this.find((char)(from >>> 16));
+		if(c < 0) {
+			c = -c - 1;
+		} else {
+			int low = this.nextInContainer(c, from & 0xFFFF);
+			if(low >= 0)
+				return (from & 0xFFFF0000) | low;
+			c++;
+		}
+		if(c >= this.size)
+			return -1;
+		return (this.keys[c] << 16) | this.nextInContainer(c, 0);
+	}
+	/**
+	 * Gets the number of cells in the set.
+	 * @return The cardinality.
+	 */
+	public long cardinality() {
+		long output = 0L;
+		for(int c=0; c<this.size; c++)
+			output += this.cardinalities[c];
+		return output;
+	}
+	/**
+	 * Determines whether the set is empty.
+	 * @return True if the set holds no cells, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+	/**
+	 * Computes the intersection of two sets.
+	 * @param other The other set, of the same layer.
+	 * @return A new set holding the cells that are in both sets.
+	 */
+	public CellBitmap and(CellBitmap other) {
+		this.checkLevel(other);
+		CellBitmap output = new CellBitmap(this.level);
+		int i = 0, j = 0;
+		while(i < this.size && j < other.size) {
+			if(this.keys[i] < other.keys[j]) {
+				i++;
+			} else if(this.keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				output.appendAnd(this.keys[i], this, i, other, j, false);
+				i++;
+				j++;
+			}
+		}
+		return output;
+	}
+	/**
+	 * Computes the union of two sets.
+	 * @param other The other set, of the same layer.
+	 * @return A new set holding the cells that are in either set.
+	 */
+	public CellBitmap or(CellBitmap other) {
+		this.checkLevel(other);
+		CellBitmap output = new CellBitmap(this.level);
+		int i = 0, j = 0;
+		while(i < this.size || j < other.size) {
+			if(j == other.size || (i < this.size && this.keys[i] < other.keys[j])) {
+				output.appendCopy(this, i++);
+			} else if(i == this.size || this.keys[i] > other.keys[j]) {
+				output.appendCopy(other, j++);
+			} else {
+				output.appendOr(this.keys[i], this, i, other, j);
+				i++;
+				j++;
+			}
+		}
+		return output;
+	}
+	/**
+	 * Computes the difference of two sets.
+	 * @param other The other set, of the same layer.
+	 * @return A new set holding the cells that are in this set but not in the other.
+	 */
+	public CellBitmap andNot(CellBitmap other) {
+		this.checkLevel(other);
+		CellBitmap output = new CellBitmap(this.level);
+		int i = 0, j = 0;
+		while(i < this.size) {
+			while(j < other.size && other.keys[j] < this.keys[i])
+				j++;
+			if(j < other.size && other.keys[j] == this.keys[i])
+				output.appendAnd(this.keys[i], this, i, other, j, true);
+			else
+				output.appendCopy(this, i);
+			i++;
+		}
+		return output;
+	}
+
+	/**
+	 * Appends the intersection, or the difference, of container i of a and container j of b.
+	 */
+	private void appendAnd(char key, CellBitmap a, int i, CellBitmap b, int j, boolean not) {
+		long[] ab = a.bitmaps[i], bb = b.bitmaps[j];
+		if(ab != null && (bb != null || not)) {
+			long[] bits = ab.clone();
+			if(bb != null) {
+				for(int w=0; w<BitmapWords; w++)
+					bits[w] = not ? bits[w] & ~bb[w] : bits[w] & bb[w];
+			} else {
+				char[] values = b.arrays[j];
+				for(int k=0; k<b.cardinalities[j]; k++)
+					bits[values[k] >>> 6] &= ~(1L << values[k]);
+			}
+			this.append(key, bits, cardinality(bits));
+			return;
+		}
+		//	The result is no larger than the array of a, or than the array of b when a is a bitmap.
+		char[] values = ab == null ? a.arrays[i] : b.arrays[j];
+		int n = ab == null ? a.cardinalities[i] : b.cardinalities[j];
+		char[] output = new char[n];
+		int count = 0;
+		if(ab != null) {
+			for(int k=0; k<n; k++)
+				if((ab[values[k] >>> 6] & (1L << values[k])) != 0L)
+					output[count++] = values[k];
+		} else if(bb != null) {
+			for(int k=0; k<n; k++)
+				if(((bb[values[k] >>> 6] & (1L << values[k])) != 0L) != not)
+					output[count++] = values[k];
+		} else {
+			char[] other = b.arrays[j];
+			int m = b.cardinalities[j];
+			int p = 0;
+			for(int k=0; k<n; k++) {
+				while(p < m && other[p] < values[k])
+					p++;
+				if((p < m && other[p] == values[k]) != not)
+					output[count++] = values[k];
+			}
+		}
+		if(count > 0) {
+			this.grow();
+			this.keys[this.size] = key;
+			this.arrays[this.size] = output;
+			this.cardinalities[this.size] = count;
+			this.size++;
+		}
+	}
+	/**
+	 * Appends the union of container i of a and container j of b.
+	 */
+	private void appendOr(char key, CellBitmap a, int i, CellBitmap b, int j) {
+		long[] ab = a.bitmaps[i], bb = b.bitmaps[j];
+		int n = a.cardinalities[i], m = b.cardinalities[j];
+		if(ab == null && bb == null && n + m <= ArrayLimit) {
+			char[] x = a.arrays[i], y = b.arrays[j];
+			char[] output = new char[n + m];
+			int p = 0, q = 0, count = 0;
+			while(p < n && q < m) {
+				char v = x[p] <= y[q] ? x[p] : y[q];
+				if(x[p] == v)
+					p++;
+				if(y[q] == v)
+					q++;
+				output[count++] = v;
+			}
+			while(p < n)
+				output[count++] = x[p++];
+			while(q < m)
+				output[count++] = y[q++];
+			this.grow();
+			this.keys[this.size] = key;
+			this.arrays[this.size] = output;
+			this.cardinalities[this.size] = count;
+			this.size++;
+			return;
+		}
+		long[] bits = ab != null ? ab.clone() : toBitmap(a.arrays[i], n);
+		if(bb != null) {
+			for(int w=0; w<BitmapWords; w++)
+				bits[w] |= bb[w];
+		} else {
+			char[] values = b.arrays[j];
+			for(int k=0; k<m; k++)
+				bits[values[k] >>> 6] |= 1L << values[k];
+		}
+		this.append(key, bits, cardinality(bits));
+	}
+	/**
+	 * Appends a copy of container i of a.
+	 */
+	private void appendCopy(CellBitmap a, int i) {
+		this.grow();
+		this.keys[this.size] = a.keys[i];
+		this.cardinalities[this.size] = a.cardinalities[i];
+		this.arrays[this.size] = a.arrays[i] == null ? null : Arrays.copyOf(a.arrays[i], a.cardinalities[i]);
+		this.bitmaps[this.size] = a.bitmaps[i] == null ? null : a.bitmaps[i].clone();
+		this.size++;
+	}
+	/**
+	 * Appends a container given as a bitmap, which is converted to an array if it is sparse, or dropped if it is empty.
+	 */
+	private void append(char key, long[] bits, int cardinality) {
+		if(cardinality == 0)
+			return;
+		this.grow();
+		this.keys[this.size] = key;
+		this.size++;
+		this.store(this.size - 1, bits, cardinality);
+	}
+	/**
+	 * Stores the bits of container c, as an array if it is sparse.
+	 */
+	private void store(int c, long[] bits, int cardinality) {
+		this.cardinalities[c] = cardinality;
+		if(cardinality > ArrayLimit) {
+			this.bitmaps[c] = bits;
+			this.arrays[c] = null;
+		} else {
+			this.arrays[c] = toArray(bits, cardinality);
+			this.bitmaps[c] = null;
+		}
+	}
+	/**
+	 * Counts the cells in a range of indices.
+	 */
+	private long countRange(int from, int to) {
+		long output = 0L;
+		while(from < to) {
+			int end = Math.min(to, ((from >>> 16) + 1) << 16);
+			int c = this.find((char)(from >>> 16));
+			if(c >= 0) {
+				int lo = from & 0xFFFF, hi = ((end - 1) & 0xFFFF) + 1;
+				long[] bits = this.bitmaps[c];
+				if(bits != null) {
+					output += countBits(bits, lo, hi);
+				} else {
+					char[] values = this.arrays[c];
+					int n = this.cardinalities[c];
+					int a = Arrays.binarySearch(values, 0, n, (char)lo);
+					int b = hi > 0xFFFF ? n : Arrays.binarySearch(values, 0, n, (char)hi);
+					output += (b < 0 ? -b - 1 : b) - (a < 0 ? -a - 1 : a);
+				}
+			}
+			from = end;
+		}
+		return output;
+	}
+	/**
+	 * Finds the least value in container c that is at least low.
+	 * @return The value, or -1 if there is none.
+	 */
+	private int nextInContainer(int c, int low) {
+		long[] bits = this.bitmaps[c];
+		if(bits != null) {
+			int w = low >>> 6;
+			long word = bits[w] & (-1L << low);
+			while(true) {
+				if(word != 0L)
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				if(++w == BitmapWords)
+					return -1;
+				word = bits[w];
+			}
+		}
+		char[] values = this.arrays[c];
+		int n = this.cardinalities[c];
+		int i = Arrays.binarySearch(values, 0, n, (char)low);
+		if(i < 0)
+			i = -i - 1;
+		return i < n ? values[i] : -1;
+	}
+	/**
+	 * Finds a container.
+	 * @return The position of the container, or -(insertion point) - 1 if there is none.
+	 */
+	private int find(char key) {
+		return Arrays.binarySearch(this.keys, 0, this.size, key);
+	}
+	/**
+	 * Finds a container, or inserts an empty array container.
+	 * @return The position of the container.
+	 */
+	private int findOrInsert(char key) {
+		int c = this.find(key);
+		if(c >= 0)
+			return c;
+		c = -c - 1;
+		this.grow();
+		int n = this.size - c;
+		System.arraycopy(this.keys, c, this.keys, c + 1, n);
+		System.arraycopy(this.cardinalities, c, this.cardinalities, c + 1, n);
+		System.arraycopy(this.arrays, c, this.arrays, c + 1, n);
+		System.arraycopy(this.bitmaps, c, this.bitmaps, c + 1, n);
+		this.keys[c] = key;
+		this.cardinalities[c] = 0;
+		this.arrays[c] = new char[4];
+		this.bitmaps[c] = null;
+		this.size++;
+		return c;
+	}
+	/**
+	 * Ensures there is room for one more container.
+	 */
+	private void grow() {
+		if(this.size < this.keys.length)
+			return;
+		int n = 2 * this.size;
+		this.keys = Arrays.copyOf(this.keys, n);
+		this.cardinalities = Arrays.copyOf(this.cardinalities, n);
+		this.arrays = Arrays.copyOf(this.arrays, n);
+		this.bitmaps = Arrays.copyOf(this.bitmaps, n);
+	}
+
+	private void checkLevel(CellBitmap other) {
+		if(other.level != this.level)
+			throw new IllegalArgumentException("The bitmaps must be of the same level.");
+	}
+
+	private static long[] toBitmap(char[] values, int n) {
+		long[] output = new long[BitmapWords];
+		for(int k=0; k<n; k++)
+			output[values[k] >>> 6] |= 1L << values[k];
+		return output;
+	}
+
+	private static char[] toArray(long[] bits, int cardinality) {
+		char[] output = new char[Math.max(cardinality, 4)];
+		int count = 0;
+		for(int w=0; w<BitmapWords; w++) {
+			for(long word = bits[w]; word != 0L; word &= word - 1L)
+				output[count++] = (char)((w << 6) + Long.numberOfTrailingZeros(word));
+		}
+		return output;
+	}
+
+	private static int cardinality(long[] bits) {
+		int output = 0;
+		for(long word : bits)
+			output += Long.bitCount(word);
+		return output;
+	}
+	/**
+	 * Counts the bits from lo, inclusive, to hi, exclusive.
+	 */
+	private static int countBits(long[] bits, int lo, int hi) {
+		int first = lo >>> 6, last = (hi - 1) >>> 6;
+		long firstMask = -1L << lo, lastMask = -1L >>> -hi;
+		if(first == last)
+			return Long.bitCount(bits[first] & firstMask & lastMask);
+		int output = Long.bitCount(bits[first] & firstMask) + Long.bitCount(bits[last] & lastMask);
+		for(int w=first+1; w<last; w++)
+			output += Long.bitCount(bits[w]);
+		return output;
+	}
+	/**
+	 * Sets the bits from lo, inclusive, to hi, exclusive.
+	 */
+	private static void setBits(long[] bits, int lo, int hi) {
+		int first = lo >>> 6, last = (hi - 1) >>> 6;
+		long firstMask = -1L << lo, lastMask = -1L >>> -hi;
+		if(first == last) {
+			bits[first] |= firstMask & lastMask;
+			return;
+		}
+		bits[first] |= firstMask;
+		for(int w=first+1; w<last; w++)
+			bits[w] = -1L;
+		bits[last] |= lastMask;
+	}
+}
@@ -0,0 +1,403 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.util.Arrays;
+
+/**
+ * Enumerates the subtriangles that intersect a region, without materializing any part of the hierarchy.
+ *
+ * The descent starts at the octants.  Each subtriangle is classified by the region as disjoint, crossing or contained.
+ * A disjoint subtriangle is pruned with all of its descendants.  A contained subtriangle is emitted at its own layer,
+ * because all of its descendants would be emitted too.  A crossing subtriangle is subdivided, unless it is at the
+ * maximum depth, where it is emitted.
+ *
+ * The vertices are kept on the face of the octahedron as in {@link Tessellation#locateUnitVector(double, double, double, int)},
+ * so the midpoints are exact, and they are normalized to the unit sphere before each subtriangle is classified.
+ */
+final class CellCover
+{
+	/**
+	 * The subtriangle does not intersect the region.
+	 */
+	static final int Disjoint = 0;
+	/**
+	 * The subtriangle intersects the region and the complement of the region.
+	 */
+	static final int Crossing = 1;
+	/**
+	 * The subtriangle lies within the region.
+	 */
+	static final int Contained = 2;
+
+	/**
+	 * A region of the unit sphere.
+	 */
+	interface Region
+	{
+		/**
+		 * Classifies a spherical triangle with respect to the region.  The classification may be conservative:
+		 * {@link #Crossing} is always an acceptable answer.
+		 * @param v The unit vectors of the three vertices, stored as (x0,y0,z0,x1,y1,z1,x2,y2,z2).
+		 * @return One of {@link #Disjoint}, {@link #Crossing} or {@link #Contained}.
+		 */
+		int classify(double[] v);
+	}
+
+	private final Region region;
+	private final int depth;
+	/**
+	 * The face points of the vertices, indexed by layer.
+	 */
+	private final double[][] face;
+	/**
+	 * The face points of the edge midpoints (m01, m12, m20), indexed by layer.
+	 */
+	private final double[][] mid;
+	/**
+	 * The unit vectors of the vertices, passed to the region.
+	 */
+	private final double[] unit = new double[9];
+	private long[] output = new long[64];
+	private int count = 0;
+
+	private CellCover(Region region, int depth) {
+		this.region = region;
+		this.depth = depth;
+		this.face = new double[depth + 1][9];
+		this.mid = new double[depth + 1][9];
+	}
+	/**
+	 * Enumerates the subtriangles that intersect a region.
+	 * @param region The region.
+	 * @param depth The maximum length of the addresses, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @return The 64-bit packed addresses of the subtriangles, see {@link Subtriangle#pack64(byte[])}.  The subtriangles
+	 * are disjoint, and subtriangles that lie within the region may be shorter than the depth.
+	 */
+	static long[] cover(Region region, int depth) {
+		if(depth < 1 || depth > Tessellation.MaxDepth)
+			throw new IllegalArgumentException("The depth must be in the range [1," + Tessellation.MaxDepth + "].");
+		CellCover cover = new CellCover(region, depth);
+		for(int octant=0; octant<8; octant++) {
+			octantVertices(octant, cover.face[1]);
+			cover.visit(1, PackedId.forOctant(octant));
+		}
+		return Arrays.copyOf(cover.output, cover.count);
+	}
+
+	private void visit(int level, long id) {
+		double[] v = this.face[level];
+		normalize(v, this.unit);
+		int c = this.region.classify(this.unit);
+		if(c == Disjoint)
+			return;
+		if(c == Contained || level == this.depth) {
+			add(id);
+			return;
+		}
+
+		double[] m = this.mid[level];
+		midpoints(v, m);
+
+		double[] w = this.face[level + 1];
+		for(int k=0; k<4; k++) {
+			childVertices(v, m, k, w);
+			visit(level + 1, PackedId.child(id, k));
+		}
+	}
+	/**
+	 * Computes the face points of the vertices of a child, see {@link Subtriangle}.
+	 * @param v The face points of the vertices of the parent, stored as (x0,y0,z0,x1,y1,z1,x2,y2,z2).
+	 * @param m The face points of the edge midpoints of the parent (m01, m12, m20), stored like v.
+	 * @param k The digit of the child, in the range [0,4).
+	 * @param output Receives the face points of the vertices of the child, stored like v.
+	 */
+	static void childVertices(double[] v, double[] m, int k, double[] output) {
+		for(int i=0; i<3; i++) {
+			switch(k) {
+				case 0:	output[i] = m[3+i];	output[3+i] = m[i];		output[6+i] = m[6+i];	break;
+				case 1:	output[i] = v[i];	output[3+i] = m[i];		output[6+i] = m[6+i];	break;
+				case 2:	output[i] = m[i];	output[3+i] = v[3+i];	output[6+i] = m[3+i];	break;
+				default:output[i] = m[6+i];	output[3+i] = m[3+i];	output[6+i] = v[6+i];	break;
+			}
+		}
+	}
+	/**
+	 * Computes the face points of the edge midpoints of a subtriangle.
+	 * @param v The face points of the vertices, stored as (x0,y0,z0,x1,y1,z1,x2,y2,z2).
+	 * @param output Receives the face points of the midpoints (m01, m12, m20), stored like v.
+	 */
+	static void midpoints(double[] v, double[] output) {
+		for(int i=0; i<3; i++) {
+			output[i] = 0.5 * (v[i] + v[3+i]);
+			output[3+i] = 0.5 * (v[3+i] + v[6+i]);
+			output[6+i] = 0.5 * (v[6+i] + v[i]);
+		}
+	}
+	/**
+	 * Computes the face points of the vertices of an octant.
+	 * @param octant The octant, in the range [0,8).
+	 * @param output Receives the face points, which are the unit vectors of the vertices, stored as (x0,y0,z0,x1,...).
+	 */
+	static void octantVertices(int octant, double[] output) {
+		Arrays.fill(output, 0.0);
+		int[] axes = Tessellation.OctantAxes[octant & 3];
+		int[] signs = Tessellation.OctantSigns[octant];
+		for(int i=0; i<3; i++)
+			output[3*i + axes[i]] = signs[axes[i]];
+	}
+	/**
+	 * Projects face points onto the unit sphere.
+	 * @param v The face points of the vertices, stored as (x0,y0,z0,x1,y1,z1,x2,y2,z2).
+	 * @param output Receives the unit vectors, stored like v.
+	 */
+	static void normalize(double[] v, double[] output) {
+		for(int i=0; i<9; i+=3) {
+			double s = 1.0 / Math.sqrt(v[i]*v[i] + v[i+1]*v[i+1] + v[i+2]*v[i+2]);
+			output[i] = s * v[i];
+			output[i+1] = s * v[i+1];
+			output[i+2] = s * v[i+2];
+		}
+	}
+
+	/**
+	 * Computes the bounds in latitude of a spherical triangle, including the bulge of its edges toward the poles.
+	 * @param v The unit vectors of the vertices, as in {@link Region#classify(double[])}.
+	 * @param output Receives the sines of the least and the greatest latitude.  The length must be at least 2.
+	 */
+	static void sinLatitudeBounds(double[] v, double[] output) {
+		double yMin = Math.min(Math.min(v[1], v[4]), v[7]);
+		double yMax = Math.max(Math.max(v[1], v[4]), v[7]);
+		for(int i=0; i<9; i+=3) {
+			int j = i == 6 ? 0 : i + 3;
+			double ax = v[i], ay = v[i+1], az = v[i+2];
+			double bx = v[j], by = v[j+1], bz = v[j+2];
+			double nx = ay*bz - az*by, ny = az*bx - ax*bz, nz = ax*by - ay*bx;
+			double n2 = nx*nx + ny*ny + nz*nz;
+			//	The point of the great circle nearest to the north pole Y = (0,1,0) lies between a and b when
+			//	(a x Y).n >= 0 and (Y x b).n >= 0.  The point nearest to the south pole is its reflection.
+			double aYn = ax*nz - az*nx;
+			double Ybn = bz*nx - bx*nz;
+			if(aYn >= 0.0 && Ybn >= 0.0)
+				yMax = Math.max(yMax, Math.sqrt(Math.max(0.0, 1.0 - ny*ny/n2)));
+			else if(aYn <= 0.0 && Ybn <= 0.0)
+				yMin = Math.min(yMin, -Math.sqrt(Math.max(0.0, 1.0 - ny*ny/n2)));
+		}
+		output[0] = yMin;
+		output[1] = yMax;
+	}
+
+	private void add(long id) {
+		if(this.count == this.output.length)
+			this.output = Arrays.copyOf(this.output, 2 * this.count);
+		this.output[this.count++] = id;
+	}
+	/**
+	 * Determines whether a spherical cap intersects a spherical triangle.  The test is exact:  either a vertex lies in
+	 * the cap, or the center of the cap lies in the triangle, or the point of an edge nearest to the center lies in the
+	 * cap.
+	 * @param cx The x-ordinate of the unit vector of the center of the cap.
+	 * @param cy The y-ordinate of the unit vector of the center of the cap.
+	 * @param cz The z-ordinate of the unit vector of the center of the cap.
+	 * @param cosR The cosine of the radius of the cap.
+	 * @param sinR The sine of the radius of the cap.
+	 * @param v The unit vectors of the vertices, as in {@link Region#classify(double[])}.
+	 * @return True if the cap intersects the triangle, false otherwise.
+	 */
+	static boolean intersects(double cx, double cy, double cz, double cosR, double sinR, double[] v) {
+		for(int i=0; i<9; i+=3)
+			if(cx*v[i] + cy*v[i+1] + cz*v[i+2] >= cosR)
+				return true;
+
+		int positive = 0, negative = 0;
+		for(int i=0; i<9; i+=3) {
+			int j = i == 6 ? 0 : i + 3;
+			double ax = v[i], ay = v[i+1], az = v[i+2];
+			double bx = v[j], by = v[j+1], bz = v[j+2];
+
+			//	The normal of the great circle through a and b.
+			double nx = ay*bz - az*by;
+			double ny = az*bx - ax*bz;
+			double nz = ax*by - ay*bx;
+			double cn = cx*nx + cy*ny + cz*nz;
+			if(cn >= 0.0)
+				positive++;
+			if(cn <= 0.0)
+				negative++;
+
+			//	The point of the great circle nearest to c is c - (c.n)n/|n|^2, which lies between a and b when
+			//	(a x c).n >= 0 and (c x b).n >= 0.
+			double acn = (ay*cz - az*cy)*nx + (az*cx - ax*cz)*ny + (ax*cy - ay*cx)*nz;
+			double cbn = (cy*bz - cz*by)*nx + (cz*bx - cx*bz)*ny + (cx*by - cy*bx)*nz;
+			if(acn >= 0.0 && cbn >= 0.0) {
+				double n2 = nx*nx + ny*ny + nz*nz;
+				if(cosR < 0.0 || cn*cn <= sinR*sinR*n2)
+					return true;
+			}
+		}
+		//	The reflections between octants reverse the order of the vertices in half of them, so the center is inside
+		//	when it lies on the same side of all three edges.
+		return positive == 3 || negative == 3;
+	}
+
+	/**
+	 * The region of a {@link Cap}.
+	 */
+	static final class CapRegion implements Region
+	{
+		private final double cx, cy, cz;
+		private final double cosR, sinR;
+
+		CapRegion(Cap cap) {
+			double rlat = D.RadiansPerDegree * cap.position.lat;
+			double rlon = D.RadiansPerDegree * cap.position.lon;
+			double cLat = Math.cos(rlat);
+			this.cx = cLat * Math.sin(rlon);
+			this.cy = Math.sin(rlat);
+			this.cz = -cLat * Math.cos(rlon);
+			double r = D.RadiansPerDegree * Math.min(cap.domeRadius, 180.0f);
+			this.cosR = Math.cos(r);
+			this.sinR = Math.sin(r);
+		}
+		/**
+		 * Constructs the region of a cap from its center and radius.
+		 * @param cx The x-ordinate of the unit vector of the center.
+		 * @param cy The y-ordinate of the unit vector of the center.
+		 * @param cz The z-ordinate of the unit vector of the center.
+		 * @param radius The radius in radians, in the range [0,pi].
+		 */
+		CapRegion(double cx, double cy, double cz, double radius) {
+			this.cx = cx;
+			this.cy = cy;
+			this.cz = cz;
+			this.cosR = Math.cos(radius);
+			this.sinR = Math.sin(radius);
+		}
+
+		@Override
+		public int classify(double[] v) {
+			//	The bounding cap of the triangle is centered at the sum of its vertices, and its radius is the largest
+			//	angle to a vertex.  The caps are disjoint if the angle between their centers exceeds the sum of the radii.
+			double mx = v[0] + v[3] + v[6], my = v[1] + v[4] + v[7], mz = v[2] + v[5] + v[8];
+			double s = 1.0 / Math.sqrt(mx*mx + my*my + mz*mz);
+			mx *= s;	my *= s;	mz *= s;
+			double cosB = Math.min(Math.min(
+					mx*v[0] + my*v[1] + mz*v[2],
+					mx*v[3] + my*v[4] + mz*v[5]),
+					mx*v[6] + my*v[7] + mz*v[8]);
+			double sinB = Math.sqrt(Math.max(0.0, 1.0 - cosB*cosB));
+			double cosSum = this.cosR*cosB - this.sinR*sinB;
+			double sinSum = this.sinR*cosB + this.cosR*sinB;
+			if(sinSum > 0.0 && this.cx*mx + this.cy*my + this.cz*mz < cosSum)
+				return Disjoint;
+
+			if(this.cosR >= 0.0) {
+				//	A cap no larger than a hemisphere contains every arc between two of its points.
+				if(this.cx*v[0] + this.cy*v[1] + this.cz*v[2] >= this.cosR
+						&& this.cx*v[3] + this.cy*v[4] + this.cz*v[5] >= this.cosR
+						&& this.cx*v[6] + this.cy*v[7] + this.cz*v[8] >= this.cosR)
+					return Contained;
+			} else if(!intersects(-this.cx, -this.cy, -this.cz, -this.cosR, this.sinR, v)) {
+				//	The triangle does not intersect the complement of the cap.
+				return Contained;
+			}
+			return intersects(this.cx, this.cy, this.cz, this.cosR, this.sinR, v) ? Crossing : Disjoint;
+		}
+	}
+
+	/**
+	 * The region of a {@link SurfaceRect}.  The sides of the rectangle are meridians and parallels, so the rectangle is
+	 * compared with the exact bounds of each triangle in latitude and longitude.
+	 *
+	 * The latitude of a great circle arc is extreme either at an end or at the point of its great circle nearest to a
+	 * pole.  The longitude along an arc that does not pass through a pole changes monotonically by less than 180 degrees,
+	 * so the longitudes of a triangle span the shortest interval holding the longitudes of its vertices.  A vertex at a
+	 * pole is joined to its neighbors by meridians, so it does not extend that interval.
+	 *
+	 * A triangle that overlaps the rectangle in both latitude and longitude is reported as crossing, so a covering may
+	 * include a few cells beyond the corners of the rectangle.
+	 */
+	static final class RectRegion implements Region
+	{
+		/**
+		 * The sines of the bottom and top latitudes.
+		 */
+		private final double sinBottom, sinTop;
+		/**
+		 * The western edge and the width of the rectangle in longitude, in degrees.  The width is in (0,360].
+		 */
+		private final double west, width;
+		private final double[] bounds = new double[2];
+
+		RectRegion(SurfaceRect rect) {
+			this.sinBottom = Math.sin(D.RadiansPerDegree * Math.max(rect.bottom, -90.0f));
+			this.sinTop = Math.sin(D.RadiansPerDegree * Math.min(rect.top, 90.0f));
+			double w = (double)rect.right - rect.left;
+			if(w <= 0.0)
+				w += 360.0;
+			this.west = rect.left;
+			this.width = Math.min(w, 360.0);
+		}
+
+		@Override
+		public int classify(double[] v) {
+			//	Bounds in latitude, as the sine of the latitude.
+			sinLatitudeBounds(v, this.bounds);
+			double yMin = this.bounds[0], yMax = this.bounds[1];
+			if(yMax < this.sinBottom || yMin > this.sinTop)
+				return Disjoint;
+			boolean latInside = yMin >= this.sinBottom && yMax <= this.sinTop;
+
+			//	Bounds in longitude, relative to the western edge of the rectangle.
+			boolean lonInside, lonOverlap;
+			if(this.width >= 360.0 || insidePole(v, 1.0) || insidePole(v, -1.0)) {
+				lonInside = this.width >= 360.0;
+				lonOverlap = true;
+			} else {
+				double first = Double.NaN, lo = 0.0, hi = 0.0;
+				for(int i=0; i<9; i+=3) {
+					if(v[i]*v[i] + v[i+2]*v[i+2] < 1e-24)
+						continue;
+					double lon = D.DegreesPerRadian * Math.atan2(v[i], -v[i+2]);
+					if(Double.isNaN(first)) {
+						first = lon;
+					} else {
+						double d = lon - first;
+						if(d > 180.0)
+							d -= 360.0;
+						else if(d < -180.0)
+							d += 360.0;
+						lo = Math.min(lo, d);
+						hi = Math.max(hi, d);
+					}
+				}
+				double start = (first + lo - this.west) % 360.0;
+				if(start < 0.0)
+					start += 360.0;
+				double end = start + (hi - lo);
+				lonInside = end <= this.width;
+				lonOverlap = start <= this.width || end >= 360.0;
+			}
+			if(!lonOverlap)
+				return Disjoint;
+			return latInside && lonInside ? Contained : Crossing;
+		}
+		/**
+		 * Determines whether a pole lies strictly inside a triangle, where the longitude is unbounded.  A pole at a
+		 * vertex is excluded.
+		 */
+		private static boolean insidePole(double[] v, double y) {
+			int positive = 0, negative = 0;
+			for(int i=0; i<9; i+=3) {
+				int j = i == 6 ? 0 : i + 3;
+				//	(a x b).(0,y,0)
+				double s = y * (v[i+2]*v[j] - v[i]*v[j+2]);
+				if(s > 0.0)
+					positive++;
+				else if(s < 0.0)
+					negative++;
+			}
+			return positive == 3 || negative == 3;
+		}
+	}
+}
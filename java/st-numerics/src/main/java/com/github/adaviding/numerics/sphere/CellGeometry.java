@@ -0,0 +1,204 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+import com.github.adaviding.numerics.f3.Point;
+
+/**
+ * Computes the geometry of a subtriangle from its packed address, without materializing any part of the hierarchy.
+ *
+ * The vertices are found by replaying the subdivision from the vertices of the octant, as in {@link CellCover}, so
+ * they are the same vertices that {@link Subtriangle#subdivide()} would produce (in double precision).  An instance
+ * keeps the vertices of every layer of the most recently decoded address.  Decoding another address only replays the
+ * layers below the deepest ancestor that the two addresses share, so the subtriangles of a sorted list of addresses
+ * are decoded in a few steps each.  Instances are not thread safe.
+ */
+public class CellGeometry
+{
+	/**
+	 * The longitude of the western edge of octants 0 through 3, in degrees.  See {@link Subtriangle#address}.
+	 */
+	private static final double[] OctantWest = { 90.0, 0.0, -90.0, -180.0 };
+
+	/**
+	 * The face points of the vertices of the most recently decoded address, indexed by layer.
+	 */
+	private final double[][] face = new double[Tessellation.MaxDepth + 1][9];
+	private final double[] mid = new double[9];
+	/**
+	 * The unit vectors of the vertices of the most recently decoded address.
+	 */
+	private final double[] unit = new double[9];
+	private final double[] bounds = new double[2];
+	private final double[] center = new double[3];
+	/**
+	 * The most recently decoded address, or 0 if none.
+	 */
+	private long last = 0L;
+
+	/**
+	 * Constructs an instance with an empty cache.
+	 */
+	public CellGeometry() {}
+	/**
+	 * Computes the vertices of a subtriangle.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @param output Receives the unit vectors of the vertices, in the order of {@link Subtriangle#vertices}, stored as
+	 *               (x0,y0,z0,x1,y1,z1,x2,y2,z2).  The length must be at least 9.
+	 */
+	public void vertices(long packed, double[] output) {
+		System.arraycopy(this.decode(packed), 0, output, 0, 9);
+	}
+	/**
+	 * Computes the vertices of a subtriangle.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @return The unit vectors of the vertices, in the order of {@link Subtriangle#vertices}.
+	 */
+	public Point[] vertices(long packed) {
+		double[] v = this.decode(packed);
+		Point[] output = new Point[3];
+		for(int i=0; i<3; i++)
+			output[i] = new Point((float)v[3*i], (float)v[3*i+1], (float)v[3*i+2]);
+		return output;
+	}
+	/**
+	 * Computes the centroid of a subtriangle, which is the normalized sum of the unit vectors of its vertices.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @param output Receives the unit vector of the centroid, stored as (x,y,z).  The length must be at least 3.
+	 */
+	public void centroid(long packed, double[] output) {
+		double[] v = this.decode(packed);
+		double mx = v[0] + v[3] + v[6], my = v[1] + v[4] + v[7], mz = v[2] + v[5] + v[8];
+		double s = 1.0 / Math.sqrt(mx*mx + my*my + mz*mz);
+		output[0] = s * mx;
+		output[1] = s * my;
+		output[2] = s * mz;
+	}
+	/**
+	 * Computes the centroid of a subtriangle, see {@link #centroid(long, double[])}.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @return The unit vector of the centroid.
+	 */
+	public Point centroid(long packed) {
+		double[] c = this.center;
+		this.centroid(packed, c);
+		return new Point((float)c[0], (float)c[1], (float)c[2]);
+	}
+	/**
+	 * Computes the area of a subtriangle, which is its spherical excess.
+	 *
+	 * The edges are great circle arcs, so the areas of the subtriangles of a layer sum to 4 pi, but they are not all
+	 * equal:  the subtriangles near the vertices of an octant are smaller than those near its center.
+	 *
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @return The area on the unit sphere, in steradians.  Multiply by the square of a radius (e.g.
+	 * {@link D#EarthRadiusKilometers}) to obtain an area on a sphere of that radius.
+	 */
+	public double area(long packed) {
+		double[] v = this.decode(packed);
+		double ax = v[0], ay = v[1], az = v[2];
+		//	tan(E/2) = a.(b x c) / (1 + a.b + b.c + c.a), where a.(b x c) = a.((b - a) x (c - a)) avoids cancellation in
+		//	small subtriangles.
+		double bx = v[3] - ax, by = v[4] - ay, bz = v[5] - az;
+		double cx = v[6] - ax, cy = v[7] - ay, cz = v[8] - az;
+		double triple = Math.abs(ax*(by*cz - bz*cy) + ay*(bz*cx - bx*cz) + az*(bx*cy - by*cx));
+		double ab = ax*v[3] + ay*v[4] + az*v[5];
+		double bc = v[3]*v[6] + v[4]*v[7] + v[5]*v[8];
+		double ca = v[6]*ax + v[7]*ay + v[8]*az;
+		return 2.0 * Math.atan2(triple, 1.0 + ab + bc + ca);
+	}
+	/**
+	 * Computes a spherical cap that contains a subtriangle.  The cap is centered near the centroid, and its radius is
+	 * the greatest distance from the center to a vertex, measured from the single precision position of the cap and
+	 * rounded up.  Every point of the subtriangle therefore lies within the cap.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @return The bounding cap, with a radius in degrees, see {@link Cap#domeRadius}.
+	 */
+	public Cap boundingCap(long packed) {
+		double[] c = this.center;
+		this.centroid(packed, c);
+		double[] v = this.unit;
+		LatLon position = new LatLon(
+				D.DegreesPerRadian * Math.atan2(c[1], Math.sqrt(c[0]*c[0] + c[2]*c[2])),
+				D.DegreesPerRadian * Math.atan2(c[0], -c[2]));
+		position.normalize();
+
+		//	The center as it will be reconstructed from the position, see CellCover.CapRegion.
+		double rlat = D.RadiansPerDegree * position.lat;
+		double rlon = D.RadiansPerDegree * position.lon;
+		double cLat = Math.cos(rlat);
+		double px = cLat * Math.sin(rlon), py = Math.sin(rlat), pz = -cLat * Math.cos(rlon);
+
+		double radius = 0.0;
+		for(int i=0; i<9; i+=3) {
+			double x = py*v[i+2] - pz*v[i+1];
+			double y = pz*v[i] - px*v[i+2];
+			double z = px*v[i+1] - py*v[i];
+			double dot = px*v[i] + py*v[i+1] + pz*v[i+2];
+			radius = Math.max(radius, Math.atan2(Math.sqrt(x*x + y*y + z*z), dot));
+		}
+		return new Cap(position, Math.nextUp((float)(radius / D.RadiansPerDegree)));
+	}
+	/**
+	 * Computes the smallest rectangle in latitude and longitude that contains a subtriangle, rounded outward to single
+	 * precision.  A subtriangle never spans the international date line, because it lies within one octant.
+	 *
+	 * The longitude along an edge changes monotonically, so the longitudes of a subtriangle span the interval of the
+	 * longitudes of its vertices.  A vertex at a pole is joined to its neighbors by meridians, so it only extends the
+	 * interval of latitudes.
+	 *
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @return The bounding rectangle, with longitudes (left and right) and latitudes (bottom and top) in degrees.
+	 */
+	public SurfaceRect boundingRect(long packed) {
+		double[] v = this.decode(packed);
+		CellCover.sinLatitudeBounds(v, this.bounds);
+		float bottom = Math.max(Math.nextDown((float)(D.DegreesPerRadian * Math.asin(this.bounds[0]))), -90.0f);
+		float top = Math.min(Math.nextUp((float)(D.DegreesPerRadian * Math.asin(this.bounds[1]))), 90.0f);
+
+		//	Longitudes are measured from the middle of the octant, so that both sides of the date line are handled alike.
+		double west = OctantWest[PackedId.octant(packed) & 3];
+		double middle = west + 45.0;
+		double lo = 45.0, hi = -45.0;
+		for(int i=0; i<9; i+=3) {
+			if(v[i]*v[i] + v[i+2]*v[i+2] < 1e-24)
+				continue;
+			double d = D.DegreesPerRadian * Math.atan2(v[i], -v[i+2]) - middle;
+			if(d < -180.0)
+				d += 360.0;
+			else if(d >= 180.0)
+				d -= 360.0;
+			d = Math.min(Math.max(d, -45.0), 45.0);
+			lo = Math.min(lo, d);
+			hi = Math.max(hi, d);
+		}
+		float left = Math.max(Math.nextDown((float)(middle + lo)), (float)west);
+		float right = Math.min(Math.nextUp((float)(middle + hi)), (float)(west + 90.0));
+		return new SurfaceRect(left, right, top, bottom);
+	}
+
+	/**
+	 * Replays the subdivision to the layer of a packed address, starting below the deepest layer it shares with the
+	 * previously decoded address.
+	 * @return The unit vectors of the vertices.
+	 */
+	private double[] decode(long packed) {
+		if(packed == this.last)
+			return this.unit;
+		int level = PackedId.level(packed);
+		if(level < 1 || level > Tessellation.MaxDepth)
+			throw new IllegalArgumentException("The length of the address must be in the range [1," + Tessellation.MaxDepth + "].");
+
+		int start = this.last == 0L ? 0 : PackedId.commonAncestorLevel(this.last, packed);
+		if(start == 0) {
+			CellCover.octantVertices(PackedId.octant(packed), this.face[1]);
+			start = 1;
+		}
+		for(int l=start; l<level; l++) {
+			CellCover.midpoints(this.face[l], this.mid);
+			CellCover.childVertices(this.face[l], this.mid, PackedId.digit(packed, l + 1), this.face[l+1]);
+		}
+		CellCover.normalize(this.face[level], this.unit);
+		this.last = packed;
+		return this.unit;
+	}
+}
@@ -0,0 +1,251 @@
+package com.github.adaviding.numerics.sphere;
+
+/**
+ * An order-preserving 64-bit encoding of subtriangle addresses.
+ *
+ * The bits of a cell id are laid out from the most significant end as follows:
+ * {@literal
+ * 		bit  63        --> 0, so every cell id is positive
+ * 		bits 62 .. 60  --> the octant
+ * 		2 bits each    --> the digits of layers 2 through L, see Subtriangle.address
+ * 		1 bit          --> the sentinel, a single 1 marking the end of the address
+ * 		remaining bits --> 0
+ * }
+ * The sentinel of a subtriangle at layer L is bit 61 - 2L, so its position alone determines the layer.
+ *
+ * Unlike {@link Subtriangle#pack64(byte[])}, which stores the length in the most significant bits, this encoding sorts
+ * a subtriangle next to its descendants.  Every descendant of a subtriangle lies in the range [{@link #rangeMin(long)},
+ * {@link #rangeMax(long)}], no other subtriangle of greater or equal layer does, and the subtriangle itself lies in the
+ * middle of the range.  A set of points keyed by the cell ids of their subtriangles at any fixed layer can therefore
+ * answer a query for a coarser subtriangle with one range scan.  Signed and unsigned comparison agree.
+ *
+ * All methods are static and operate on primitive longs, so they do not allocate memory.
+ */
+public final class CellId
+{
+	/**
+	 * The greatest layer that can be encoded.
+	 */
+	public static final int MaxLevel = Tessellation.MaxDepth;
+	/**
+	 * A value that is not a valid cell id.
+	 */
+	public static final long None = 0L;
+
+	private CellId() {}
+	/**
+	 * Determines whether a value is a valid cell id.
+	 * @param id The value.
+	 * @return True if the value encodes a subtriangle of layer 1 through {@link #MaxLevel}, false otherwise.
+	 */
+	public static boolean isValid(long id) {
+		if(id <= 0L)
+			return false;
+		int tz = Long.numberOfTrailingZeros(id);
+		return (tz & 1) == 1 && tz >= 61 - 2*MaxLevel;
+	}
+	/**
+	 * Gets the layer of a subtriangle, which is the length of its address.
+	 * @param id The cell id.
+	 * @return The layer, in the range [1,{@link #MaxLevel}].
+	 */
+	public static int level(long id) {
+		return (61 - Long.numberOfTrailingZeros(id)) >> 1;
+	}
+	/**
+	 * Gets the octant of a subtriangle.
+	 * @param id The cell id.
+	 * @return The octant, in the range [0,8).
+	 */
+	public static int octant(long id) {
+		return (int)(id >>> 60);
+	}
+	/**
+	 * Gets a digit of the address of a subtriangle.  Layers are counted from 1, where the layer 1 holds the octant, so
+	 * the digit at layer L is address[L-1] of {@link Subtriangle#address}, as for {@link PackedId#digit(long, int)}.
+	 * @param id The cell id.
+	 * @param level The layer of the digit, in the range [2,{@link #level(long)}].
+	 * @return The digit, in the range [0,4).
+	 */
+	public static int digit(long id, int level) {
+		return (int)(id >>> (62 - 2*level)) & 3;
+	}
+	/**
+	 * Gets the sentinel bit of a subtriangle, which is also the lowest set bit of its cell id.
+	 * @param id The cell id.
+	 * @return The sentinel bit.
+	 */
+	public static long lsb(long id) {
+		return id & -id;
+	}
+	/**
+	 * Gets the sentinel bit of the subtriangles at a layer.
+	 * @param level The layer, in the range [1,{@link #MaxLevel}].
+	 * @return The sentinel bit.
+	 */
+	public static long lsbForLevel(int level) {
+		return 1L << (61 - 2*level);
+	}
+	/**
+	 * Gets the parent of a subtriangle.
+	 * @param id The cell id.  The layer must be at least 2.
+	 * @return The cell id of the parent.
+	 */
+	public static long parent(long id) {
+		long lsb = lsb(id) << 2;
+		return (id & -lsb) | lsb;
+	}
+	/**
+	 * Gets the ancestor of a subtriangle at a layer.
+	 * @param id The cell id.
+	 * @param level The layer of the ancestor, in the range [1,{@link #level(long)}].
+	 * @return The cell id of the ancestor.
+	 */
+	public static long parent(long id, int level) {
+		long lsb = lsbForLevel(level);
+		return (id & -lsb) | lsb;
+	}
+	/**
+	 * Gets a child of a subtriangle.
+	 * @param id The cell id.  The layer must be less than {@link #MaxLevel}.
+	 * @param k The digit of the child, in the range [0,4), see {@link Subtriangle#address}.
+	 * @return The cell id of the child.
+	 */
+	public static long child(long id, int k) {
+		//	The sentinel is replaced by the digit, followed by a new sentinel two bits lower.
+		return id + (2L*k - 3L) * (lsb(id) >>> 2);
+	}
+	/**
+	 * Gets the smallest cell id of the descendants of a subtriangle at {@link #MaxLevel}.
+	 * @param id The cell id.
+	 * @return The lower bound of the range of the subtriangle and its descendants.
+	 */
+	public static long rangeMin(long id) {
+		return id - (lsb(id) - 1L);
+	}
+	/**
+	 * Gets the greatest cell id of the descendants of a subtriangle at {@link #MaxLevel}.
+	 * @param id The cell id.
+	 * @return The upper bound of the range of the subtriangle and its descendants.
+	 */
+	public static long rangeMax(long id) {
+		return id + (lsb(id) - 1L);
+	}
+	/**
+	 * Determines whether a subtriangle contains another, or is the same subtriangle.
+	 * @param id The cell id of the container.
+	 * @param other The cell id of the other subtriangle.
+	 * @return True if other is id or one of its descendants, false otherwise.
+	 */
+	public static boolean contains(long id, long other) {
+		return other >= rangeMin(id) && other <= rangeMax(id);
+	}
+	/**
+	 * Determines whether two subtriangles overlap, which is true if one of them contains the other.
+	 * @param a The cell id of one subtriangle.
+	 * @param b The cell id of the other subtriangle.
+	 * @return True if the subtriangles overlap, false otherwise.
+	 */
+	public static boolean intersects(long a, long b) {
+		return rangeMin(b) <= rangeMax(a) && rangeMax(b) >= rangeMin(a);
+	}
+	/**
+	 * Gets the first subtriangle at a layer in cell id order.
+	 * @param level The layer, in the range [1,{@link #MaxLevel}].
+	 * @return The smallest cell id at the layer.
+	 */
+	public static long begin(int level) {
+		return lsbForLevel(level);
+	}
+	/**
+	 * Gets the next subtriangle at the same layer in cell id order.  The successor of the last subtriangle is not a valid
+	 * cell id.
+	 * @param id The cell id.
+	 * @return The next cell id at the same layer.
+	 */
+	public static long next(long id) {
+		return id + (lsb(id) << 1);
+	}
+	/**
+	 * Converts a 64-bit packed address to a cell id.
+	 * @param packed The packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @return The cell id.
+	 */
+	public static long fromPacked64(long packed) {
+		int level = (int)(packed >>> 59);
+		if(level < 1 || level > MaxLevel)
+			throw new IllegalArgumentException("The length of the address must be in the range [1," + MaxLevel + "].");
+		//	The octant and the digits move up by 4 bits, from below bit 59 to below bit 63.
+		long bits = (packed << 4) & ~((1L << 63) | (lsbForLevel(level) << 1) - 1L);
+		return bits | lsbForLevel(level);
+	}
+	/**
+	 * Converts a cell id to a 64-bit packed address.
+	 * @param id The cell id.
+	 * @return The packed address, see {@link Subtriangle#pack64(byte[])}.
+	 */
+	public static long toPacked64(long id) {
+		return ((long)level(id) << 59) | ((id ^ lsb(id)) >>> 4);
+	}
+	/**
+	 * Converts a 32-bit packed address to a cell id.
+	 * @param packed The packed address, see {@link Subtriangle#pack32(byte[])}.  The length must be at least 1.
+	 * @return The cell id.
+	 */
+	public static long fromPacked32(int packed) {
+		int level = packed >>> 27;
+		if(level < 1 || level > 13)
+			throw new IllegalArgumentException("The length of the address must be in the range [1,13].");
+		//	The 32-bit layout is the 64-bit layout shifted right by 32 bits.
+		return fromPacked64((long)packed << 32);
+	}
+	/**
+	 * Converts a cell id to a 32-bit packed address.
+	 * @param id The cell id.  The layer must not exceed 13.
+	 * @return The packed address, see {@link Subtriangle#pack32(byte[])}.
+	 */
+	public static int toPacked32(long id) {
+		if(level(id) > 13)
+			throw new IllegalArgumentException("A 32-bit packed address holds at most 13 layers.");
+		return (int)(toPacked64(id) >>> 32);
+	}
+	/**
+	 * Converts an address to a cell id.
+	 * @param address The address, see {@link Subtriangle#address}.  The length must be in the range [1,{@link #MaxLevel}].
+	 * @return The cell id.
+	 */
+	public static long fromAddress(byte[] address) {
+		if(address == null || address.length < 1 || address.length > MaxLevel)
+			throw new IllegalArgumentException("The length of the address must be in the range [1," + MaxLevel + "].");
+		long output = ((long)address[0] << 60) | lsbForLevel(1);
+		for(int i=1; i<address.length; i++)
+			output = child(output, address[i]);
+		return output;
+	}
+	/**
+	 * Converts a cell id to an address.
+	 * @param id The cell id.
+	 * @return The address, see {@link Subtriangle#address}.
+	 */
+	public static byte[] toAddress(long id) {
+		int level = level(id);
+		byte[] output = new byte[level];
+		output[0] = (byte)octant(id);
+		for(int l=2; l<=level; l++)
+			output[l-1] = (byte)digit(id, l);
+		return output;
+	}
+	/**
+	 * Finds the subtriangle containing a coordinate, see {@link Tessellation#locateProjected(float, float, int)}.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param level The layer, in the range [1,{@link #MaxLevel}].
+	 * @return The cell id, or {@link #None} if the coordinate is empty.
+	 */
+	public static long locate(float lat, float lon, int level) {
+		if(level < 1 || level > MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + MaxLevel + "].");
+		long packed = Tessellation.locateProjected(lat, lon, level);
+		return packed == 0L ? None : fromPacked64(packed);
+	}
+}
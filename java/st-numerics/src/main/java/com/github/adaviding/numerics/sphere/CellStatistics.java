@@ -0,0 +1,362 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The count, sum, sum of squares, minimum and maximum of values per subtriangle of one layer.
+ *
+ * The aggregates are held in an open-addressing hash table of parallel primitive arrays keyed by {@link CellId cell
+ * id}, so no object is allocated per cell or per value.  A {@link CellAggregator} accumulates into several tables,
+ * each guarded by its own lock and shared by the threads whose ids hash to it, and tables are combined with
+ * {@link #merge(CellStatistics)}, which is associative and commutative up to the rounding of the sums.
+ *
+ * The binary form written by {@link #encode(ByteBuffer)} lets separate processes merge their partial results.  The
+ * cells are written in ascending order, with their ids delta encoded as {@link Varint varints} after dividing them by
+ * the sentinel bit of the layer, which is 2^s:
+ * {@literal
+ * 		1 byte   --> the layer
+ * 		varint   --> the number of cells, n
+ * 		n times:
+ * 			varint   --> (ids[i] - ids[i-1]) >>> s, where ids[-1] is 0
+ * 			varint   --> the count
+ * 			double x4 --> the sum, the sum of squares, the minimum and the maximum, in the byte order of the buffer
+ * }
+ * Instances are not thread safe.
+ */
+public final class CellStatistics
+{
+	/**
+	 * The capacity of a table constructed without one.
+	 */
+	private static final int DefaultCapacity = 16;
+	/**
+	 * The multiplier of Fibonacci hashing, 2^64 divided by the golden ratio.  Cell ids of one layer differ only in
+	 * their high bits, so the hash is taken from the high bits of the product.
+	 */
+	private static final long Golden = 0x9E3779B97F4A7C15L;
+
+	private final int level;
+	/**
+	 * The cell ids, or {@link CellId#None} for an empty slot.
+	 */
+	private long[] keys;
+	private long[] counts;
+	private double[] sums;
+	private double[] squares;
+	private double[] mins;
+	private double[] maxs;
+	private int size;
+	/**
+	 * 64 minus the base-2 logarithm of the number of slots.
+	 */
+	private int shift;
+
+	/**
+	 * Constructs an empty table.
+	 * @param level The layer of the cells, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public CellStatistics(int level) {
+		this(level, DefaultCapacity);
+	}
+	/**
+	 * Constructs an empty table.
+	 * @param level The layer of the cells, in the range [1,{@link CellId#MaxLevel}].
+	 * @param capacity The number of cells the table can hold before it is grown.
+	 */
+	public CellStatistics(int level, int capacity) {
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+		if(capacity < 0 || capacity > 1 << 28)
+			throw new IllegalArgumentException("The capacity must be in the range [0," + (1 << 28) + "].");
+		this.level = level;
+		this.allocate(Math.max(2, Integer.highestOneBit(Math.max(1, capacity)) << 2));
+	}
+	/**
+	 * Gets the layer of the cells.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Gets the number of cells that hold at least one value.
+	 * @return The number of cells.
+	 */
+	public int size() {
+		return this.size;
+	}
+	/**
+	 * Adds a value to a cell.
+	 * @param cell The cell id, at the layer of the table.
+	 * @param value The value.  NaN is ignored.
+	 */
+	public void add(long cell, double value) {
+		if(!CellId.isValid(cell) || CellId.level(cell) != this.level)
+			throw new IllegalArgumentException("The cell must be valid and at layer " + this.level + ".");
+		if(!Double.isNaN(value))
+			this.accumulate(cell, value);
+	}
+	/**
+	 * Adds the aggregates of another table to this one.
+	 * @param other The other table, at the same layer, which is not modified.
+	 */
+	public void merge(CellStatistics other) {
+		if(other.level != this.level)
+			throw new IllegalArgumentException("The table must have layer " + this.level + ".");
+		for(int i=0; i<other.keys.length; i++)
+			if(other.keys[i] != CellId.None)
+				this.accumulate(other.keys[i], other.counts[i], other.sums[i], other.squares[i], other.mins[i], other.maxs[i]);
+	}
+	/**
+	 * Gets the cells that hold at least one value.
+	 * @return The cell ids, in ascending order.
+	 */
+	public long[] cellIds() {
+		long[] output = new long[this.size];
+		int n = 0;
+		for(long key : this.keys)
+			if(key != CellId.None)
+				output[n++] = key;
+		Arrays.sort(output);
+		return output;
+	}
+	/**
+	 * Gets the number of values of a cell.
+	 * @param cell The cell id.
+	 * @return The count, which is 0 if the cell holds no value.
+	 */
+	public long count(long cell) {
+		int i = this.find(cell);
+		return i < 0 ? 0L : this.counts[i];
+	}
+	/**
+	 * Gets the sum of the values of a cell.
+	 * @param cell The cell id.
+	 * @return The sum, which is 0 if the cell holds no value.
+	 */
+	public double sum(long cell) {
+		int i = this.find(cell);
+		return i < 0 ? 0.0 : this.sums[i];
+	}
+	/**
+	 * Gets the sum of the squares of the values of a cell.
+	 * @param cell The cell id.
+	 * @return The sum of squares, which is 0 if the cell holds no value.
+	 */
+	public double sumOfSquares(long cell) {
+		int i = this.find(cell);
+		return i < 0 ? 0.0 : this.squares[i];
+	}
+	/**
+	 * Gets the least value of a cell.
+	 * @param cell The cell id.
+	 * @return The minimum, or NaN if the cell holds no value.
+	 */
+	public double min(long cell) {
+		int i = this.find(cell);
+		return i < 0 ? Double.NaN : this.mins[i];
+	}
+	/**
+	 * Gets the greatest value of a cell.
+	 * @param cell The cell id.
+	 * @return The maximum, or NaN if the cell holds no value.
+	 */
+	public double max(long cell) {
+		int i = this.find(cell);
+		return i < 0 ? Double.NaN : this.maxs[i];
+	}
+	/**
+	 * Gets the mean of the values of a cell.
+	 * @param cell The cell id.
+	 * @return The mean, or NaN if the cell holds no value.
+	 */
+	public double mean(long cell) {
+		int i = this.find(cell);
+		return i < 0 ? Double.NaN : this.sums[i] / this.counts[i];
+	}
+	/**
+	 * Gets the population variance of the values of a cell, from the sum and the sum of squares.
+	 * @param cell The cell id.
+	 * @return The variance, or NaN if the cell holds no value.
+	 */
+	public double variance(long cell) {
+		int i = this.find(cell);
+		if(i < 0)
+			return Double.NaN;
+		double mean = this.sums[i] / this.counts[i];
+		return Math.max(0.0, this.squares[i] / this.counts[i] - mean * mean);
+	}
+	/**
+	 * Gets the number of bytes written by {@link #encode(ByteBuffer)}.
+	 * @return The length of the binary form.
+	 */
+	public int encodedLength() {
+		long[] ids = this.cellIds();
+		int shift = Long.numberOfTrailingZeros(CellId.lsbForLevel(this.level));
+		long output = 1 + Varint.length(ids.length);
+		long previous = 0L;
+		for(long id : ids) {
+			output += Varint.length((id - previous) >>> shift) + Varint.length(this.counts[this.find(id)]) + 32;
+			previous = id;
+		}
+		if(output > Integer.MAX_VALUE)
+			throw new IllegalStateException("The binary form is longer than an array.");
+		return (int)output;
+	}
+	/**
+	 * Writes the binary form of the table at the position of a buffer, and advances the position.  See the class
+	 * description for the format.
+	 * @param buffer The buffer, with at least {@link #encodedLength()} bytes remaining.
+	 */
+	public void encode(ByteBuffer buffer) {
+		long[] ids = this.cellIds();
+		int shift = Long.numberOfTrailingZeros(CellId.lsbForLevel(this.level));
+		buffer.put((byte)this.level);
+		Varint.write(buffer, ids.length);
+		long previous = 0L;
+		for(long id : ids) {
+			int i = this.find(id);
+			Varint.write(buffer, (id - previous) >>> shift);
+			Varint.write(buffer, this.counts[i]);
+			buffer.putDouble(this.sums[i]);
+			buffer.putDouble(this.squares[i]);
+			buffer.putDouble(this.mins[i]);
+			buffer.putDouble(this.maxs[i]);
+			previous = id;
+		}
+	}
+	/**
+	 * Gets the binary form of the table, see {@link #encode(ByteBuffer)}.
+	 * @return The encoded bytes.
+	 */
+	public byte[] toBytes() {
+		byte[] output = new byte[this.encodedLength()];
+		this.encode(ByteBuffer.wrap(output));
+		return output;
+	}
+	/**
+	 * Reads the binary form of a table at the position of a buffer, and advances the position.  See the class
+	 * description for the format.
+	 * @param buffer The buffer.
+	 * @return The table.
+	 */
+	public static CellStatistics decode(ByteBuffer buffer) {
+		int level = buffer.get();
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("Invalid level " + level + ".");
+		long count = Varint.read(buffer);
+		//	Every cell takes at least 34 bytes, which bounds the allocation for a corrupt count.
+		if(count < 0L || count > buffer.remaining() / 34)
+			throw new IllegalArgumentException("The number of cells exceeds the length of the buffer.");
+
+		int shift = Long.numberOfTrailingZeros(CellId.lsbForLevel(level));
+		CellStatistics output = new CellStatistics(level, (int)count);
+		long previous = 0L;
+		for(long c=0; c<count; c++) {
+			long delta = Varint.read(buffer);
+			long id = previous + (delta << shift);
+			if((delta << shift) >>> shift != delta || id <= previous || !CellId.isValid(id) || CellId.level(id) != level)
+				throw new IllegalArgumentException("The cell ids are invalid or not in ascending order.");
+			long n = Varint.read(buffer);
+			if(n <= 0L)
+				throw new IllegalArgumentException("The count of a cell must be positive.");
+			output.accumulate(id, n, buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+			previous = id;
+		}
+		return output;
+	}
+	/**
+	 * Reads the binary form of a table, see {@link #decode(ByteBuffer)}.
+	 * @param bytes The encoded bytes.
+	 * @return The table.
+	 */
+	public static CellStatistics fromBytes(byte[] bytes) {
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Adds a value to a cell that is known to be valid and at the layer of the table.
+	 */
+	void accumulate(long cell, double value) {
+		int i = this.slot(cell);
+		if(this.keys[i] == CellId.None) {
+			this.insert(i, cell, 1L, value, value * value, value, value);
+			return;
+		}
+		this.counts[i]++;
+		this.sums[i] += value;
+		this.squares[i] += value * value;
+		if(value < this.mins[i])
+			this.mins[i] = value;
+		if(value > this.maxs[i])
+			this.maxs[i] = value;
+	}
+	private void accumulate(long cell, long count, double sum, double squares, double min, double max) {
+		int i = this.slot(cell);
+		if(this.keys[i] == CellId.None) {
+			this.insert(i, cell, count, sum, squares, min, max);
+			return;
+		}
+		this.counts[i] += count;
+		this.sums[i] += sum;
+		this.squares[i] += squares;
+		this.mins[i] = Math.min(this.mins[i], min);
+		this.maxs[i] = Math.max(this.maxs[i], max);
+	}
+	private void insert(int i, long cell, long count, double sum, double squares, double min, double max) {
+		this.keys[i] = cell;
+		this.counts[i] = count;
+		this.sums[i] = sum;
+		this.squares[i] = squares;
+		this.mins[i] = min;
+		this.maxs[i] = max;
+		//	The table is kept at most half full.
+		if(++this.size > this.keys.length >>> 1)
+			this.rehash(this.keys.length << 1);
+	}
+	/**
+	 * Finds the slot of a cell, or the empty slot where it would be inserted.
+	 */
+	private int slot(long cell) {
+		long[] keys = this.keys;
+		int mask = keys.length - 1;
+		int i = (int)((cell * Golden) >>> this.shift);
+		while(keys[i] != cell && keys[i] != CellId.None)
+			i = (i + 1) & mask;
+		return i;
+	}
+	private int find(long cell) {
+		if(cell == CellId.None)
+			return -1;
+		int i = this.slot(cell);
+		return this.keys[i] == cell ? i : -1;
+	}
+	private void allocate(int slots) {
+		this.keys = new long[slots];
+		this.counts = new long[slots];
+		this.sums = new double[slots];
+		this.squares = new double[slots];
+		this.mins = new double[slots];
+		this.maxs = new double[slots];
+		this.shift = 64 - Integer.numberOfTrailingZeros(slots);
+	}
+	private void rehash(int slots) {
+		if(slots <= 0)
+			throw new IllegalStateException("The table cannot hold more than " + (1 << 29) + " cells.");
+		long[] keys = this.keys, counts = this.counts;
+		double[] sums = this.sums, squares = this.squares, mins = this.mins, maxs = this.maxs;
+		this.allocate(slots);
+		for(int j=0; j<keys.length; j++) {
+			if(keys[j] == CellId.None)
+				continue;
+			int i = this.slot(keys[j]);
+			this.keys[i] = keys[j];
+			this.counts[i] = counts[j];
+			this.sums[i] = sums[j];
+			this.squares[i] = squares[j];
+			this.mins[i] = mins[j];
+			this.maxs[i] = maxs[j];
+		}
+	}
+}
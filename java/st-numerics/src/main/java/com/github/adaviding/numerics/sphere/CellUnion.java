@@ -0,0 +1,453 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A region of the sphere represented as a set of subtriangles.  The subtriangles are held as a sorted array of
+ * {@link CellId cell ids}, which is kept normalized:
+ * {@literal
+ * 		1.  The cells are disjoint, i.e. no cell contains another.
+ * 		2.  No four cells are the complete set of children of a parent, which is held instead.
+ * 		3.  The cells are sorted in ascending order of cell id.
+ * }
+ * A normalized union is the unique smallest set of cells covering its region, so two unions are equal exactly when
+ * they cover the same region.  It also means that a cell lies within the region exactly when one cell of the union
+ * contains it.
+ *
+ * The set operations walk the two sorted arrays in step, so they take time linear in the sizes of the inputs and the
+ * output, and the tests of a single cell take logarithmic time.  Instances are immutable.
+ *
+ * The binary form written by {@link #encode(ByteBuffer)} delta encodes the sorted cell ids with {@link Varint varints}.
+ * Every cell id is a multiple of the sentinel bit of the deepest cell, so the ids are first divided by it:
+ * {@literal
+ * 		varint      --> the number of cells, n
+ * 		1 byte      --> the shift s, which is the number of trailing zeros of the deepest cell id (omitted if n = 0)
+ * 		varint      --> ids[0] >>> s
+ * 		n-1 varints --> (ids[i] - ids[i-1]) >>> s
+ * }
+ * Neighboring cells of a covering have nearby ids, so most cells take one or two bytes.
+ */
+public final class CellUnion
+{
+	/**
+	 * The union of no cells.
+	 */
+	public static final CellUnion Empty = new CellUnion(new long[0]);
+
+	/**
+	 * The normalized cell ids.
+	 */
+	private final long[] ids;
+
+	private CellUnion(long[] ids) {
+		this.ids = ids;
+	}
+	/**
+	 * Creates a union from cell ids in any order.  Cells that are contained in other cells are dropped, and complete
+	 * sets of siblings are replaced by their parents.
+	 * @param ids The cell ids, see {@link CellId}.  This array is not modified.
+	 * @return The normalized union.
+	 */
+	public static CellUnion fromCellIds(long[] ids) {
+		long[] sorted = ids.clone();
+		for(long id : sorted)
+			if(!CellId.isValid(id))
+				throw new IllegalArgumentException("Invalid cell id " + id + ".");
+		Arrays.sort(sorted);
+		return normalize(sorted, sorted.length);
+	}
+	/**
+	 * Creates a union from 64-bit packed addresses, such as a covering from {@link Tessellation#cover(Cap, int)}.
+	 * @param packed The packed addresses, see {@link Subtriangle#pack64(byte[])}.  The lengths must be at least 1.
+	 * @return The normalized union.
+	 */
+	public static CellUnion fromPacked64(long[] packed) {
+		long[] sorted = new long[packed.length];
+		for(int i=0; i<packed.length; i++)
+			sorted[i] = CellId.fromPacked64(packed[i]);
+		Arrays.sort(sorted);
+		return normalize(sorted, sorted.length);
+	}
+	/**
+	 * Gets the number of cells.
+	 * @return The number of cells in the normalized union.
+	 */
+	public int size() {
+		return this.ids.length;
+	}
+	/**
+	 * Determines whether the union is empty.
+	 * @return True if the union holds no cells, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return this.ids.length == 0;
+	}
+	/**
+	 * Gets a cell.
+	 * @param i The index, in the range [0,{@link #size()}).
+	 * @return The cell id.
+	 */
+	public long cellId(int i) {
+		return this.ids[i];
+	}
+	/**
+	 * Gets the cells.
+	 * @return A copy of the sorted cell ids.
+	 */
+	public long[] toCellIds() {
+		return this.ids.clone();
+	}
+	/**
+	 * Gets the cells as 64-bit packed addresses.
+	 * @return The packed addresses, see {@link Subtriangle#pack64(byte[])}, in the order of the cell ids.
+	 */
+	public long[] toPacked64() {
+		long[] output = new long[this.ids.length];
+		for(int i=0; i<output.length; i++)
+			output[i] = CellId.toPacked64(this.ids[i]);
+		return output;
+	}
+	/**
+	 * Determines whether a cell lies within the union.
+	 * @param id The cell id.
+	 * @return True if a cell of the union contains the cell or is the cell, false otherwise.
+	 */
+	public boolean contains(long id) {
+		//	Only the cells on either side of the insertion point can contain the cell.
+		int i = Arrays.binarySearch(this.ids, id);
+		if(i >= 0)
+			return true;
+		i = -i - 1;
+		return (i < this.ids.length && CellId.contains(this.ids[i], id)) || (i > 0 && CellId.contains(this.ids[i-1], id));
+	}
+	/**
+	 * Determines whether a cell intersects the union.
+	 * @param id The cell id.
+	 * @return True if a cell of the union contains the cell, is the cell, or lies within the cell, false otherwise.
+	 */
+	public boolean intersects(long id) {
+		int i = Arrays.binarySearch(this.ids, id);
+		if(i >= 0)
+			return true;
+		//	The cell after the insertion point ends after the cell begins, and the cell before it begins before the cell
+		//	ends, so each of them only needs to be tested on the other side.
+		i = -i - 1;
+		return (i < this.ids.length && CellId.rangeMin(this.ids[i]) <= CellId.rangeMax(id))
+				|| (i > 0 && CellId.rangeMax(this.ids[i-1]) >= CellId.rangeMin(id));
+	}
+	/**
+	 * Determines whether another union lies within this union.
+	 * @param other The other union.
+	 * @return True if every cell of the other union lies within this union, false otherwise.
+	 */
+	public boolean contains(CellUnion other) {
+		long[] a = this.ids, b = other.ids;
+		int i = 0;
+		for(long id : b) {
+			while(i < a.length && CellId.rangeMax(a[i]) < CellId.rangeMin(id))
+				i++;
+			if(i == a.length || !CellId.contains(a[i], id))
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Determines whether two unions intersect.
+	 * @param other The other union.
+	 * @return True if a cell of this union intersects a cell of the other union, false otherwise.
+	 */
+	public boolean intersects(CellUnion other) {
+		long[] a = this.ids, b = other.ids;
+		int i = 0, j = 0;
+		while(i < a.length && j < b.length) {
+			if(CellId.rangeMax(a[i]) < CellId.rangeMin(b[j]))
+				i++;
+			else if(CellId.rangeMax(b[j]) < CellId.rangeMin(a[i]))
+				j++;
+			else
+				return true;
+		}
+		return false;
+	}
+	/**
+	 * Computes the union of two unions.
+	 * @param other The other union.
+	 * @return The cells that lie within either union.
+	 */
+	public CellUnion union(CellUnion other) {
+		long[] a = this.ids, b = other.ids;
+		if(b.length == 0)
+			return this;
+		if(a.length == 0)
+			return other;
+		long[] merged = new long[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while(i < a.length && j < b.length)
+			merged[n++] = a[i] <= b[j] ? a[i++] : b[j++];
+		while(i < a.length)
+			merged[n++] = a[i++];
+		while(j < b.length)
+			merged[n++] = b[j++];
+		return normalize(merged, n);
+	}
+	/**
+	 * Computes the intersection of two unions.
+	 * @param other The other union.
+	 * @return The cells that lie within both unions.
+	 */
+	public CellUnion intersection(CellUnion other) {
+		long[] a = this.ids, b = other.ids;
+		long[] output = new long[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while(i < a.length && j < b.length) {
+			if(CellId.rangeMax(a[i]) < CellId.rangeMin(b[j])) {
+				i++;
+			} else if(CellId.rangeMax(b[j]) < CellId.rangeMin(a[i])) {
+				j++;
+			} else if(CellId.contains(a[i], b[j])) {
+				output[n++] = b[j++];
+			} else {
+				output[n++] = a[i++];
+			}
+		}
+		//	Each cell of the output lies within a cell of the other input, so four complete siblings in the output would
+		//	mean four complete siblings in one of the inputs.  The output is therefore already normalized.
+		return new CellUnion(Arrays.copyOf(output, n));
+	}
+	/**
+	 * Computes the difference of two unions.
+	 * @param other The union to remove.
+	 * @return The cells that lie within this union but not within the other union.
+	 */
+	public CellUnion difference(CellUnion other) {
+		long[] a = this.ids, b = other.ids;
+		if(a.length == 0 || b.length == 0)
+			return this;
+		Builder output = new Builder(a.length);
+		int j = 0;
+		for(long id : a) {
+			while(j < b.length && CellId.rangeMax(b[j]) < CellId.rangeMin(id))
+				j++;
+			subtract(id, b, j, output);
+		}
+		return new CellUnion(output.toArray());
+	}
+	/**
+	 * Computes the smallest union of cells no deeper than a layer that contains this union.  Each deeper cell is
+	 * replaced by its ancestor at the layer.
+	 * @param level The layer, in the range [1,{@link CellId#MaxLevel}].
+	 * @return The expanded union, which contains this union.
+	 */
+	public CellUnion expand(int level) {
+		checkLevel(level);
+		long[] output = new long[this.ids.length];
+		int n = 0;
+		for(long id : this.ids) {
+			long cell = CellId.level(id) > level ? CellId.parent(id, level) : id;
+			//	The ancestors of sorted disjoint cells are sorted, but consecutive cells may share an ancestor.
+			if(n == 0 || output[n-1] != cell)
+				output[n++] = cell;
+		}
+		return normalize(output, n);
+	}
+	/**
+	 * Computes the largest union of cells no deeper than a layer that lies within this union.  The cells deeper than
+	 * the layer are dropped.  Because the union is normalized, any cell of the layer that this union covers is already
+	 * held as a cell, or lies within one.
+	 * @param level The layer, in the range [1,{@link CellId#MaxLevel}].
+	 * @return The shrunken union, which lies within this union.
+	 */
+	public CellUnion shrink(int level) {
+		checkLevel(level);
+		long[] output = new long[this.ids.length];
+		int n = 0;
+		for(long id : this.ids)
+			if(CellId.level(id) <= level)
+				output[n++] = id;
+		return n == this.ids.length ? this : new CellUnion(Arrays.copyOf(output, n));
+	}
+
+	/**
+	 * Gets the number of bytes written by {@link #encode(ByteBuffer)}.
+	 * @return The length of the binary form.
+	 */
+	public int encodedLength() {
+		long[] ids = this.ids;
+		int output = Varint.length(ids.length);
+		if(ids.length == 0)
+			return output;
+		int shift = this.shift();
+		output += 1 + Varint.length(ids[0] >>> shift);
+		for(int i=1; i<ids.length; i++)
+			output += Varint.length((ids[i] - ids[i-1]) >>> shift);
+		return output;
+	}
+	/**
+	 * Writes the binary form of the union at the position of a buffer, and advances the position.  See the class
+	 * description for the format.
+	 * @param buffer The buffer, with at least {@link #encodedLength()} bytes remaining.
+	 */
+	public void encode(ByteBuffer buffer) {
+		long[] ids = this.ids;
+		Varint.write(buffer, ids.length);
+		if(ids.length == 0)
+			return;
+		int shift = this.shift();
+		buffer.put((byte)shift);
+		Varint.write(buffer, ids[0] >>> shift);
+		for(int i=1; i<ids.length; i++)
+			Varint.write(buffer, (ids[i] - ids[i-1]) >>> shift);
+	}
+	/**
+	 * Gets the binary form of the union, see {@link #encode(ByteBuffer)}.
+	 * @return The encoded bytes.
+	 */
+	public byte[] toBytes() {
+		byte[] output = new byte[this.encodedLength()];
+		this.encode(ByteBuffer.wrap(output));
+		return output;
+	}
+	/**
+	 * Reads the binary form of a union at the position of a buffer, and advances the position.  See the class
+	 * description for the format.  A union that was not normalized when it was written is normalized.
+	 * @param buffer The buffer.
+	 * @return The union.
+	 */
+	public static CellUnion decode(ByteBuffer buffer) {
+		long count = Varint.read(buffer);
+		if(count == 0L)
+			return Empty;
+		//	Every cell takes at least one byte, which bounds the allocation for a corrupt count.
+		if(count < 0L || count > buffer.remaining())
+			throw new IllegalArgumentException("The number of cells exceeds the length of the buffer.");
+		int shift = buffer.get();
+		if(shift < 0 || shift > 63)
+			throw new IllegalArgumentException("Invalid shift " + shift + ".");
+
+		long[] ids = new long[(int)count];
+		long previous = 0L;
+		for(int i=0; i<ids.length; i++) {
+			long delta = Varint.read(buffer);
+			long id = previous + (delta << shift);
+			if((delta << shift) >>> shift != delta || id <= previous || !CellId.isValid(id))
+				throw new IllegalArgumentException("The cell ids are invalid or not in ascending order.");
+			ids[i] = id;
+			previous = id;
+		}
+		return normalize(ids, ids.length);
+	}
+	/**
+	 * Reads the binary form of a union, see {@link #decode(ByteBuffer)}.
+	 * @param bytes The encoded bytes.
+	 * @return The union.
+	 */
+	public static CellUnion fromBytes(byte[] bytes) {
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof CellUnion && Arrays.equals(this.ids, ((CellUnion)o).ids);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.ids);
+	}
+
+	/**
+	 * Gets the number of trailing zeros shared by all cell ids, which is that of the deepest cell.
+	 */
+	private int shift() {
+		long bits = 0L;
+		for(long id : this.ids)
+			bits |= id;
+		return Long.numberOfTrailingZeros(bits);
+	}
+	/**
+	 * Removes from a cell the cells of b, starting at index j, and appends what remains.  The cell is subdivided only
+	 * where it partially overlaps the cells of b.
+	 */
+	private static void subtract(long id, long[] b, int j, Builder output) {
+		long min = CellId.rangeMin(id), max = CellId.rangeMax(id);
+		if(j == b.length || CellId.rangeMin(b[j]) > max) {
+			//	Nothing to remove.
+			output.add(id);
+			return;
+		}
+		if(CellId.rangeMin(b[j]) <= min && CellId.rangeMax(b[j]) >= max) {
+			//	The cell lies within b[j].
+			return;
+		}
+		for(int k=0; k<4; k++) {
+			long child = CellId.child(id, k);
+			long childMin = CellId.rangeMin(child);
+			while(j < b.length && CellId.rangeMax(b[j]) < childMin)
+				j++;
+			subtract(child, b, j, output);
+		}
+	}
+	/**
+	 * Normalizes sorted cell ids.  Each id is dropped if the previous cell contains it, and otherwise it replaces the
+	 * previous cells that it contains.  Then, while the last three cells and the new cell are siblings, they are
+	 * replaced by their parent.
+	 * @param ids The sorted cell ids, which are overwritten by the output.
+	 * @param length The number of cell ids.
+	 * @return The normalized union.
+	 */
+	private static CellUnion normalize(long[] ids, int length) {
+		int n = 0;
+		for(int i=0; i<length; i++) {
+			long id = ids[i];
+			if(n > 0 && CellId.contains(ids[n-1], id))
+				continue;
+			while(n > 0 && CellId.contains(id, ids[n-1]))
+				n--;
+			while(n >= 3 && areSiblings(ids[n-3], ids[n-2], ids[n-1], id)) {
+				id = CellId.parent(id);
+				n -= 3;
+			}
+			ids[n++] = id;
+		}
+		return new CellUnion(n == ids.length ? ids : Arrays.copyOf(ids, n));
+	}
+	/**
+	 * Determines whether four sorted cells are the complete set of children of a parent.
+	 */
+	private static boolean areSiblings(long a, long b, long c, long d) {
+		long lsb = CellId.lsb(d);
+		if(CellId.level(d) < 2 || CellId.lsb(a) != lsb || CellId.lsb(b) != lsb || CellId.lsb(c) != lsb)
+			return false;
+		long parent = CellId.parent(d);
+		return CellId.parent(a) == parent && CellId.parent(b) == parent && CellId.parent(c) == parent;
+	}
+
+	private static void checkLevel(int level) {
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+	}
+
+	/**
+	 * A growable array of cell ids.
+	 */
+	private static final class Builder
+	{
+		private long[] ids;
+		private int count = 0;
+
+		Builder(int capacity) {
+			this.ids = new long[Math.max(capacity, 16)];
+		}
+
+		void add(long id) {
+			if(this.count == this.ids.length)
+				this.ids = Arrays.copyOf(this.ids, 2 * this.count);
+			this.ids[this.count++] = id;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(this.ids, this.count);
+		}
+	}
+}
@@ -0,0 +1,571 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link PointIndex} that accepts points from many threads while queries run.
+ *
+ * The points are partitioned into stripes by the prefix of their cell ids:  stripe s holds the points within cell s of
+ * the stripe layer, so there are 8 * 4^(layer - 1) stripes, and the stripes are in the order of their cell ids.  Each
+ * stripe has a buffer of pending points guarded by its own lock, so threads that insert points in different stripes
+ * do not contend.  A point is located before the lock is taken, and appending it takes constant time.
+ *
+ * Queries run against a {@link Snapshot}, which holds for each stripe an immutable list of sorted runs, oldest
+ * first.  Reading the snapshot takes no lock, and every query sees the points of exactly one snapshot, searching each
+ * run of each stripe it visits.  {@link #refresh()} publishes a new snapshot.  It holds the locks of all stripes only
+ * while it takes their pending buffers, so the snapshot holds exactly the points added before that moment.  Each
+ * pending buffer is sorted and appended to the runs of its stripe as a new run, so a refresh costs time and memory in
+ * proportion to the pending points, and never copies the points that were already published.  Points are therefore
+ * visible to queries after the next refresh, which is typically called periodically by a background thread.
+ *
+ * Runs are merged by size, as in a log-structured merge tree:  the newest runs of a stripe are merged into one once
+ * the run before them holds no more than {@link #CompactionRatio} times their points.  The runs of a stripe therefore
+ * grow geometrically, so a stripe of n points has O(log n) runs, and each point is copied O(log n) times over the life
+ * of the index.  A refresh that leaves runs to merge starts {@link #compact()} on the common pool, which merges them
+ * without holding any stripe lock, and publishes a snapshot after each merge.  Those snapshots hold the same points
+ * in fewer runs.  A merge holds only the runs it merges and their copy, so the memory it adds is bounded by those
+ * runs rather than by the index.
+ */
+public class ConcurrentPointIndex
+{
+	/**
+	 * The stripe layer of an index constructed without one, which gives 128 stripes.
+	 */
+	public static final int DefaultStripeLevel = 3;
+	/**
+	 * The greatest stripe layer, which gives 8192 stripes.
+	 */
+	public static final int MaxStripeLevel = 6;
+	/**
+	 * The mask of the number of a stripe, in the low bits of a sort key.  It covers the stripes of any stripe layer.
+	 */
+	private static final long StripeMask = (1L << (2*MaxStripeLevel + 1)) - 1L;
+	/**
+	 * The amount by which the distance to the cell of a stripe is lowered, as a chord of the unit sphere.  It covers
+	 * the rounding of the vertices, as in {@link NearestNeighbors}.
+	 */
+	private static final double Slack = 1e-9;
+	/**
+	 * The newest runs of a stripe are merged once the run before them holds no more than this many times their points.
+	 */
+	public static final int CompactionRatio = 2;
+	/**
+	 * The runs of a stripe without points.
+	 */
+	private static final PointIndex[] NoRuns = new PointIndex[0];
+
+	/**
+	 * The points of the index as of one refresh.  Instances are immutable and thread safe.
+	 */
+	public static final class Snapshot
+	{
+		private final ConcurrentPointIndex owner;
+		/**
+		 * The sorted runs of each stripe, oldest first.  These arrays and indices are never modified.
+		 */
+		private final PointIndex[][] stripes;
+		/**
+		 * The views of the runs of each stripe that are searched, see {@link PointIndex#store()}.
+		 */
+		private final PointStore[][] stores;
+		private final int size;
+
+		private Snapshot(ConcurrentPointIndex owner, PointIndex[][] stripes) {
+			this.owner = owner;
+			this.stripes = stripes;
+			this.stores = new PointStore[stripes.length][];
+			int size = 0;
+			for(int s=0; s<stripes.length; s++) {
+				this.stores[s] = new PointStore[stripes[s].length];
+				for(int r=0; r<stripes[s].length; r++) {
+					this.stores[s][r] = stripes[s][r].store();
+					size += stripes[s][r].size;
+				}
+			}
+			this.size = size;
+		}
+		/**
+		 * Gets the number of runs, which is at least the number of stripes that hold points.
+		 * @return The number of sorted runs in the snapshot.
+		 */
+		public int runCount() {
+			int output = 0;
+			for(PointIndex[] runs : this.stripes)
+				output += runs.length;
+			return output;
+		}
+		/**
+		 * Gets the number of points.
+		 * @return The number of points in the snapshot.
+		 */
+		public int size() {
+			return this.size;
+		}
+		/**
+		 * Finds the k points nearest to a coordinate, see {@link NearestNeighbors}.
+		 *
+		 * The stripes are visited in order of the distance to their cells, and the search stops at the first stripe
+		 * that is farther than the k-th nearest point found so far.  The runs of a stripe are searched together, see
+		 * {@link NearestNeighbors}, and the search skips the subtriangles farther than the k-th nearest point so far.
+		 *
+		 * @param lat The latitude of the query in degrees.
+		 * @param lon The longitude of the query in degrees.
+		 * @param k The number of points to find, at least 0.
+		 * @param outPayloads Receives the payloads of the points, nearest first.  The length must be at least k.
+		 * @param outDistances Receives the distances of the points in radians, see
+		 *                     {@link LatLon#distRadians(float, float, float, float)}.  The length must be at least k.
+		 * @return The number of points found, which is k unless the snapshot holds fewer points.  Returns 0 if the
+		 * coordinate is empty.
+		 */
+		public int nearest(float lat, float lon, int k, long[] outPayloads, double[] outDistances) {
+			if(k < 0 || k > outPayloads.length || k > outDistances.length)
+				throw new IllegalArgumentException("The number of points must be in the range [0,length of the outputs].");
+			if(k == 0 || this.size == 0 || Float.isNaN(lat) || Float.isNaN(lon))
+				return 0;
+
+			//	The bound of each stripe, rounded down to make room for the number of the stripe in the low bits.  The
+			//	bounds are not negative, so their bits sort in the same order as their values.
+			double[] q = unitVector(lat, lon);
+			long[] order = new long[this.stripes.length];
+			int n = 0;
+			for(int s=0; s<this.stripes.length; s++) {
+				if(this.stripes[s].length == 0)
+					continue;
+				double bound = Math.max(0.0, this.owner.chordDistance(s, q) - Slack);
+				order[n++] = (Double.doubleToRawLongBits(bound) & ~StripeMask) | s;
+			}
+			Arrays.sort(order, 0, n);
+
+			NearestNeighbors search = NearestNeighbors.local();
+			long[] points = new long[k];
+			double[] distances = new double[k];
+			int[] runs = new int[k];
+			int count = 0;
+			for(int i=0; i<n; i++) {
+				//	The k-th distance as a chord, compared with the bound of the stripe.
+				if(count == k && Double.longBitsToDouble(order[i] & ~StripeMask) > 2.0 * Math.sin(0.5 * outDistances[k - 1]))
+					break;
+				//	Only points nearer than the k-th found so far are wanted from the stripe.
+				int s = (int)(order[i] & StripeMask);
+				double limit = count == k ? outDistances[k - 1] : Double.POSITIVE_INFINITY;
+				int m = search.search(this.stores[s], lat, lon, k, limit, runs, points, distances);
+
+				//	Merge the sorted results of the stripe into the sorted results so far.
+				for(int j=0; j<m; j++) {
+					double d = distances[j];
+					if(count == k && d >= outDistances[k - 1])
+						break;
+					int at = count < k ? count++ : k - 1;
+					while(at > 0 && outDistances[at - 1] > d) {
+						outDistances[at] = outDistances[at - 1];
+						outPayloads[at] = outPayloads[at - 1];
+						at--;
+					}
+					outDistances[at] = d;
+					outPayloads[at] = this.stripes[s][runs[j]].payloads[(int)points[j]];
+				}
+			}
+			return count;
+		}
+		/**
+		 * Finds the points within a distance of a coordinate, see {@link PointIndex#withinRadius(LatLon, double)}.
+		 * @param center The center.
+		 * @param km The distance in kilometers, on a sphere of radius {@link D#EarthRadiusKilometers}.  Must be at least 0.
+		 * @return The payloads of the points, in the order of their cell ids.
+		 */
+		public long[] withinRadius(LatLon center, double km) {
+			double radius = PointIndex.toRadians(km);
+			double[] q = unitVector(center.lat, center.lon);
+			long[] output = new long[16], ids = new long[16];
+			int count = 0;
+			for(int s=0; s<this.stripes.length; s++) {
+				if(this.stripes[s].length == 0 || this.owner.isBeyond(s, q, radius))
+					continue;
+				int first = count;
+				for(PointIndex run : this.stripes[s]) {
+					RadiusQuery query = new RadiusQuery(run.store(), center.lat, center.lon, radius, true);
+					int m = (int)query.run();
+					if(m == 0)
+						continue;
+					if(count + m > output.length) {
+						output = Arrays.copyOf(output, Math.max(count + m, 2 * output.length));
+						ids = Arrays.copyOf(ids, output.length);
+					}
+					//	The points of each run are in the order of their cell ids, so they are merged from the back
+					//	into the points found in the stripe so far.
+					long[] points = query.points();
+					int i = count - 1, j = m - 1;
+					for(int k=count+m-1; j>=0; k--) {
+						int p = (int)points[j];
+						if(i >= first && ids[i] > run.ids[p]) {
+							ids[k] = ids[i];
+							output[k] = output[i--];
+						} else {
+							ids[k] = run.ids[p];
+							output[k] = run.payloads[p];
+							j--;
+						}
+					}
+					count += m;
+				}
+			}
+			return Arrays.copyOf(output, count);
+		}
+		/**
+		 * Counts the points within a distance of a coordinate, see {@link PointIndex#countWithinRadius(LatLon, double)}.
+		 * @param center The center.
+		 * @param km The distance in kilometers, on a sphere of radius {@link D#EarthRadiusKilometers}.  Must be at least 0.
+		 * @return The number of points.
+		 */
+		public int countWithinRadius(LatLon center, double km) {
+			double radius = PointIndex.toRadians(km);
+			double[] q = unitVector(center.lat, center.lon);
+			int output = 0;
+			for(int s=0; s<this.stripes.length; s++) {
+				if(this.stripes[s].length == 0 || this.owner.isBeyond(s, q, radius))
+					continue;
+				for(PointIndex run : this.stripes[s])
+					output += (int)new RadiusQuery(run.store(), center.lat, center.lon, radius, false).run();
+			}
+			return output;
+		}
+	}
+
+	private final int level;
+	private final int stripeLevel;
+	/**
+	 * The pending points of each stripe, guarded by the lock of the stripe.
+	 */
+	private final PointIndex[] pending;
+	private final ReentrantLock[] locks;
+	/**
+	 * The unit vectors of the vertices of the cell of each stripe, stored as (x0,y0,z0,x1,y1,z1,x2,y2,z2).
+	 */
+	private final double[][] roots;
+	/**
+	 * Held while a snapshot is built and published, by a refresh or by a merge of runs.
+	 */
+	private final Object refreshLock = new Object();
+	/**
+	 * Held while runs are merged, so that merges are serialized.
+	 */
+	private final Object compactLock = new Object();
+	/**
+	 * True while a merge of runs is scheduled on the common pool or running there.
+	 */
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Constructs an empty index with {@link #DefaultStripeLevel}.
+	 * @param level The layer at which points are located, in the range [{@link #DefaultStripeLevel},{@link CellId#MaxLevel}].
+	 */
+	public ConcurrentPointIndex(int level) {
+		this(level, DefaultStripeLevel);
+	}
+	/**
+	 * Constructs an empty index.
+	 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+	 * @param stripeLevel The layer of the cells that partition the points into stripes, in the range
+	 *                    [1,{@link #MaxStripeLevel}], and no greater than level.
+	 */
+	public ConcurrentPointIndex(int level, int stripeLevel) {
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+		if(stripeLevel < 1 || stripeLevel > Math.min(level, MaxStripeLevel))
+			throw new IllegalArgumentException("The stripe level must be in the range [1," + Math.min(level, MaxStripeLevel) + "].");
+		this.level = level;
+		this.stripeLevel = stripeLevel;
+
+		int n = 2 << (2*stripeLevel);
+		this.pending = new PointIndex[n];
+		this.locks = new ReentrantLock[n];
+		this.roots = new double[n][9];
+		PointIndex[][] stripes = new PointIndex[n][];
+		CellGeometry geometry = new CellGeometry();
+		for(int s=0; s<n; s++) {
+			this.pending[s] = new PointIndex(level);
+			this.locks[s] = new ReentrantLock();
+			stripes[s] = NoRuns;
+			geometry.vertices(CellId.toPacked64(this.stripeCell(s)), this.roots[s]);
+		}
+		this.snapshot = new Snapshot(this, stripes);
+	}
+	/**
+	 * Gets the layer at which points are located.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Gets the layer of the cells that partition the points into stripes.
+	 * @return The stripe layer.
+	 */
+	public int getStripeLevel() {
+		return this.stripeLevel;
+	}
+	/**
+	 * Adds a point.  The point is visible to queries after the next {@link #refresh()}.  This method is thread safe.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param payload The payload.
+	 * @return True if the point was added, false if the coordinate is empty.
+	 */
+	public boolean add(float lat, float lon, long payload) {
+		double[] u = unitVector(lat, lon);
+		long packed = Tessellation.locateProjectedUnitVector(u[0], u[1], u[2], this.level);
+		if(packed == 0L)
+			return false;
+		long id = CellId.fromPacked64(packed);
+		int s = this.stripe(id);
+		ReentrantLock lock = this.locks[s];
+		lock.lock();
+		try {
+			this.pending[s].append(id, lat, lon, (float)u[0], (float)u[1], (float)u[2], payload);
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+	/**
+	 * Adds arrays of points.  The points are located by the calling thread (or by the common pool, for large arrays),
+	 * and then the lock of each stripe is taken once.  The points are visible to queries after the next
+	 * {@link #refresh()}.  This method is thread safe, but it is not atomic:  a refresh during the call may publish
+	 * the points of some stripes and not others.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.  The length must equal the length of lat.
+	 * @param payloads The payloads.  The length must equal the length of lat.
+	 * @return The number of points added, which excludes those with empty coordinates.
+	 */
+	public int addAll(float[] lat, float[] lon, long[] payloads) {
+		int n = lat.length;
+		if(lon.length != n || payloads.length != n)
+			throw new IllegalArgumentException("The arrays of latitude, longitude and payload must have equal length.");
+		long[] ids = new long[n];
+		float[] xs = new float[n], ys = new float[n], zs = new float[n];
+		ParallelLocator.locate(ForkJoinPool.commonPool(), lat, lon, 0, n, this.level, ids, xs, ys, zs, 0);
+
+		//	Group the points by stripe with a counting sort, so that each lock is taken once.
+		int stripes = this.pending.length;
+		int[] starts = new int[stripes + 1];
+		for(int i=0; i<n; i++) {
+			if(ids[i] != 0L) {
+				ids[i] = CellId.fromPacked64(ids[i]);
+				starts[this.stripe(ids[i]) + 1]++;
+			}
+		}
+		for(int s=0; s<stripes; s++)
+			starts[s + 1] += starts[s];
+		int count = starts[stripes];
+		int[] order = new int[count];
+		int[] next = Arrays.copyOf(starts, stripes);
+		for(int i=0; i<n; i++)
+			if(ids[i] != 0L)
+				order[next[this.stripe(ids[i])]++] = i;
+
+		for(int s=0; s<stripes; s++) {
+			if(starts[s] == starts[s + 1])
+				continue;
+			ReentrantLock lock = this.locks[s];
+			lock.lock();
+			try {
+				PointIndex stripe = this.pending[s];
+				for(int j=starts[s]; j<starts[s + 1]; j++) {
+					int i = order[j];
+					stripe.append(ids[i], lat[i], lon[i], xs[i], ys[i], zs[i], payloads[i]);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return count;
+	}
+	/**
+	 * Gets the number of points that have been added but are not yet visible to queries.  This method is thread safe.
+	 * @return The number of pending points.
+	 */
+	public int pendingSize() {
+		int output = 0;
+		for(int s=0; s<this.pending.length; s++) {
+			ReentrantLock lock = this.locks[s];
+			lock.lock();
+			try {
+				output += this.pending[s].size;
+			} finally {
+				lock.unlock();
+			}
+		}
+		return output;
+	}
+	/**
+	 * Gets the most recently published snapshot.  This method is thread safe and takes no lock.
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot() {
+		return this.snapshot;
+	}
+	/**
+	 * Publishes a snapshot that includes every point added before this call.  The pending points of each stripe become
+	 * a new run, so the cost is proportional to the pending points.  If runs are left to merge, {@link #compact()} is
+	 * started on the common pool.  This method is thread safe:  inserts continue during a refresh, and concurrent
+	 * refreshes are serialized.
+	 * @return The new snapshot, or the current snapshot if no points were pending.
+	 */
+	public Snapshot refresh() {
+		Snapshot output;
+		synchronized(this.refreshLock) {
+			//	Take every pending buffer at one moment.  The locks are taken in ascending order, and an insert holds
+			//	only one lock, so this cannot deadlock.
+			int n = this.pending.length;
+			PointIndex[] taken = new PointIndex[n];
+			int locked = 0;
+			try {
+				for(; locked<n; locked++)
+					this.locks[locked].lock();
+				for(int s=0; s<n; s++) {
+					if(this.pending[s].size == 0)
+						continue;
+					taken[s] = this.pending[s];
+					this.pending[s] = new PointIndex(this.level);
+				}
+			} finally {
+				while(locked > 0)
+					this.locks[--locked].unlock();
+			}
+
+			Snapshot current = this.snapshot;
+			PointIndex[][] stripes = null;
+			for(int s=0; s<n; s++) {
+				if(taken[s] == null)
+					continue;
+				//	The buffer is no longer shared with inserts, and becomes a run once it is sorted.
+				PointIndex run = taken[s];
+				run.sort();
+				run.trimToSize();
+				if(stripes == null)
+					stripes = current.stripes.clone();
+				PointIndex[] runs = Arrays.copyOf(current.stripes[s], current.stripes[s].length + 1);
+				runs[runs.length - 1] = run;
+				stripes[s] = runs;
+			}
+			if(stripes == null)
+				return current;
+			output = new Snapshot(this, stripes);
+			this.snapshot = output;
+		}
+		if(needsCompaction(output))
+			this.compactInBackground();
+		return output;
+	}
+	/**
+	 * Merges the runs of each stripe by size, see the class description, and publishes a snapshot after each merge.
+	 * This is called on the common pool after a refresh, so it need not be called, but it may be called to merge the
+	 * runs at a chosen time.  This method is thread safe:  inserts, refreshes and queries continue during a merge, and
+	 * concurrent merges are serialized.
+	 * @return The snapshot after the last merge.
+	 */
+	public Snapshot compact() {
+		synchronized(this.compactLock) {
+			for(int s=0; s<this.pending.length; s++) {
+				while(true) {
+					//	Only merges replace runs, and they are serialized, so the runs read here stay in place until
+					//	the merge is published.  A refresh may append newer runs in the meantime.
+					PointIndex[] runs = this.snapshot.stripes[s];
+					int from = compactionStart(runs);
+					if(from >= runs.length - 1)
+						break;
+					int size = 0;
+					for(int r=from; r<runs.length; r++)
+						size += runs[r].size;
+					PointIndex merged = new PointIndex(this.level, size);
+					for(int r=from; r<runs.length; r++)
+						merged.mergeAll(runs[r]);
+
+					synchronized(this.refreshLock) {
+						Snapshot current = this.snapshot;
+						PointIndex[] now = current.stripes[s];
+						PointIndex[] replaced = new PointIndex[from + 1 + now.length - runs.length];
+						System.arraycopy(now, 0, replaced, 0, from);
+						replaced[from] = merged;
+						System.arraycopy(now, runs.length, replaced, from + 1, now.length - runs.length);
+						PointIndex[][] stripes = current.stripes.clone();
+						stripes[s] = replaced;
+						this.snapshot = new Snapshot(this, stripes);
+					}
+				}
+			}
+			return this.snapshot;
+		}
+	}
+
+	/**
+	 * Finds the first of the newest runs of a stripe that are merged, see {@link #CompactionRatio}.
+	 * @return The index of the first run to merge, which is the last run (or -1 if there are none) if none are merged.
+	 */
+	private static int compactionStart(PointIndex[] runs) {
+		int from = runs.length - 1;
+		long size = from < 0 ? 0L : runs[from].size;
+		while(from > 0 && runs[from - 1].size <= CompactionRatio * size)
+			size += runs[--from].size;
+		return from;
+	}
+	private static boolean needsCompaction(Snapshot snapshot) {
+		for(PointIndex[] runs : snapshot.stripes)
+			if(compactionStart(runs) < runs.length - 1)
+				return true;
+		return false;
+	}
+	/**
+	 * Starts {@link #compact()} on the common pool, unless it is already scheduled or running.
+	 */
+	private void compactInBackground() {
+		if(!this.compacting.compareAndSet(false, true))
+			return;
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ConcurrentPointIndex.this.compact();
+				} finally {
+					ConcurrentPointIndex.this.compacting.set(false);
+				}
+				//	A refresh during the merge did not start another one, so its runs are checked here.
+				if(needsCompaction(ConcurrentPointIndex.this.snapshot))
+					ConcurrentPointIndex.this.compactInBackground();
+			}
+		});
+	}
+	private int stripe(long id) {
+		return (int)(id >>> (62 - 2*this.stripeLevel));
+	}
+	private long stripeCell(int s) {
+		return ((long)s << (62 - 2*this.stripeLevel)) | CellId.lsbForLevel(this.stripeLevel);
+	}
+	/**
+	 * Computes the distance from a unit vector to the cell of a stripe, as a chord of the unit sphere.
+	 */
+	private double chordDistance(int s, double[] q) {
+		return NearestNeighbors.chordDistance(q[0], q[1], q[2], this.roots[s]);
+	}
+	/**
+	 * Determines whether the cell of a stripe lies beyond a distance of a unit vector, by more than any rounding.
+	 */
+	private boolean isBeyond(int s, double[] q, double radius) {
+		return radius < Math.PI && this.chordDistance(s, q) - Slack > 2.0 * Math.sin(0.5 * radius);
+	}
+	/**
+	 * Computes a unit vector, as in {@link Tessellation#locateProjected(float, float, int)}.
+	 */
+	private static double[] unitVector(float lat, float lon) {
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		return new double[] { cLat * Math.sin(rlon), Math.sin(rlat), -cLat * Math.cos(rlon) };
+	}
+}
@@ -0,0 +1,327 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.F;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads the coordinates of the rows of a delimited text file, such as CSV or TSV, on multiple threads.
+ *
+ * The file is split into segments of about {@link #SegmentSize} bytes that end at line boundaries.  Each segment is
+ * memory-mapped and parsed by a task of a {@link ForkJoinPool}: the fields of a line are found by scanning for the
+ * delimiter, and the latitude and longitude are parsed from their bytes by {@link F#tryParse(ByteBuffer, int, int)},
+ * which neither allocates nor throws.  A value that is not a decimal number yields NaN, so a row with a malformed
+ * coordinate is kept with an empty coordinate rather than failing the load.
+ *
+ * The payload of a row is the offset of its first byte in the file, so the caller can read the rest of the row later.
+ * Lines end with "\n" or "\r\n", and empty lines are skipped.  A field may be surrounded by double quotes, but a
+ * quoted field must not contain the delimiter or a line break.  The text must be in an encoding that is ASCII for
+ * digits, signs, delimiters and line breaks, such as UTF-8.
+ */
+public final class DelimitedPointLoader
+{
+	/**
+	 * The length of a segment of the file parsed by one task, in bytes.  A segment is extended to the end of its last
+	 * line.
+	 */
+	public static final int SegmentSize = 1 << 26;
+	/**
+	 * The number of bytes read at a time while searching for a line break.
+	 */
+	private static final int ScanSize = 1 << 12;
+
+	/**
+	 * The coordinates of the rows of a file.
+	 */
+	public static final class Rows
+	{
+		/**
+		 * The latitudes in degrees, NaN where the field is missing or malformed.
+		 */
+		public final float[] lat;
+		/**
+		 * The longitudes in degrees, NaN where the field is missing or malformed.
+		 */
+		public final float[] lon;
+		/**
+		 * The offsets of the rows in the file, in bytes.
+		 */
+		public final long[] offsets;
+
+		Rows(float[] lat, float[] lon, long[] offsets) {
+			this.lat = lat;
+			this.lon = lon;
+			this.offsets = offsets;
+		}
+		/**
+		 * Gets the number of rows.
+		 * @return The number of rows.
+		 */
+		public int size() {
+			return this.lat.length;
+		}
+	}
+
+	private final byte delimiter;
+	private final int latColumn;
+	private final int lonColumn;
+	private final boolean header;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Constructs a loader that parses on the threads of the common pool.
+	 * @param delimiter The delimiter of the fields, such as ',' or '\t'.
+	 * @param latColumn The index of the field of the latitude, from 0.
+	 * @param lonColumn The index of the field of the longitude, from 0.
+	 * @param header True if the first line is a header, which is skipped.
+	 */
+	public DelimitedPointLoader(char delimiter, int latColumn, int lonColumn, boolean header) {
+		this(delimiter, latColumn, lonColumn, header, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Constructs a loader.
+	 * @param delimiter The delimiter of the fields, such as ',' or '\t'.  It must be an ASCII character other than a
+	 *                  line break or a double quote.
+	 * @param latColumn The index of the field of the latitude, from 0.
+	 * @param lonColumn The index of the field of the longitude, from 0.
+	 * @param header True if the first line is a header, which is skipped.
+	 * @param pool The pool that parses the segments.
+	 */
+	public DelimitedPointLoader(char delimiter, int latColumn, int lonColumn, boolean header, ForkJoinPool pool) {
+		if(delimiter >= 128 || delimiter == '\n' || delimiter == '\r' || delimiter == '"')
+			throw new IllegalArgumentException("The delimiter must be an ASCII character other than a line break or a quote.");
+		if(latColumn < 0 || lonColumn < 0 || latColumn == lonColumn)
+			throw new IllegalArgumentException("The columns must be distinct and not negative.");
+		this.delimiter = (byte)delimiter;
+		this.latColumn = latColumn;
+		this.lonColumn = lonColumn;
+		this.header = header;
+		this.pool = pool;
+	}
+	/**
+	 * Reads the coordinates of every row of a file into arrays.
+	 * @param path The path of the file.
+	 * @return The rows, in the order of the file.
+	 * @throws IOException If the file cannot be read, or has more rows than an array can hold.
+	 */
+	public Rows read(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long[] bounds = this.segments(channel);
+			Segment[] segments = this.parse(channel, bounds, 0, bounds.length - 1);
+			long total = 0;
+			for(Segment segment : segments)
+				total += segment.size;
+			if(total > Integer.MAX_VALUE - 8)
+				throw new IOException("The file has more rows than an array can hold.");
+
+			int n = (int)total;
+			float[] lat = new float[n], lon = new float[n];
+			long[] offsets = new long[n];
+			int at = 0;
+			for(Segment segment : segments) {
+				System.arraycopy(segment.lat, 0, lat, at, segment.size);
+				System.arraycopy(segment.lon, 0, lon, at, segment.size);
+				System.arraycopy(segment.offsets, 0, offsets, at, segment.size);
+				at += segment.size;
+			}
+			return new Rows(lat, lon, offsets);
+		} finally {
+			channel.close();
+		}
+	}
+	/**
+	 * Adds every row of a file to a builder, with the offset of the row as its payload.  Segments are parsed a few at
+	 * a time, as many as the pool has threads, and added in the order of the file, so the memory taken by the loader
+	 * does not depend on the length of the file.
+	 * @param path The path of the file.
+	 * @param builder The builder, which drops the rows with empty coordinates.
+	 * @return The number of rows read.
+	 * @throws IOException If the file cannot be read, or the builder cannot spill a run.
+	 */
+	public long load(Path path, BulkPointIndexBuilder builder) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long[] bounds = this.segments(channel);
+			int count = bounds.length - 1, batch = Math.max(1, this.pool.getParallelism());
+			long output = 0;
+			for(int start=0; start<count; start+=batch) {
+				for(Segment segment : this.parse(channel, bounds, start, Math.min(count, start + batch))) {
+					builder.addAll(segment.lat, segment.lon, segment.offsets, 0, segment.size);
+					output += segment.size;
+				}
+			}
+			return output;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Splits a file into segments that end at line boundaries.
+	 * @return The offsets of the segments, followed by the length of the file.  The first offset is after the header.
+	 */
+	private long[] segments(FileChannel channel) throws IOException {
+		long length = channel.size();
+		long start = this.header ? lineEnd(channel, 0, length) : 0;
+		long[] output = new long[16];
+		int n = 0;
+		output[n++] = start;
+		while(start < length) {
+			long end = start + SegmentSize >= length ? length : lineEnd(channel, start + SegmentSize - 1, length);
+			if(n == output.length)
+				output = Arrays.copyOf(output, 2 * n);
+			output[n++] = end;
+			start = end;
+		}
+		return Arrays.copyOf(output, n);
+	}
+	/**
+	 * Finds the end of the line that contains a byte.
+	 * @return The offset after the line break, or the length of the file if there is none.
+	 */
+	private static long lineEnd(FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(ScanSize);
+		while(position < length) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if(n <= 0)
+				break;
+			for(int i=0; i<n; i++)
+				if(buffer.get(i) == '\n')
+					return position + i + 1;
+			position += n;
+		}
+		return length;
+	}
+	/**
+	 * Parses a range of the segments of a file.
+	 */
+	private Segment[] parse(FileChannel channel, long[] bounds, int start, int end) throws IOException {
+		Segment[] output = new Segment[end - start];
+		for(int s=start; s<end; s++) {
+			long size = bounds[s + 1] - bounds[s];
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("A line at offset " + bounds[s] + " is too long.");
+			output[s - start] = new Segment(channel.map(FileChannel.MapMode.READ_ONLY, bounds[s], size), bounds[s]);
+		}
+		if(output.length == 0)
+			return output;
+		if(output.length == 1)
+			this.parse(output[0]);
+		else
+			this.pool.invoke(new ParseTask(this, output, 0, output.length));
+		return output;
+	}
+	/**
+	 * Parses the lines of a segment.
+	 */
+	private void parse(Segment segment) {
+		MappedByteBuffer b = segment.buffer;
+		byte delimiter = this.delimiter;
+		int length = b.limit();
+		int i = 0;
+		while(i < length) {
+			int line = i, field = 0, fieldStart = i;
+			float lat = Float.NaN, lon = Float.NaN;
+			for(; ; i++) {
+				byte c = i < length ? b.get(i) : (byte)'\n';
+				if(c != delimiter && c != '\n')
+					continue;
+				int fieldEnd = i;
+				if(c == '\n' && fieldEnd > fieldStart && b.get(fieldEnd - 1) == '\r')
+					fieldEnd--;
+				if(field == this.latColumn)
+					lat = parseField(b, fieldStart, fieldEnd);
+				else if(field == this.lonColumn)
+					lon = parseField(b, fieldStart, fieldEnd);
+				if(c == '\n')
+					break;
+				field++;
+				fieldStart = i + 1;
+			}
+			//	A line without any byte but its line break is skipped.
+			if(field > 0 || i > line && !(i == line + 1 && b.get(line) == '\r'))
+				segment.append(lat, lon, segment.offset + line);
+			i++;
+		}
+		segment.buffer = null;
+	}
+	private static float parseField(ByteBuffer b, int start, int end) {
+		if(end - start >= 2 && b.get(start) == '"' && b.get(end - 1) == '"') {
+			start++;
+			end--;
+		}
+		return F.tryParse(b, start, end);
+	}
+
+	/**
+	 * A segment of a file, and the rows parsed from it.
+	 */
+	private static final class Segment
+	{
+		MappedByteBuffer buffer;
+		final long offset;
+		float[] lat;
+		float[] lon;
+		long[] offsets;
+		int size;
+
+		Segment(MappedByteBuffer buffer, long offset) {
+			this.buffer = buffer;
+			this.offset = offset;
+			//	A guess of the number of rows, which is grown if the rows are shorter.
+			int capacity = Math.max(16, buffer.limit() / 48);
+			this.lat = new float[capacity];
+			this.lon = new float[capacity];
+			this.offsets = new long[capacity];
+		}
+		void append(float lat, float lon, long offset) {
+			if(this.size == this.lat.length) {
+				int n = this.size + (this.size >>> 1);
+				this.lat = Arrays.copyOf(this.lat, n);
+				this.lon = Arrays.copyOf(this.lon, n);
+				this.offsets = Arrays.copyOf(this.offsets, n);
+			}
+			this.lat[this.size] = lat;
+			this.lon[this.size] = lon;
+			this.offsets[this.size++] = offset;
+		}
+	}
+
+	private static final class ParseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final DelimitedPointLoader loader;
+		private final Segment[] segments;
+		private final int start;
+		private final int end;
+
+		ParseTask(DelimitedPointLoader loader, Segment[] segments, int start, int end) {
+			this.loader = loader;
+			this.segments = segments;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if(end - start <= 1) {
+				if(end > start)
+					loader.parse(segments[start]);
+				return;
+			}
+			int half = (start + end) >>> 1;
+			invokeAll(new ParseTask(loader, segments, start, half), new ParseTask(loader, segments, half, end));
+		}
+	}
+}
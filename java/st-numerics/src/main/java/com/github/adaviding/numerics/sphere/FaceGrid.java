@@ -0,0 +1,126 @@
+package com.github.adaviding.numerics.sphere;
+
+/**
+ * Integer coordinates of subtriangles on the face of their octant.
+ *
+ * At layer L each octant is divided into a triangular grid with n = 2^(L-1) divisions along each edge.  A point on the
+ * face of the octant has barycentric coordinates (a,b,c) with respect to the octant vertices 0, 1 and 2, where
+ * a + b + c = 1.  A subtriangle is identified by the integer coordinates (i,j,k) = (floor(n*a), floor(n*b), floor(n*c))
+ * of the points inside it.  The subtriangle is "upright" (oriented like its octant) if i + j + k = n - 1, and it is
+ * "inverted" if i + j + k = n - 2.
+ *
+ * The vertices of a subtriangle are grid points (p,q,r) with p + q + r = n, in the order of {@link Subtriangle#vertices}:
+ * {@literal
+ * 		upright  --> (i+1, j,   k  ), (i,   j+1, k  ), (i,   j,   k+1)
+ * 		inverted --> (i,   j+1, k+1), (i+1, j+1, k  ), (i+1, j,   k+1)
+ * }
+ *
+ * The children of (i,j,k) are (2i,2j,2k) plus an offset that depends on the digit and the orientation of the parent:
+ * {@literal
+ * 		digit     upright    inverted
+ * 		0 -->     (0,0,0)    (1,1,1)
+ * 		1 -->     (1,0,0)    (0,1,1)
+ * 		2 -->     (0,1,0)    (1,1,0)
+ * 		3 -->     (0,0,1)    (1,0,1)
+ * }
+ */
+public final class FaceGrid
+{
+	/**
+	 * The child offsets (i,j,k) packed as 3 bits (i << 2 | j << 1 | k), indexed by digit, for upright parents.
+	 */
+	private static final int[] UprightOffsets = { 0, 4, 2, 1 };
+	/**
+	 * The child offsets (i,j,k) packed as 3 bits (i << 2 | j << 1 | k), indexed by digit, for inverted parents.
+	 */
+	private static final int[] InvertedOffsets = { 7, 3, 6, 5 };
+	/**
+	 * The digit for each packed offset (i << 2 | j << 1 | k), for upright parents.  Invalid offsets map to -1.
+	 */
+	private static final int[] UprightDigits = { 0, 3, 2, -1, 1, -1, -1, -1 };
+	/**
+	 * The digit for each packed offset (i << 2 | j << 1 | k), for inverted parents.  Invalid offsets map to -1.
+	 */
+	private static final int[] InvertedDigits = { -1, -1, -1, 1, -1, 3, 2, 0 };
+
+	private FaceGrid() {}
+	/**
+	 * Computes the grid coordinates of a subtriangle from its packed address.  This method does not allocate memory.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @param output Receives 4 values:  the octant, i, j and k.
+	 */
+	public static void fromPacked(long packed, int[] output) {
+		int level = (int)(packed >>> 59);
+		if(level < 1)
+			throw new IllegalArgumentException("The address must identify an octant or one of its subtriangles.");
+		int i = 0, j = 0, k = 0;
+		boolean upright = true;
+		int shift = 54;
+		for(int l=1; l<level; l++) {
+			int digit = (int)(packed >>> shift) & 3;
+			int offset = upright ? UprightOffsets[digit] : InvertedOffsets[digit];
+			i = (i << 1) | (offset >> 2);
+			j = (j << 1) | ((offset >> 1) & 1);
+			k = (k << 1) | (offset & 1);
+			if(digit == 0)
+				upright = !upright;
+			shift -= 2;
+		}
+		output[0] = (int)(packed >>> 56) & 7;
+		output[1] = i;
+		output[2] = j;
+		output[3] = k;
+	}
+	/**
+	 * Computes the packed address of a subtriangle from its grid coordinates.  This method does not allocate memory.
+	 * @param level The length of the address, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @param octant The octant, in the range [0,8).
+	 * @param i The grid coordinate along vertex 0 of the octant.
+	 * @param j The grid coordinate along vertex 1 of the octant.
+	 * @param k The grid coordinate along vertex 2 of the octant.
+	 * @return The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.
+	 */
+	public static long toPacked(int level, int octant, int i, int j, int k) {
+		if(!isValid(level, i, j, k))
+			throw new IllegalArgumentException("The grid coordinates do not identify a subtriangle.");
+		long output = ((long)level << 59) | ((long)octant << 56);
+		boolean upright = true;
+		int shift = 54;
+		for(int l=1; l<level; l++) {
+			int s = level - 1 - l;
+			int offset = (((i >> s) & 1) << 2) | (((j >> s) & 1) << 1) | ((k >> s) & 1);
+			int digit = upright ? UprightDigits[offset] : InvertedDigits[offset];
+			output |= (long)digit << shift;
+			if(digit == 0)
+				upright = !upright;
+			shift -= 2;
+		}
+		return output;
+	}
+	/**
+	 * Determines whether the grid coordinates identify a subtriangle at the given layer.
+	 * @param level The layer, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @param i The grid coordinate along vertex 0 of the octant.
+	 * @param j The grid coordinate along vertex 1 of the octant.
+	 * @param k The grid coordinate along vertex 2 of the octant.
+	 * @return True if the coordinates identify a subtriangle, false otherwise.
+	 */
+	public static boolean isValid(int level, int i, int j, int k) {
+		if(level < 1 || level > Tessellation.MaxDepth || i < 0 || j < 0 || k < 0)
+			return false;
+		int sum = i + j + k;
+		int n = 1 << (level - 1);
+		return sum == n - 1 || sum == n - 2;
+	}
+	/**
+	 * Determines whether a subtriangle is oriented like its octant.
+	 * @param level The layer, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @param i The grid coordinate along vertex 0 of the octant.
+	 * @param j The grid coordinate along vertex 1 of the octant.
+	 * @param k The grid coordinate along vertex 2 of the octant.
+	 * @return True if the subtriangle is upright, false if it is inverted.
+	 */
+	public static boolean isUpright(int level, int i, int j, int k) {
+		return i + j + k == (1 << (level - 1)) - 1;
+	}
+}
@@ -0,0 +1,169 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Iterates over the subtriangles within k steps of a subtriangle, in order of increasing distance.  One step moves to a
+ * subtriangle that shares an edge or a vertex, see {@link Neighbors#allNeighbors(long, long[])}.
+ *
+ * The subtriangles are found by a breadth first search.  An instance keeps its buffers between calls to
+ * {@link #reset(long, int)}, so once the buffers have grown to the size of a ring, iterating allocates no memory.
+ * Instances are not thread safe.
+ */
+public class KRing implements PrimitiveIterator.OfLong
+{
+	/**
+	 * The subtriangles found so far, in the order they are returned.
+	 */
+	private long[] queue = new long[64];
+	/**
+	 * The distance of each subtriangle in the queue.
+	 */
+	private int[] distances = new int[64];
+	private int head = 0;
+	private int tail = 0;
+	private int k = 0;
+	private int distance = -1;
+	/**
+	 * The set of subtriangles in the queue, stored with open addressing.  An empty slot holds 0, which is not a valid
+	 * address of a subtriangle.
+	 */
+	private long[] visited = new long[128];
+	private final long[] neighbors = new long[12];
+	private final int[] cell = new int[4];
+	private final int[] g = new int[3];
+	private final int[] h = new int[3];
+	private final int[] p = new int[3];
+
+	/**
+	 * Constructs an empty iterator.  Call {@link #reset(long, int)} to start iterating.
+	 */
+	public KRing() {}
+	/**
+	 * Constructs an iterator over the subtriangles within k steps of a subtriangle.
+	 * @param packed The 64-bit packed address of the center, see {@link Subtriangle#pack64(byte[])}.
+	 * @param k The maximum number of steps, at least 0.
+	 */
+	public KRing(long packed, int k) {
+		this.reset(packed, k);
+	}
+	/**
+	 * Restarts the iteration from a new center.
+	 * @param packed The 64-bit packed address of the center, see {@link Subtriangle#pack64(byte[])}.  The length must
+	 *               be at least 1.
+	 * @param k The maximum number of steps, at least 0.
+	 */
+	public void reset(long packed, int k) {
+		if(packed >>> 59 == 0)
+			throw new IllegalArgumentException("The address must identify an octant or one of its subtriangles.");
+		if(k < 0)
+			throw new IllegalArgumentException("The number of steps must not be negative.");
+		this.clearVisited();
+		this.head = 0;
+		this.tail = 0;
+		this.k = k;
+		this.distance = -1;
+		this.enqueue(packed, 0);
+	}
+	/**
+	 * Gets the distance of the subtriangle most recently returned by {@link #nextLong()}.
+	 * @return The number of steps from the center, or -1 if no subtriangle has been returned since the last reset.
+	 */
+	public int distance() {
+		return this.distance;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.head < this.tail;
+	}
+
+	@Override
+	public long nextLong() {
+		if(this.head >= this.tail)
+			throw new NoSuchElementException();
+		long id = this.queue[this.head];
+		int d = this.distances[this.head];
+		this.head++;
+		if(d < this.k) {
+			int count = Neighbors.edgeNeighbors(id, this.neighbors, 0, this.cell, this.g, this.h);
+			count += Neighbors.vertexNeighbors(id, this.neighbors, count, this.cell, this.g, this.h, this.p);
+			for(int i=0; i<count; i++)
+				if(this.addVisited(this.neighbors[i]))
+					this.enqueue(this.neighbors[i], d + 1);
+		}
+		this.distance = d;
+		return id;
+	}
+
+	private void enqueue(long id, int d) {
+		if(this.tail == 0)
+			this.addVisited(id);
+		if(this.tail == this.queue.length) {
+			this.queue = Arrays.copyOf(this.queue, 2 * this.tail);
+			this.distances = Arrays.copyOf(this.distances, 2 * this.tail);
+		}
+		this.queue[this.tail] = id;
+		this.distances[this.tail] = d;
+		this.tail++;
+	}
+	/**
+	 * Adds a subtriangle to the visited set.
+	 * @return True if it was added, false if it was already present.
+	 */
+	private boolean addVisited(long id) {
+		if(2 * (this.tail + 1) > this.visited.length)
+			this.growVisited();
+		int mask = this.visited.length - 1;
+		for(int i = slot(id, mask); ; i = (i + 1) & mask) {
+			long v = this.visited[i];
+			if(v == id)
+				return false;
+			if(v == 0L) {
+				this.visited[i] = id;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Doubles the capacity of the visited set.  The entries are inserted again in the order of the queue, which is the
+	 * order of their first insertion.
+	 */
+	private void growVisited() {
+		this.visited = new long[2 * this.visited.length];
+		int mask = this.visited.length - 1;
+		for(int t=0; t<this.tail; t++) {
+			long id = this.queue[t];
+			int i = slot(id, mask);
+			while(this.visited[i] != 0L)
+				i = (i + 1) & mask;
+			this.visited[i] = id;
+		}
+	}
+	/**
+	 * Empties the visited set.  A small set is emptied by removing its entries in the reverse order of insertion, which
+	 * keeps the probe sequence of every remaining entry intact.
+	 */
+	private void clearVisited() {
+		if(4 * this.tail > this.visited.length) {
+			Arrays.fill(this.visited, 0L);
+			return;
+		}
+		int mask = this.visited.length - 1;
+		for(int t=this.tail-1; t>=0; t--) {
+			long id = this.queue[t];
+			int i = slot(id, mask);
+			while(this.visited[i] != id)
+				i = (i + 1) & mask;
+			this.visited[i] = 0L;
+		}
+	}
+
+	private static int slot(long id, int mask) {
+		long x = id * 0x9E3779B97F4A7C15L;
+		return (int)(x ^ (x >>> 32)) & mask;
+	}
+}
@@ -40,11 +40,23 @@ public class LatLon {
      * @return The length (in radians) of the shortest arc connecting two points on the surface of a sphere.
      */
     public static double distRadians(@NotNull LatLon a, @NotNull LatLon b) {
-        double dLon = D.RadiansPerDegree * (b.lon - a.lon);
-        double dLat = D.RadiansPerDegree * (b.lat - a.lat);
+        return distRadians(a.lat, a.lon, b.lat, b.lon);
+    }
+    /**
+     * Computes the distance (in radians) between two points, as {@link #distRadians(LatLon, LatLon)} does, without
+     * allocating memory.  The differences of the coordinates are taken in double precision.
+     * @param aLat The latitude of one of the coordinates, in degrees.
+     * @param aLon The longitude of one of the coordinates, in degrees.
+     * @param bLat The latitude of the other coordinate, in degrees.
+     * @param bLon The longitude of the other coordinate, in degrees.
+     * @return The length (in radians) of the shortest arc connecting two points on the surface of a sphere.
+     */
+    public static double distRadians(float aLat, float aLon, float bLat, float bLon) {
+        double dLon = D.RadiansPerDegree * ((double)bLon - aLon);
+        double dLat = D.RadiansPerDegree * ((double)bLat - aLat);
         double shdlon = Math.sin(0.5 * dLon);
         double shdlat = Math.sin(0.5 * dLat);
-        double x = shdlat * shdlat + Math.cos(D.RadiansPerDegree * a.lat) * Math.cos(D.RadiansPerDegree * b.lat) * shdlon * shdlon;
+        double x = shdlat * shdlat + Math.cos(D.RadiansPerDegree * aLat) * Math.cos(D.RadiansPerDegree * bLat) * shdlon * shdlon;
         return 2.0 * Math.atan2(Math.sqrt(x), Math.sqrt(1.0 - x));
     }
     /**
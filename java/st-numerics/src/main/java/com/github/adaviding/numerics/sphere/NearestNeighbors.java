@@ -0,0 +1,428 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.util.Arrays;
+
+/**
+ * Finds the k points of a {@link PointIndex} nearest to a coordinate.
+ *
+ * The search is best first over the subtriangles of the index.  A queue holds subtriangles ordered by a lower bound of
+ * the distance from the query to any point within them, starting with the eight octants.  The nearest subtriangle is
+ * taken from the queue:  if it holds few points then their distances are computed with
+ * {@link LatLon#distRadians(float, float, float, float)}, and otherwise its four children are added to the queue.
+ * Subtriangles without points are never queued, because the points of each child are a sub-range of the points of its
+ * parent, found by binary search within that range.  The search ends when the k-th nearest distance found so far is no
+ * greater than the bound of the next subtriangle, so a query near dense points descends straight to them.
+ *
+ * The bound is the exact distance to the spherical triangle, measured as a chord of the unit sphere:  0 if the query
+ * lies within the triangle, and otherwise the least distance to an edge or a vertex.  It is lowered by a small slack
+ * that covers the rounding of the vertices, so a point is never pruned because of rounding.
+ *
+ * An instance keeps its queues between searches, so once they have grown a search allocates no memory.  Instances are
+ * not thread safe, so use one per thread.  The index must not be modified during a search.
+ */
+public class NearestNeighbors
+{
+	/**
+	 * A subtriangle holding no more points than this is scanned rather than subdivided.
+	 */
+	private static final int LeafSize = 16;
+	/**
+	 * The amount subtracted from every bound, as a chord of the unit sphere.  This is about 6 micrometers on the Earth,
+	 * which is far larger than the rounding of the vertices and far smaller than any subtriangle.
+	 */
+	private static final double Slack = 1e-12;
+	/**
+	 * The search of each thread, for the indices that search on behalf of their callers.
+	 */
+	private static final ThreadLocal<NearestNeighbors> Local = new ThreadLocal<NearestNeighbors>() {
+		@Override
+		protected NearestNeighbors initialValue() {
+			return new NearestNeighbors();
+		}
+	};
+
+	private final PointIndex index;
+	private final CellGeometry geometry = new CellGeometry();
+	private final double[] vertices = new double[9];
+
+	/**
+	 * The subtriangles to visit, as a binary min heap on the bound, with the slot of {@link #ranges} that holds the
+	 * points of each.
+	 */
+	private double[] queueBounds = new double[64];
+	private long[] queueCells = new long[64];
+	private int[] queueSlots = new int[64];
+	private int queueSize;
+	/**
+	 * The points of the queued subtriangles, as a range of each store that is searched:  slot s holds the start and
+	 * the end of the range of store r at 2 (s width + r).  Slots are never reused within a search.
+	 */
+	private long[] ranges = new long[128];
+	private int slotCount;
+	private int width;
+	/**
+	 * The ranges of the subtriangle being subdivided, as in a slot of {@link #ranges}.  Each start is advanced past
+	 * the points of a child as the child is queued.
+	 */
+	private long[] remaining = new long[2];
+	/**
+	 * The store searched by {@link #search(PointStore, float, float, int, long[], double[])}, as an array of one.
+	 */
+	private final PointStore[] single = new PointStore[1];
+
+	/**
+	 * The nearest points found so far, as a binary max heap on the distance.
+	 */
+	private double[] resultDistances = new double[16];
+	private long[] resultPoints = new long[16];
+	private int[] resultStores = new int[16];
+	/**
+	 * The indices found by {@link #search(float, float, int, int[], double[])}, before they are narrowed to ints.
+	 */
+	private long[] points = new long[16];
+	private int resultSize;
+
+	/**
+	 * The unit vector of the query.
+	 */
+	private double qx, qy, qz;
+
+	/**
+	 * Constructs a search over an index.
+	 * @param index The index.
+	 */
+	public NearestNeighbors(PointIndex index) {
+		this.index = index;
+	}
+	/**
+	 * Constructs a search that is not bound to an index, for {@link #search(PointStore, float, float, int, long[], double[])}.
+	 */
+	NearestNeighbors() {
+		this.index = null;
+	}
+	/**
+	 * Gets the search of the calling thread, which is not bound to an index.
+	 * @return The search.
+	 */
+	static NearestNeighbors local() {
+		return Local.get();
+	}
+	/**
+	 * Gets the index that is searched.
+	 * @return The index.
+	 */
+	public PointIndex getIndex() {
+		return this.index;
+	}
+	/**
+	 * Finds the k points nearest to a coordinate.
+	 * @param lat The latitude of the query in degrees.
+	 * @param lon The longitude of the query in degrees.
+	 * @param k The number of points to find, at least 0.
+	 * @param outPoints Receives the indices of the points in the index (see {@link PointIndex#payload(int)}), nearest
+	 *                  first.  The length must be at least k.
+	 * @param outDistances Receives the distances of the points in radians, see
+	 *                     {@link LatLon#distRadians(float, float, float, float)}.  The length must be at least k.
+	 * @return The number of points found, which is k unless the index holds fewer points.  Returns 0 if the
+	 * coordinate is empty.
+	 */
+	public int search(float lat, float lon, int k, int[] outPoints, double[] outDistances) {
+		if(k < 0 || k > outPoints.length)
+			throw new IllegalArgumentException("The number of points must be in the range [0,length of the outputs].");
+		if(this.points.length < k)
+			this.points = new long[k];
+		int n = this.search(this.index.store(), lat, lon, k, this.points, outDistances);
+		for(int i=0; i<n; i++)
+			outPoints[i] = (int)this.points[i];
+		return n;
+	}
+	/**
+	 * Finds the k points of a store nearest to a coordinate, see {@link #search(float, float, int, int[], double[])}.
+	 */
+	int search(PointStore index, float lat, float lon, int k, long[] outPoints, double[] outDistances) {
+		this.single[0] = index;
+		try {
+			return this.search(this.single, lat, lon, k, Double.POSITIVE_INFINITY, null, outPoints, outDistances);
+		} finally {
+			this.single[0] = null;
+		}
+	}
+	/**
+	 * Finds the k points nearest to a coordinate among several stores at the same layer, such as the sorted runs of
+	 * one stripe of a {@link ConcurrentPointIndex}.  The stores are searched in one pass:  each queued subtriangle
+	 * holds its range of points in every store, so its bound is computed once however many stores there are.
+	 * @param stores The stores.
+	 * @param maxDistance The distance in radians beyond which subtriangles are not visited, such as the k-th distance
+	 *                    found so far in other stores.  Fewer than k points are found if the stores hold fewer within
+	 *                    the distance, and points beyond the distance may still be found.
+	 * @param outStores Receives the indices in stores of the stores of the points, nearest first.  May be null if
+	 *                  there is one store.
+	 */
+	int search(PointStore[] stores, float lat, float lon, int k, double maxDistance, int[] outStores, long[] outPoints,
+			double[] outDistances) {
+		if(k < 0 || k > outPoints.length || k > outDistances.length || outStores != null && k > outStores.length)
+			throw new IllegalArgumentException("The number of points must be in the range [0,length of the outputs].");
+		int w = stores.length;
+		long size = 0;
+		for(PointStore store : stores) {
+			store.prepare();
+			size += store.count();
+		}
+		this.queueSize = 0;
+		this.resultSize = 0;
+		this.slotCount = 0;
+		this.width = w;
+		if(k == 0 || size == 0 || Float.isNaN(lat) || Float.isNaN(lon))
+			return 0;
+		if(this.resultDistances.length < k) {
+			this.resultDistances = new double[k];
+			this.resultPoints = new long[k];
+			this.resultStores = new int[k];
+		}
+		if(this.remaining.length < 2 * w)
+			this.remaining = new long[2 * w];
+
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		this.qx = cLat * Math.sin(rlon);
+		this.qy = Math.sin(rlat);
+		this.qz = -cLat * Math.cos(rlon);
+
+		//	The k-th nearest distance found so far, or the greatest distance, as a chord.
+		double maxChord = maxDistance < Math.PI ? 2.0 * Math.sin(0.5 * maxDistance) : Double.POSITIVE_INFINITY;
+		double limit = maxChord;
+
+		long[] remaining = this.remaining;
+		for(int r=0; r<w; r++) {
+			remaining[2*r] = 0;
+			remaining[2*r + 1] = stores[r].count();
+		}
+		long lsb = CellId.lsbForLevel(1);
+		for(int octant=0; octant<8; octant++)
+			this.pushNext(stores, ((long)octant << 60) | lsb, octant == 7, limit);
+
+		int level = stores[0].getLevel();
+		while(this.queueSize > 0 && this.queueBounds[0] <= limit) {
+			long cell = this.queueCells[0];
+			int at = 2 * w * this.queueSlots[0];
+			this.pop();
+
+			long count = 0;
+			for(int r=0; r<w; r++)
+				count += this.ranges[at + 2*r + 1] - this.ranges[at + 2*r];
+			if(count <= LeafSize || CellId.level(cell) == level) {
+				for(int r=0; r<w; r++) {
+					PointStore store = stores[r];
+					for(long i=this.ranges[at + 2*r], end=this.ranges[at + 2*r + 1]; i<end; i++) {
+						double d = LatLon.distRadians(lat, lon, store.latAt(i), store.lonAt(i));
+						if(this.resultSize < k)
+							this.offer(d, r, i);
+						else if(d < this.resultDistances[0])
+							this.replaceTop(d, r, i);
+						else
+							continue;
+						if(this.resultSize == k)
+							limit = Math.min(maxChord, 2.0 * Math.sin(0.5 * this.resultDistances[0]));
+					}
+				}
+				continue;
+			}
+
+			//	The children are in ascending order of cell id, so their points split the ranges of the parent in order.
+			System.arraycopy(this.ranges, at, remaining, 0, 2 * w);
+			for(int c=0; c<4; c++)
+				this.pushNext(stores, CellId.child(cell, c), c == 3, limit);
+		}
+
+		//	Sort the results by taking the farthest from the heap repeatedly.
+		int n = this.resultSize;
+		for(int i=n-1; i>=0; i--) {
+			outDistances[i] = this.resultDistances[0];
+			outPoints[i] = this.resultPoints[0];
+			if(outStores != null)
+				outStores[i] = this.resultStores[0];
+			this.resultSize--;
+			if(i > 0) {
+				this.resultDistances[0] = this.resultDistances[i];
+				this.resultPoints[0] = this.resultPoints[i];
+				this.resultStores[0] = this.resultStores[i];
+				this.siftDownResult(0);
+			}
+		}
+		return n;
+	}
+	/**
+	 * Queues a subtriangle whose points lead the remaining ranges of its parent in every store, and advances the
+	 * remaining ranges past them.  A subtriangle without points, or farther than the limit, is not queued.
+	 * @param last True if the subtriangle is the last child, which takes the rest of the ranges.
+	 */
+	private void pushNext(PointStore[] stores, long cell, boolean last, double limit) {
+		int w = this.width, slot = this.slotCount, at = 2 * w * slot;
+		if(at + 2 * w > this.ranges.length)
+			this.ranges = Arrays.copyOf(this.ranges, Math.max(2 * this.ranges.length, at + 2 * w));
+		long[] ranges = this.ranges, remaining = this.remaining;
+		boolean any = false;
+		for(int r=0; r<w; r++) {
+			long start = remaining[2*r], end = remaining[2*r + 1];
+			long childEnd = last ? end : stores[r].upperBound(CellId.rangeMax(cell), start, end);
+			ranges[at + 2*r] = start;
+			ranges[at + 2*r + 1] = childEnd;
+			remaining[2*r] = childEnd;
+			any |= childEnd > start;
+		}
+		if(!any)
+			return;
+		double bound = this.bound(cell);
+		if(bound <= limit) {
+			this.slotCount++;
+			this.push(bound, cell, slot);
+		}
+	}
+
+	/**
+	 * Computes a lower bound of the distance from the query to a subtriangle, as a chord of the unit sphere.
+	 */
+	private double bound(long cell) {
+		double[] v = this.vertices;
+		this.geometry.vertices(CellId.toPacked64(cell), v);
+		return Math.max(0.0, chordDistance(this.qx, this.qy, this.qz, v) - Slack);
+	}
+	/**
+	 * Computes the distance from a point to a spherical triangle, measured as a chord of the unit sphere.
+	 * @param cx The x-ordinate of the unit vector of the point.
+	 * @param cy The y-ordinate of the unit vector of the point.
+	 * @param cz The z-ordinate of the unit vector of the point.
+	 * @param v The unit vectors of the vertices, as in {@link CellCover#intersects}.
+	 * @return The length of the chord from the point to the nearest point of the triangle, which is 0 if the point
+	 * lies within the triangle.  A chord c spans an arc of 2 asin(c/2) radians.
+	 */
+	static double chordDistance(double cx, double cy, double cz, double[] v) {
+		double min2 = Double.POSITIVE_INFINITY;
+		int positive = 0, negative = 0;
+		for(int i=0; i<9; i+=3) {
+			double dx = cx - v[i], dy = cy - v[i+1], dz = cz - v[i+2];
+			min2 = Math.min(min2, dx*dx + dy*dy + dz*dz);
+
+			int j = i == 6 ? 0 : i + 3;
+			double ax = v[i], ay = v[i+1], az = v[i+2];
+			double bx = v[j], by = v[j+1], bz = v[j+2];
+			double nx = ay*bz - az*by;
+			double ny = az*bx - ax*bz;
+			double nz = ax*by - ay*bx;
+			double cn = cx*nx + cy*ny + cz*nz;
+			if(cn >= 0.0)
+				positive++;
+			if(cn <= 0.0)
+				negative++;
+
+			//	The point of the great circle nearest to c lies between a and b when (a x c).n >= 0 and (c x b).n >= 0.
+			//	Its distance d from c has sin(d) = |c.n|/|n|, and the squared chord 2 - 2 cos(d) is written without
+			//	cancellation.
+			double acn = (ay*cz - az*cy)*nx + (az*cx - ax*cz)*ny + (ax*cy - ay*cx)*nz;
+			double cbn = (cy*bz - cz*by)*nx + (cz*bx - cx*bz)*ny + (cx*by - cy*bx)*nz;
+			if(acn >= 0.0 && cbn >= 0.0) {
+				double sin2 = Math.min(1.0, cn*cn / (nx*nx + ny*ny + nz*nz));
+				min2 = Math.min(min2, 2.0 * sin2 / (1.0 + Math.sqrt(1.0 - sin2)));
+			}
+		}
+		//	The reflections between octants reverse the order of the vertices in half of them, so the point is inside
+		//	when it lies on the same side of all three edges.
+		if(positive == 3 || negative == 3)
+			return 0.0;
+		return Math.sqrt(min2);
+	}
+
+	private void push(double bound, long cell, int slot) {
+		if(this.queueSize == this.queueBounds.length) {
+			int capacity = 2 * this.queueSize;
+			this.queueBounds = Arrays.copyOf(this.queueBounds, capacity);
+			this.queueCells = Arrays.copyOf(this.queueCells, capacity);
+			this.queueSlots = Arrays.copyOf(this.queueSlots, capacity);
+		}
+		int i = this.queueSize++;
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(this.queueBounds[parent] <= bound)
+				break;
+			this.moveQueue(parent, i);
+			i = parent;
+		}
+		this.queueBounds[i] = bound;
+		this.queueCells[i] = cell;
+		this.queueSlots[i] = slot;
+	}
+	private void pop() {
+		int n = --this.queueSize;
+		if(n == 0)
+			return;
+		double bound = this.queueBounds[n];
+		long cell = this.queueCells[n];
+		int slot = this.queueSlots[n];
+		int i = 0;
+		while(true) {
+			int child = 2*i + 1;
+			if(child >= n)
+				break;
+			if(child + 1 < n && this.queueBounds[child + 1] < this.queueBounds[child])
+				child++;
+			if(bound <= this.queueBounds[child])
+				break;
+			this.moveQueue(child, i);
+			i = child;
+		}
+		this.queueBounds[i] = bound;
+		this.queueCells[i] = cell;
+		this.queueSlots[i] = slot;
+	}
+	private void moveQueue(int from, int to) {
+		this.queueBounds[to] = this.queueBounds[from];
+		this.queueCells[to] = this.queueCells[from];
+		this.queueSlots[to] = this.queueSlots[from];
+	}
+	private void offer(double distance, int store, long point) {
+		int i = this.resultSize++;
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(this.resultDistances[parent] >= distance)
+				break;
+			this.resultDistances[i] = this.resultDistances[parent];
+			this.resultPoints[i] = this.resultPoints[parent];
+			this.resultStores[i] = this.resultStores[parent];
+			i = parent;
+		}
+		this.resultDistances[i] = distance;
+		this.resultPoints[i] = point;
+		this.resultStores[i] = store;
+	}
+	private void replaceTop(double distance, int store, long point) {
+		this.resultDistances[0] = distance;
+		this.resultPoints[0] = point;
+		this.resultStores[0] = store;
+		this.siftDownResult(0);
+	}
+	private void siftDownResult(int i) {
+		int n = this.resultSize;
+		double distance = this.resultDistances[i];
+		long point = this.resultPoints[i];
+		int store = this.resultStores[i];
+		while(true) {
+			int child = 2*i + 1;
+			if(child >= n)
+				break;
+			if(child + 1 < n && this.resultDistances[child + 1] > this.resultDistances[child])
+				child++;
+			if(distance >= this.resultDistances[child])
+				break;
+			this.resultDistances[i] = this.resultDistances[child];
+			this.resultPoints[i] = this.resultPoints[child];
+			this.resultStores[i] = this.resultStores[child];
+			i = child;
+		}
+		this.resultDistances[i] = distance;
+		this.resultPoints[i] = point;
+		this.resultStores[i] = store;
+	}
+}
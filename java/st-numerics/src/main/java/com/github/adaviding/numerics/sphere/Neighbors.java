@@ -0,0 +1,204 @@
+package com.github.adaviding.numerics.sphere;
+
+/**
+ * Finds the neighbors of a subtriangle arithmetically from its packed address, without materializing any part of the
+ * hierarchy.
+ *
+ * The subtriangles of a layer are handled in global coordinates on the octahedron |x| + |y| + |z| = 3n, where
+ * n = 2^(L-1).  The center of the subtriangle with grid coordinates (i,j,k) (see {@link FaceGrid}) lies at
+ * (3i+1, 3j+1, 3k+1) if it is upright, or at (3i+2, 3j+2, 3k+2) if it is inverted, along the signed axes of the octant
+ * vertices.  Every center is an integer point with no zero ordinate, and every vertex is an integer point whose
+ * ordinates are multiples of 3.
+ *
+ * In these coordinates the neighbor across an edge of an upright subtriangle is found by subtracting 2 from the
+ * ordinate of the opposite vertex and adding 1 to the others, and the reverse holds for an inverted subtriangle.  When
+ * the edge lies on the boundary of the octant, the neighbor is instead the mirror image of the subtriangle across the
+ * coordinate plane of the boundary.  The subtriangles around a vertex are the centers at the offsets
+ * (-2,1,1), (2,-1,-1) and their permutations, and an ordinate that is zero at the vertex may take either sign.  Thus
+ * a vertex on the boundary of an octant is shared by 6 subtriangles as usual, and each of the 6 vertices of the
+ * octahedron is shared by 4.
+ */
+public final class Neighbors
+{
+	/**
+	 * The offsets from a vertex to the centers of the subtriangles around it, in the absolute coordinates of an octant.
+	 */
+	private static final int[][] VertexOffsets = {
+			{ -2, 1, 1 }, { 1, -2, 1 }, { 1, 1, -2 },
+			{ 2, -1, -1 }, { -1, 2, -1 }, { -1, -1, 2 }
+	};
+	/**
+	 * The octant vertex along which each vertex of an inverted subtriangle lies short of the center, see {@link FaceGrid}.
+	 */
+	private static final int[] InvertedVertexAxes = { 0, 2, 1 };
+
+	private Neighbors() {}
+	/**
+	 * Finds the 3 subtriangles that share an edge with a subtriangle.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @param output Receives the addresses of the neighbors.  Element m is the neighbor across the edge opposite to
+	 *               vertex m (see {@link Subtriangle#vertices}).  The length must be at least 3.
+	 * @return The number of neighbors, which is 3.
+	 */
+	public static int edgeNeighbors(long packed, long[] output) {
+		return edgeNeighbors(packed, output, 0, new int[4], new int[3], new int[3]);
+	}
+	/**
+	 * Finds the subtriangles that share a vertex, but not an edge, with a subtriangle.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @param output Receives the addresses of the neighbors.  The length must be at least 9.
+	 * @return The number of neighbors:  9, or fewer if the subtriangle touches a vertex of an octant.
+	 */
+	public static int vertexNeighbors(long packed, long[] output) {
+		return vertexNeighbors(packed, output, 0, new int[4], new int[3], new int[3], new int[3]);
+	}
+	/**
+	 * Finds the subtriangles that share an edge or a vertex with a subtriangle.  The first 3 are the edge neighbors,
+	 * in the order of {@link #edgeNeighbors(long, long[])}.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must be at least 1.
+	 * @param output Receives the addresses of the neighbors.  The length must be at least 12.
+	 * @return The number of neighbors:  12, or fewer if the subtriangle touches a vertex of an octant.
+	 */
+	public static int allNeighbors(long packed, long[] output) {
+		int[] cell = new int[4], g = new int[3], h = new int[3], p = new int[3];
+		int count = edgeNeighbors(packed, output, 0, cell, g, h);
+		return count + vertexNeighbors(packed, output, count, cell, g, h, p);
+	}
+
+	/**
+	 * Computes the edge neighbors.  The arrays cell, g and h are scratch space of length 4, 3 and 3.
+	 */
+	static int edgeNeighbors(long packed, long[] output, int offset, int[] cell, int[] g, int[] h) {
+		int level = center(packed, cell, g);
+		boolean upright = Math.abs(g[0]) % 3 == 1;
+		int[] axes = Tessellation.OctantAxes[cell[0] & 3];
+		for(int m=0; m<3; m++) {
+			int a = axes[upright ? m : InvertedVertexAxes[m]];
+			if(upright && Math.abs(g[a]) == 1) {
+				//	The edge lies on the boundary of the octant.
+				h[0] = g[0];	h[1] = g[1];	h[2] = g[2];
+				h[a] = -g[a];
+			} else {
+				int s = upright ? -1 : 1;
+				for(int b=0; b<3; b++)
+					h[b] = g[b] + (g[b] > 0 ? 1 : -1) * (b == a ? 2*s : -s);
+			}
+			output[offset + m] = fromCenter(level, h);
+		}
+		return 3;
+	}
+	/**
+	 * Computes the vertex neighbors.  The arrays cell, g, h and p are scratch space of length 4, 3, 3 and 3.
+	 */
+	static int vertexNeighbors(long packed, long[] output, int offset, int[] cell, int[] g, int[] h, int[] p) {
+		int level = center(packed, cell, g);
+		boolean upright = Math.abs(g[0]) % 3 == 1;
+		int[] axes = Tessellation.OctantAxes[cell[0] & 3];
+		int count = 0;
+		for(int m=0; m<3; m++) {
+			//	The vertex m, see FaceGrid.
+			int a = axes[m];
+			for(int b=0; b<3; b++) {
+				int d = upright ? (b == a ? 2 : -1) : (b == a ? -2 : 1);
+				p[b] = g[b] + (g[b] > 0 ? d : -d);
+			}
+
+			for(int[] d : VertexOffsets) {
+				//	An ordinate that is zero at the vertex must grow, and it may take either sign.
+				int zeros = 0;
+				boolean valid = true;
+				for(int b=0; b<3 && valid; b++) {
+					if(p[b] == 0) {
+						valid = d[b] > 0;
+						zeros |= 1 << b;
+					} else {
+						valid = Math.abs(p[b]) + d[b] > 0;
+					}
+				}
+				if(!valid)
+					continue;
+				//	Enumerate the signs of the zero ordinates.
+				for(int signs = zeros; ; signs = (signs - 1) & zeros) {
+					for(int b=0; b<3; b++) {
+						if(p[b] == 0)
+							h[b] = (signs & (1 << b)) != 0 ? d[b] : -d[b];
+						else
+							h[b] = p[b] > 0 ? p[b] + d[b] : p[b] - d[b];
+					}
+					if(!isCenterOrEdgeNeighbor(g, h, upright)) {
+						long id = fromCenter(level, h);
+						boolean seen = false;
+						for(int i=0; i<count && !seen; i++)
+							seen = output[offset + i] == id;
+						if(!seen)
+							output[offset + count++] = id;
+					}
+					if(signs == 0)
+						break;
+				}
+			}
+		}
+		return count;
+	}
+	/**
+	 * Computes the global coordinates of the center of a subtriangle.
+	 * @param packed The packed address.
+	 * @param cell Scratch space of length 4, which receives the octant and grid coordinates.
+	 * @param g Receives the center.
+	 * @return The length of the address.
+	 */
+	static int center(long packed, int[] cell, int[] g) {
+		FaceGrid.fromPacked(packed, cell);
+		int level = (int)(packed >>> 59);
+		int n = 1 << (level - 1);
+		int delta = cell[1] + cell[2] + cell[3] == n - 1 ? 1 : 2;
+		int[] axes = Tessellation.OctantAxes[cell[0] & 3];
+		int[] signs = Tessellation.OctantSigns[cell[0]];
+		for(int m=0; m<3; m++)
+			g[axes[m]] = signs[axes[m]] * (3*cell[m+1] + delta);
+		return level;
+	}
+	/**
+	 * Computes the packed address of a subtriangle from the global coordinates of its center.
+	 * @param level The length of the address.
+	 * @param g The center.
+	 * @return The packed address.
+	 */
+	static long fromCenter(int level, int[] g) {
+		int octant = Tessellation.octant(g[0], g[1], g[2]);
+		int[] axes = Tessellation.OctantAxes[octant & 3];
+		int a = Math.abs(g[axes[0]]), b = Math.abs(g[axes[1]]), c = Math.abs(g[axes[2]]);
+		int delta = a % 3;
+		return FaceGrid.toPacked(level, octant, (a - delta) / 3, (b - delta) / 3, (c - delta) / 3);
+	}
+	/**
+	 * Determines whether h is the center g, or the center of one of its edge neighbors.  Two subtriangles share an edge
+	 * if they lie in the same octant and their centers differ by an edge offset, or if they are mirror images across
+	 * the boundary of the octant.
+	 */
+	private static boolean isCenterOrEdgeNeighbor(int[] g, int[] h, boolean upright) {
+		int flipAxis = -1, flips = 0, differences = 0;
+		for(int b=0; b<3; b++) {
+			if(h[b] != g[b])
+				differences++;
+			if((h[b] > 0) != (g[b] > 0)) {
+				flips++;
+				flipAxis = b;
+			}
+		}
+		if(differences == 0)
+			return true;
+		if(flips > 0)
+			return flips == 1 && differences == 1 && h[flipAxis] == -g[flipAxis] && upright && Math.abs(g[flipAxis]) == 1;
+		//	Same octant:  one ordinate changes by 2 and the others by 1, away from the center's orientation.
+		int twos = 0;
+		for(int b=0; b<3; b++) {
+			int d = Math.abs(h[b]) - Math.abs(g[b]);
+			if(d == (upright ? -2 : 2))
+				twos++;
+			else if(d != (upright ? 1 : -1))
+				return false;
+		}
+		return twos == 1;
+	}
+}
@@ -0,0 +1,667 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * An index of points keyed by the {@link CellId cell ids} of the subtriangles that contain them, whose columns live
+ * outside of the heap.
+ *
+ * The points are held in the same columns as a {@link PointIndex}, sorted by cell id, but each column is a sequence of
+ * direct byte buffers in the native byte order:
+ * {@literal
+ * 		long  --> the cell id
+ * 		float --> the latitude in degrees
+ * 		float --> the longitude in degrees
+ * 		float --> the unit vector (x,y,z), see LatLon.toUnitVector()
+ * 		long  --> the payload
+ * }
+ * Every buffer but the last one of a column holds {@link #ChunkSize} elements, so the point at index i is read from
+ * buffer i / ChunkSize without any search, and an index may hold more points than an array.  The garbage collector
+ * sees a few objects per column rather than arrays of billions of elements, so it neither copies nor scans the
+ * points.  The searches read the buffers directly, and no point is copied onto the heap to answer a query.
+ *
+ * A sparse directory maps the ancestor of each point at layer {@link #DirectoryLevel} to the index of its first point.
+ * It holds one entry per ancestor that contains points, and narrows the binary searches over long ranges to the points
+ * of one ancestor, so that a search of an index in a mapped file touches few pages, see {@link PointIndexFile}.
+ *
+ * An index is built by a {@link Builder}, which takes the points in ascending order of cell id, and is immutable
+ * afterwards.  Queries are thread safe.  The memory of the buffers is released when the index becomes unreachable and
+ * is collected, and the total is limited by -XX:MaxDirectMemorySize, which defaults to the maximum size of the heap.
+ */
+public final class OffHeapPointIndex
+{
+	/**
+	 * The base-2 logarithm of {@link #ChunkSize}.
+	 */
+	static final int ChunkShift = 24;
+	/**
+	 * The number of elements in each buffer of a column, except the last one.
+	 */
+	public static final int ChunkSize = 1 << ChunkShift;
+	private static final int ChunkMask = ChunkSize - 1;
+	/**
+	 * The number of elements of the first buffer allocated by a {@link Builder}.  The last buffer is doubled until it
+	 * reaches {@link #ChunkSize}, so a small index does not reserve whole chunks.
+	 */
+	private static final int MinimumChunk = 1024;
+	/**
+	 * The layer of the ancestors in the directory, or the layer of the index if that is coarser.  There are at most
+	 * 2^21 ancestors at this layer.
+	 */
+	public static final int DirectoryLevel = 10;
+	/**
+	 * A binary search over no more points than this does not consult the directory.
+	 */
+	private static final long DirectoryThreshold = 1024;
+
+	/**
+	 * A contiguous range of the points of an index, in the order of their cell ids.
+	 */
+	public static final class Slice
+	{
+		/**
+		 * The index of the first point.
+		 */
+		public final long start;
+		/**
+		 * The index after the last point.
+		 */
+		public final long end;
+
+		/**
+		 * Constructs a range.
+		 * @param start The index of the first point.
+		 * @param end The index after the last point.
+		 */
+		public Slice(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+		/**
+		 * Gets the number of points.
+		 * @return The number of points in the range.
+		 */
+		public long size() {
+			return this.end - this.start;
+		}
+		/**
+		 * Determines whether the range is empty.
+		 * @return True if the range holds no points, false otherwise.
+		 */
+		public boolean isEmpty() {
+			return this.end == this.start;
+		}
+	}
+
+	/**
+	 * Builds an index from points in ascending order of cell id.  An instance builds one index and is not thread safe.
+	 */
+	public static final class Builder
+	{
+		private final int level;
+		private Column ids = new Column(3);
+		private Column lats = new Column(2);
+		private Column lons = new Column(2);
+		private Column xs = new Column(2);
+		private Column ys = new Column(2);
+		private Column zs = new Column(2);
+		private Column payloads = new Column(3);
+		private Column prefixes = new Column(3);
+		private Column starts = new Column(3);
+		private final int directoryShift;
+		private long size;
+		private long directorySize;
+		private long last = Long.MIN_VALUE;
+
+		/**
+		 * Constructs a builder of an empty index.
+		 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+		 */
+		public Builder(int level) {
+			if(level < 1 || level > CellId.MaxLevel)
+				throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+			this.level = level;
+			this.directoryShift = directoryShift(level);
+		}
+		/**
+		 * Gets the layer at which points are located.
+		 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+		 */
+		public int getLevel() {
+			return this.level;
+		}
+		/**
+		 * Gets the number of points added so far.
+		 * @return The number of points.
+		 */
+		public long size() {
+			return this.size;
+		}
+		/**
+		 * Adds a point.  The cell id of the point at the layer of the index must be no less than that of the point
+		 * added before it.
+		 * @param lat The latitude in degrees.
+		 * @param lon The longitude in degrees.
+		 * @param payload The payload.
+		 * @return True if the point was added, false if the coordinate is empty.
+		 */
+		public boolean add(float lat, float lon, long payload) {
+			//	Unit vector, as in Tessellation.locateProjected().
+			double rlon = D.RadiansPerDegree * lon;
+			double rlat = D.RadiansPerDegree * lat;
+			double cLat = Math.cos(rlat);
+			double x = cLat * Math.sin(rlon), y = Math.sin(rlat), z = -cLat * Math.cos(rlon);
+			long packed = Tessellation.locateProjectedUnitVector(x, y, z, this.level);
+			if(packed == 0L)
+				return false;
+			this.append(CellId.fromPacked64(packed), lat, lon, (float)x, (float)y, (float)z, payload);
+			return true;
+		}
+		/**
+		 * Adds the points of an in-memory index.  The first cell id of the other index must be no less than that of
+		 * the last point added.
+		 * @param other The other index, at the same layer.  It is sorted, but not otherwise modified.
+		 * @return This builder.
+		 */
+		public Builder addAll(PointIndex other) {
+			if(other.getLevel() != this.level)
+				throw new IllegalArgumentException("The index must have layer " + this.level + ".");
+			other.sort();
+			int n = other.size;
+			if(n == 0)
+				return this;
+			this.checkOrder(other.ids[0]);
+			long base = this.size;
+			this.ensureCapacity(base + n);
+			this.ids.put(base, other.ids, n);
+			this.lats.put(base, other.lats, n);
+			this.lons.put(base, other.lons, n);
+			this.xs.put(base, other.xs, n);
+			this.ys.put(base, other.ys, n);
+			this.zs.put(base, other.zs, n);
+			this.payloads.put(base, other.payloads, n);
+			for(int i=0; i<n; i++)
+				this.index(base + i, other.ids[i]);
+			this.size = base + n;
+			this.last = other.ids[n - 1];
+			return this;
+		}
+		/**
+		 * Builds the index.  The builder cannot be used afterwards.
+		 * @return The index, which holds every point added.
+		 */
+		public OffHeapPointIndex build() {
+			this.checkOpen();
+			OffHeapPointIndex output = new OffHeapPointIndex(this.level, this.size,
+					this.ids, this.lats, this.lons, this.xs, this.ys, this.zs, this.payloads,
+					this.directorySize, this.prefixes, this.starts);
+			this.ids = null;
+			return output;
+		}
+
+		/**
+		 * Appends a point that has already been located.
+		 * @param id The cell id at the layer of the index.
+		 */
+		void append(long id, float lat, float lon, float x, float y, float z, long payload) {
+			this.checkOrder(id);
+			long i = this.size;
+			this.ensureCapacity(i + 1);
+			this.ids.putLong(i, id);
+			this.lats.putFloat(i, lat);
+			this.lons.putFloat(i, lon);
+			this.xs.putFloat(i, x);
+			this.ys.putFloat(i, y);
+			this.zs.putFloat(i, z);
+			this.payloads.putLong(i, payload);
+			this.index(i, id);
+			this.size = i + 1;
+			this.last = id;
+		}
+		/**
+		 * Adds a point to the directory if it is the first point of its ancestor.
+		 */
+		private void index(long i, long id) {
+			long prefix = id >>> this.directoryShift;
+			long n = this.directorySize;
+			if(n > 0 && this.prefixes.getLong(n - 1) == prefix)
+				return;
+			if(n == this.prefixes.capacity()) {
+				this.prefixes.ensureCapacity(n + 1);
+				this.starts.ensureCapacity(n + 1);
+			}
+			this.prefixes.putLong(n, prefix);
+			this.starts.putLong(n, i);
+			this.directorySize = n + 1;
+		}
+		private void checkOpen() {
+			if(this.ids == null)
+				throw new IllegalStateException("The index has already been built.");
+		}
+		private void checkOrder(long id) {
+			this.checkOpen();
+			if(id < this.last)
+				throw new IllegalArgumentException("The points must be added in ascending order of cell id.");
+		}
+		private void ensureCapacity(long length) {
+			if(length <= this.ids.capacity())
+				return;
+			this.ids.ensureCapacity(length);
+			this.lats.ensureCapacity(length);
+			this.lons.ensureCapacity(length);
+			this.xs.ensureCapacity(length);
+			this.ys.ensureCapacity(length);
+			this.zs.ensureCapacity(length);
+			this.payloads.ensureCapacity(length);
+		}
+	}
+
+	/**
+	 * A column of fixed-width elements held in a sequence of byte buffers of {@link #ChunkSize} elements.  The buffers
+	 * are read with absolute gets only, so a column may be read by many threads at once.
+	 */
+	static final class Column
+	{
+		/**
+		 * The base-2 logarithm of the number of bytes per element.
+		 */
+		private final int shift;
+		private ByteBuffer[] chunks;
+		private int count;
+		private long capacity;
+
+		/**
+		 * Constructs an empty column of direct buffers.
+		 * @param shift The base-2 logarithm of the number of bytes per element.
+		 */
+		Column(int shift) {
+			this.shift = shift;
+			this.chunks = new ByteBuffer[4];
+		}
+		/**
+		 * Constructs a column over existing buffers, such as the regions of a mapped file.
+		 * @param chunks The buffers, in the native byte order.  Every buffer but the last one holds exactly
+		 *               {@link #ChunkSize} elements.
+		 * @param shift The base-2 logarithm of the number of bytes per element.
+		 */
+		Column(ByteBuffer[] chunks, int shift) {
+			this.shift = shift;
+			this.chunks = chunks;
+			this.count = chunks.length;
+			this.capacity = chunks.length == 0 ? 0 : ((long)(chunks.length - 1) << ChunkShift) + (chunks[chunks.length - 1].capacity() >>> shift);
+		}
+		long capacity() {
+			return this.capacity;
+		}
+		int getShift() {
+			return this.shift;
+		}
+		/**
+		 * Gets the buffers of the column.  The buffers must not be modified.
+		 * @return The buffers, followed by unused entries that are null.
+		 */
+		ByteBuffer[] getChunks() {
+			return this.chunks;
+		}
+		long getLong(long i) {
+			return this.chunks[(int)(i >>> ChunkShift)].getLong(((int)i & ChunkMask) << 3);
+		}
+		float getFloat(long i) {
+			return this.chunks[(int)(i >>> ChunkShift)].getFloat(((int)i & ChunkMask) << 2);
+		}
+		void putLong(long i, long value) {
+			this.chunks[(int)(i >>> ChunkShift)].putLong(((int)i & ChunkMask) << 3, value);
+		}
+		void putFloat(long i, float value) {
+			this.chunks[(int)(i >>> ChunkShift)].putFloat(((int)i & ChunkMask) << 2, value);
+		}
+		/**
+		 * Copies the start of an array into the column.
+		 * @param at The index of the first element written.
+		 * @param source The array.
+		 * @param length The number of elements.
+		 */
+		void put(long at, long[] source, int length) {
+			for(int offset=0; offset<length; ) {
+				int n = Math.min(length - offset, ChunkSize - ((int)at & ChunkMask));
+				this.view(at).asLongBuffer().put(source, offset, n);
+				offset += n;
+				at += n;
+			}
+		}
+		/**
+		 * Copies the start of an array into the column.
+		 * @param at The index of the first element written.
+		 * @param source The array.
+		 * @param length The number of elements.
+		 */
+		void put(long at, float[] source, int length) {
+			for(int offset=0; offset<length; ) {
+				int n = Math.min(length - offset, ChunkSize - ((int)at & ChunkMask));
+				this.view(at).asFloatBuffer().put(source, offset, n);
+				offset += n;
+				at += n;
+			}
+		}
+		/**
+		 * Allocates direct buffers until the column can hold a number of elements.  Full chunks are allocated whole, and
+		 * the last one is doubled.
+		 */
+		void ensureCapacity(long length) {
+			while(this.capacity < length) {
+				int last = this.count - 1;
+				if(last >= 0 && this.chunks[last].capacity() >>> this.shift < ChunkSize) {
+					ByteBuffer old = this.chunks[last];
+					int elements = (int)Math.min(ChunkSize, Math.max(2L * (old.capacity() >>> this.shift), length - ((long)last << ChunkShift)));
+					ByteBuffer grown = allocate(elements << this.shift);
+					old.clear();
+					grown.put(old).clear();
+					this.chunks[last] = grown;
+					this.capacity = ((long)last << ChunkShift) + elements;
+				} else {
+					if(this.count == this.chunks.length)
+						this.chunks = Arrays.copyOf(this.chunks, 2 * this.count);
+					int elements = (int)Math.min(ChunkSize, Math.max(MinimumChunk, length - this.capacity));
+					this.chunks[this.count++] = allocate(elements << this.shift);
+					this.capacity += elements;
+				}
+			}
+		}
+		private ByteBuffer view(long at) {
+			ByteBuffer output = this.chunks[(int)(at >>> ChunkShift)].duplicate().order(ByteOrder.nativeOrder());
+			output.position(((int)at & ChunkMask) << this.shift);
+			return output;
+		}
+		private static ByteBuffer allocate(int bytes) {
+			return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	private final int level;
+	private final long size;
+	private final Column ids;
+	private final Column lats;
+	private final Column lons;
+	private final Column xs;
+	private final Column ys;
+	private final Column zs;
+	private final Column payloads;
+	private final int directoryShift;
+	private final long directorySize;
+	/**
+	 * The directory, as the ascending ancestors of the points (their cell ids shifted right by {@link #directoryShift})
+	 * and the index of the first point of each one.
+	 */
+	private final Column prefixes;
+	private final Column starts;
+	/**
+	 * The view of the points read by the searches of this package.
+	 */
+	private final Store store = new Store();
+
+	/**
+	 * Constructs an index over columns that are sorted by cell id.
+	 */
+	OffHeapPointIndex(int level, long size, Column ids, Column lats, Column lons, Column xs, Column ys, Column zs, Column payloads,
+			long directorySize, Column prefixes, Column starts) {
+		this.level = level;
+		this.size = size;
+		this.ids = ids;
+		this.lats = lats;
+		this.lons = lons;
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+		this.payloads = payloads;
+		this.directoryShift = directoryShift(level);
+		this.directorySize = directorySize;
+		this.prefixes = prefixes;
+		this.starts = starts;
+	}
+	/**
+	 * Copies an in-memory index.
+	 * @param index The index.  It is sorted, but not otherwise modified.
+	 * @return The copy.
+	 */
+	public static OffHeapPointIndex copyOf(PointIndex index) {
+		return new Builder(index.getLevel()).addAll(index).build();
+	}
+	/**
+	 * Gets the layer at which points are located.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Gets the number of points.
+	 * @return The number of points in the index.
+	 */
+	public long size() {
+		return this.size;
+	}
+	/**
+	 * Gets the cell id of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The cell id of the subtriangle containing the point, at the layer of the index.
+	 */
+	public long cellId(long i) {
+		return this.ids.getLong(this.check(i));
+	}
+	/**
+	 * Gets the latitude of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The latitude in degrees.
+	 */
+	public float lat(long i) {
+		return this.lats.getFloat(this.check(i));
+	}
+	/**
+	 * Gets the longitude of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The longitude in degrees.
+	 */
+	public float lon(long i) {
+		return this.lons.getFloat(this.check(i));
+	}
+	/**
+	 * Gets the payload of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The payload.
+	 */
+	public long payload(long i) {
+		return this.payloads.getLong(this.check(i));
+	}
+	/**
+	 * Finds the points within a subtriangle.
+	 * @param cell The cell id of the subtriangle, at a layer no greater than the layer of the index.
+	 * @return The range of the points, which is empty if there are none.
+	 */
+	public Slice slice(long cell) {
+		if(!CellId.isValid(cell) || CellId.level(cell) > this.level)
+			throw new IllegalArgumentException("The cell must be valid and no finer than layer " + this.level + ".");
+		long start = this.lowerBound(CellId.rangeMin(cell), 0, this.size);
+		long end = this.upperBound(CellId.rangeMax(cell), start, this.size);
+		return new Slice(start, end);
+	}
+	/**
+	 * Counts the points within a subtriangle.
+	 * @param cell The cell id of the subtriangle, at a layer no greater than the layer of the index.
+	 * @return The number of points.
+	 */
+	public long count(long cell) {
+		return this.slice(cell).size();
+	}
+	/**
+	 * Counts the points within a region.
+	 * @param region The region, whose cells must be no finer than the layer of the index.
+	 * @return The number of points.
+	 */
+	public long count(CellUnion region) {
+		long output = 0;
+		long start = 0;
+		for(int c=0; c<region.size(); c++) {
+			long cell = region.cellId(c);
+			if(CellId.level(cell) > this.level)
+				throw new IllegalArgumentException("The cells must be no finer than layer " + this.level + ".");
+			//	The cells are sorted and disjoint, so each search starts where the previous one ended.
+			start = this.lowerBound(CellId.rangeMin(cell), start, this.size);
+			long end = this.upperBound(CellId.rangeMax(cell), start, this.size);
+			output += end - start;
+			start = end;
+		}
+		return output;
+	}
+	/**
+	 * Finds the points within a distance of a coordinate, see {@link PointIndex#withinRadius(LatLon, double)}.
+	 * @param center The center.
+	 * @param km The distance in kilometers, on a sphere of radius {@link D#EarthRadiusKilometers}.  Must be at least 0.
+	 * @return The indices of the points, in ascending order.
+	 */
+	public long[] withinRadius(LatLon center, double km) {
+		RadiusQuery query = new RadiusQuery(this.store, center.lat, center.lon, PointIndex.toRadians(km), true);
+		query.run();
+		return query.points();
+	}
+	/**
+	 * Counts the points within a distance of a coordinate, see {@link PointIndex#countWithinRadius(LatLon, double)}.
+	 * @param center The center.
+	 * @param km The distance in kilometers, on a sphere of radius {@link D#EarthRadiusKilometers}.  Must be at least 0.
+	 * @return The number of points.
+	 */
+	public long countWithinRadius(LatLon center, double km) {
+		return new RadiusQuery(this.store, center.lat, center.lon, PointIndex.toRadians(km), false).run();
+	}
+	/**
+	 * Finds the k points nearest to a coordinate, see {@link NearestNeighbors#search(float, float, int, int[], double[])}.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param k The number of points to find.
+	 * @param outPoints Receives the indices of the points, nearest first.  The length must be at least k.
+	 * @param outDistances Receives the distances of the points in radians.  The length must be at least k.
+	 * @return The number of points found, which is k unless the index holds fewer points.
+	 */
+	public int nearest(float lat, float lon, int k, long[] outPoints, double[] outDistances) {
+		return NearestNeighbors.local().search(this.store, lat, lon, k, outPoints, outDistances);
+	}
+
+	/**
+	 * Gets the view of the points read by {@link NearestNeighbors} and {@link RadiusQuery}.
+	 */
+	PointStore store() {
+		return this.store;
+	}
+	/**
+	 * Finds the first point in a range whose cell id is not less than a key.  Cell ids are positive, so this is the
+	 * upper bound of the key minus 1.
+	 */
+	long lowerBound(long key, long from, long to) {
+		return this.upperBound(key - 1, from, to);
+	}
+	/**
+	 * Finds the first point in a range whose cell id is greater than a key.
+	 */
+	long upperBound(long key, long from, long to) {
+		if(to - from > DirectoryThreshold && this.directorySize > 0) {
+			//	The first ancestor that is not less than that of the key.
+			long prefix = key >>> this.directoryShift;
+			long lo = 0, hi = this.directorySize;
+			while(lo < hi) {
+				long mid = (lo + hi) >>> 1;
+				if(this.prefixes.getLong(mid) < prefix)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			//	The bound over all points is within the points of the ancestor of the key, or is the first point after it.
+			long start = lo < this.directorySize ? this.starts.getLong(lo) : this.size, end = start;
+			if(lo < this.directorySize && this.prefixes.getLong(lo) == prefix)
+				end = lo + 1 < this.directorySize ? this.starts.getLong(lo + 1) : this.size;
+			if(end < from)
+				return from;
+			if(start > to)
+				return to;
+			from = Math.max(from, start);
+			to = Math.min(to, end);
+		}
+		Column a = this.ids;
+		while(from < to) {
+			long mid = (from + to) >>> 1;
+			if(a.getLong(mid) <= key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+	/**
+	 * Gets the shift of a cell id that yields its ancestor in the directory.
+	 */
+	static int directoryShift(int level) {
+		return 62 - 2 * Math.min(level, DirectoryLevel);
+	}
+	long getDirectorySize() {
+		return this.directorySize;
+	}
+	Column[] getColumns() {
+		return new Column[] {this.ids, this.lats, this.lons, this.xs, this.ys, this.zs, this.payloads, this.prefixes, this.starts};
+	}
+	private long check(long i) {
+		if(i < 0 || i >= this.size)
+			throw new IndexOutOfBoundsException("The index " + i + " is not in the range [0," + this.size + ").");
+		return i;
+	}
+
+	/**
+	 * The points of the index as a {@link PointStore}.
+	 */
+	private final class Store extends PointStore
+	{
+		@Override
+		public int getLevel() {
+			return OffHeapPointIndex.this.level;
+		}
+		@Override
+		void prepare() {}
+		@Override
+		long count() {
+			return OffHeapPointIndex.this.size;
+		}
+		@Override
+		long idAt(long i) {
+			return OffHeapPointIndex.this.ids.getLong(i);
+		}
+		@Override
+		float latAt(long i) {
+			return OffHeapPointIndex.this.lats.getFloat(i);
+		}
+		@Override
+		float lonAt(long i) {
+			return OffHeapPointIndex.this.lons.getFloat(i);
+		}
+		@Override
+		float xAt(long i) {
+			return OffHeapPointIndex.this.xs.getFloat(i);
+		}
+		@Override
+		float yAt(long i) {
+			return OffHeapPointIndex.this.ys.getFloat(i);
+		}
+		@Override
+		float zAt(long i) {
+			return OffHeapPointIndex.this.zs.getFloat(i);
+		}
+		@Override
+		long payloadAt(long i) {
+			return OffHeapPointIndex.this.payloads.getLong(i);
+		}
+		@Override
+		long upperBound(long key, long from, long to) {
+			return OffHeapPointIndex.this.upperBound(key, from, to);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.github.adaviding.numerics.sphere;
+
+/**
+ * Operations on packed addresses that do not unpack them into a byte[].  The 64-bit methods operate on the layout of
+ * {@link Subtriangle#pack64(byte[])}, and the 32-bit overloads operate on the layout of {@link Subtriangle#pack32(byte[])}:
+ * {@literal
+ * 		64-bit --> length at bits 63..59, octant at bits 58..56, address[k] at bits (57-2k)..(56-2k)
+ * 		32-bit --> length at bits 31..27, octant at bits 26..24, address[k] at bits (25-2k)..(24-2k)
+ * }
+ * The packed address 0 is the root, which has an empty address.  All methods are static, and none of them allocates
+ * memory.
+ */
+public final class PackedId
+{
+	/**
+	 * The greatest length of a 64-bit packed address.
+	 */
+	public static final int MaxLevel64 = 29;
+	/**
+	 * The greatest length of a 32-bit packed address.
+	 */
+	public static final int MaxLevel32 = 13;
+
+	private PackedId() {}
+	/**
+	 * Gets the packed address of an octant.
+	 * @param octant The octant, in the range [0,8).
+	 * @return The 64-bit packed address.
+	 */
+	public static long forOctant(int octant) {
+		return (1L << 59) | ((long)octant << 56);
+	}
+	/**
+	 * Gets the length of a packed address, which is the layer of the subtriangle.
+	 * @param packed The 64-bit packed address.
+	 * @return The length, in the range [0,{@link #MaxLevel64}].
+	 */
+	public static int level(long packed) {
+		return (int)(packed >>> 59);
+	}
+	/**
+	 * Gets the octant of a packed address, which is address[0].
+	 * @param packed The 64-bit packed address.  The length must be at least 1.
+	 * @return The octant, in the range [0,8).
+	 */
+	public static int octant(long packed) {
+		return (int)(packed >>> 56) & 7;
+	}
+	/**
+	 * Gets the element of a packed address at a layer.  Layers are counted from 1, as by {@link CellId#digit(long, int)},
+	 * so the element at layer 1 is the octant, and the element at layer L is address[L-1].
+	 * @param packed The 64-bit packed address.
+	 * @param level The layer of the element, in the range [1,{@link #level(long)}].
+	 * @return address[level-1], see {@link Subtriangle#address}.  For a level of at least 2, this equals
+	 * CellId.digit(CellId.fromPacked64(packed), level).
+	 */
+	public static int digit(long packed, int level) {
+		return level == 1 ? octant(packed) : (int)(packed >>> (58 - 2*level)) & 3;
+	}
+	/**
+	 * Gets the parent of a subtriangle.
+	 * @param packed The 64-bit packed address.  The length must be at least 1.
+	 * @return The packed address of the parent, which is 0 for an octant.
+	 */
+	public static long parent(long packed) {
+		return truncate(packed, level(packed) - 1);
+	}
+	/**
+	 * Truncates a packed address, giving an ancestor of the subtriangle.
+	 * @param packed The 64-bit packed address.
+	 * @param level The length of the truncated address, in the range [0,{@link #level(long)}].
+	 * @return The packed address of the ancestor.
+	 */
+	public static long truncate(long packed, int level) {
+		if(level == 0)
+			return 0L;
+		return ((long)level << 59) | (packed & ((1L << 59) - (1L << (58 - 2*level))));
+	}
+	/**
+	 * Gets a child of a subtriangle.
+	 * @param packed The 64-bit packed address.  The length must be in the range [1,{@link #MaxLevel64}).
+	 * @param digit The digit of the child, in the range [0,4).
+	 * @return The packed address of the child.
+	 */
+	public static long child(long packed, int digit) {
+		int level = level(packed);
+		return (packed + (1L << 59)) | ((long)digit << (56 - 2*level));
+	}
+	/**
+	 * Gets the length of the longest common prefix of two packed addresses, which is the layer of their deepest common
+	 * ancestor.
+	 * @param a The 64-bit packed address of one subtriangle.
+	 * @param b The 64-bit packed address of the other subtriangle.
+	 * @return The length of the common prefix, in the range [0,min(level(a),level(b))].
+	 */
+	public static int commonAncestorLevel(long a, long b) {
+		int min = Math.min(level(a), level(b));
+		long x = (a ^ b) & ((1L << 59) - 1L);
+		if(min == 0 || x == 0L)
+			return min;
+		//	The octant occupies bits 58..56 (5 to 7 leading zeros), and address[k] starts 8 + 2(k-1) leading zeros in.
+		int nlz = Long.numberOfLeadingZeros(x);
+		if(nlz < 8)
+			return 0;
+		return Math.min(min, 1 + ((nlz - 8) >> 1));
+	}
+	/**
+	 * Gets the length of a packed address, which is the layer of the subtriangle.
+	 * @param packed The 32-bit packed address.
+	 * @return The length, in the range [0,{@link #MaxLevel32}].
+	 */
+	public static int level(int packed) {
+		return packed >>> 27;
+	}
+	/**
+	 * Gets the octant of a packed address, which is address[0].
+	 * @param packed The 32-bit packed address.  The length must be at least 1.
+	 * @return The octant, in the range [0,8).
+	 */
+	public static int octant(int packed) {
+		return (packed >>> 24) & 7;
+	}
+	/**
+	 * Gets the element of a packed address at a layer, see {@link #digit(long, int)}.
+	 * @param packed The 32-bit packed address.
+	 * @param level The layer of the element, in the range [1,{@link #level(int)}].
+	 * @return address[level-1], see {@link Subtriangle#address}.
+	 */
+	public static int digit(int packed, int level) {
+		return level == 1 ? octant(packed) : (packed >>> (26 - 2*level)) & 3;
+	}
+	/**
+	 * Gets the parent of a subtriangle.
+	 * @param packed The 32-bit packed address.  The length must be at least 1.
+	 * @return The packed address of the parent, which is 0 for an octant.
+	 */
+	public static int parent(int packed) {
+		return truncate(packed, level(packed) - 1);
+	}
+	/**
+	 * Truncates a packed address, giving an ancestor of the subtriangle.
+	 * @param packed The 32-bit packed address.
+	 * @param level The length of the truncated address, in the range [0,{@link #level(int)}].
+	 * @return The packed address of the ancestor.
+	 */
+	public static int truncate(int packed, int level) {
+		if(level == 0)
+			return 0;
+		return (level << 27) | (packed & ((1 << 27) - (1 << (26 - 2*level))));
+	}
+	/**
+	 * Gets a child of a subtriangle.
+	 * @param packed The 32-bit packed address.  The length must be in the range [1,{@link #MaxLevel32}).
+	 * @param digit The digit of the child, in the range [0,4).
+	 * @return The packed address of the child.
+	 */
+	public static int child(int packed, int digit) {
+		int level = level(packed);
+		return (packed + (1 << 27)) | (digit << (24 - 2*level));
+	}
+	/**
+	 * Gets the length of the longest common prefix of two packed addresses, which is the layer of their deepest common
+	 * ancestor.
+	 * @param a The 32-bit packed address of one subtriangle.
+	 * @param b The 32-bit packed address of the other subtriangle.
+	 * @return The length of the common prefix, in the range [0,min(level(a),level(b))].
+	 */
+	public static int commonAncestorLevel(int a, int b) {
+		int min = Math.min(level(a), level(b));
+		int x = (a ^ b) & ((1 << 27) - 1);
+		if(min == 0 || x == 0)
+			return min;
+		int nlz = Integer.numberOfLeadingZeros(x);
+		if(nlz < 8)
+			return 0;
+		return Math.min(min, 1 + ((nlz - 8) >> 1));
+	}
+}
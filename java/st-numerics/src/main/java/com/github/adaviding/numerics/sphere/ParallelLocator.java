@@ -0,0 +1,177 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Locates large arrays of coordinates on multiple threads.
+ *
+ * The range of coordinates is split recursively into tasks of a {@link ForkJoinPool}.  Each task computes the addresses
+ * of a contiguous range with {@link Tessellation#locateProjectedUnitVector(double, double, double, int)}, and writes
+ * them into the same range of the output array.  Every address is computed from its own coordinate only, so the output
+ * is identical to the sequential path regardless of the number of threads or the order of execution.
+ *
+ * Each worker thread owns a scratch buffer of unit vectors.  A block of coordinates is first converted to unit vectors
+ * (the trigonometry), and then the block is located (the integer descent).  Keeping the two loops apart keeps each one
+ * small, and the buffer is reused by every task that runs on the thread.  The unit vectors can also be stored in
+ * single precision, for callers that measure distances with them.
+ */
+public final class ParallelLocator
+{
+	/**
+	 * The number of coordinates converted to unit vectors at a time.
+	 */
+	private static final int BlockSize = 1024;
+	/**
+	 * A range of coordinates no longer than this is located by a single task.
+	 */
+	private static final int Threshold = 16 * BlockSize;
+	/**
+	 * The scratch buffer of each worker thread, holding the unit vectors (x,y,z) of one block.
+	 */
+	private static final ThreadLocal<double[]> Scratch = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[3 * BlockSize];
+		}
+	};
+
+	private ParallelLocator() {}
+	/**
+	 * Finds the subtriangles containing an array of coordinates, using the common pool.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.  The length must equal the length of lat.
+	 * @param depth The length of the addresses to compute, in the range [0,{@link Tessellation#MaxDepth}].
+	 * @param outIds Receives the 64-bit packed addresses, see {@link Subtriangle#pack64(byte[])}.  The length must be at
+	 *               least the length of lat.  An empty coordinate yields 0.
+	 */
+	public static void locate(float[] lat, float[] lon, int depth, long[] outIds) {
+		if(lat.length != lon.length)
+			throw new IllegalArgumentException("The arrays of latitude and longitude must have equal length.");
+		locate(ForkJoinPool.commonPool(), lat, lon, 0, lat.length, depth, outIds, 0);
+	}
+	/**
+	 * Finds the subtriangles containing a range of coordinates.
+	 * @param pool The pool that executes the tasks.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.
+	 * @param offset The index of the first coordinate.
+	 * @param length The number of coordinates.
+	 * @param depth The length of the addresses to compute, in the range [0,{@link Tessellation#MaxDepth}].
+	 * @param outIds Receives the 64-bit packed addresses, see {@link Subtriangle#pack64(byte[])}.  An empty coordinate
+	 *               yields 0.
+	 * @param outOffset The index in outIds where the address of the first coordinate is stored.
+	 */
+	public static void locate(ForkJoinPool pool, float[] lat, float[] lon, int offset, int length, int depth, long[] outIds, int outOffset) {
+		locate(pool, lat, lon, offset, length, depth, outIds, null, null, null, outOffset);
+	}
+	/**
+	 * Finds the subtriangles containing a range of coordinates, and stores the unit vectors of the coordinates.
+	 * @param pool The pool that executes the tasks.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.
+	 * @param offset The index of the first coordinate.
+	 * @param length The number of coordinates.
+	 * @param depth The length of the addresses to compute, in the range [0,{@link Tessellation#MaxDepth}].
+	 * @param outIds Receives the 64-bit packed addresses, see {@link Subtriangle#pack64(byte[])}.  An empty coordinate
+	 *               yields 0.
+	 * @param outX Receives the x-ordinates of the unit vectors, see {@link LatLon#toUnitVector()}.  May be null, in
+	 *             which case no unit vectors are stored.
+	 * @param outY Receives the y-ordinates of the unit vectors.  May be null if outX is null.
+	 * @param outZ Receives the z-ordinates of the unit vectors.  May be null if outX is null.
+	 * @param outOffset The index in the outputs where the results of the first coordinate are stored.
+	 */
+	public static void locate(ForkJoinPool pool, float[] lat, float[] lon, int offset, int length, int depth, long[] outIds,
+			float[] outX, float[] outY, float[] outZ, int outOffset) {
+		if(depth < 0 || depth > Tessellation.MaxDepth)
+			throw new IllegalArgumentException("The depth must be in the range [0," + Tessellation.MaxDepth + "].");
+		if(offset < 0 || length < 0 || offset + length > lat.length || offset + length > lon.length
+				|| outOffset < 0 || outOffset + length > outIds.length)
+			throw new IndexOutOfBoundsException("The range exceeds the bounds of the arrays.");
+		if(outX != null && (outOffset + length > outX.length || outOffset + length > outY.length
+				|| outOffset + length > outZ.length))
+			throw new IndexOutOfBoundsException("The range exceeds the bounds of the arrays.");
+
+		LocateTask task = new LocateTask(lat, lon, offset, length, depth, outIds, outX, outY, outZ, outOffset);
+		if(length <= Threshold)
+			task.compute();
+		else
+			pool.invoke(task);
+	}
+	/**
+	 * Locates a range of coordinates sequentially, using the scratch buffer of the calling thread.
+	 */
+	private static void locateRange(float[] lat, float[] lon, int offset, int length, int depth, long[] outIds,
+			float[] outX, float[] outY, float[] outZ, int outOffset) {
+		double[] scratch = Scratch.get();
+		for(int start=0; start<length; start+=BlockSize) {
+			int count = Math.min(BlockSize, length - start);
+
+			//	Unit vectors, as in Tessellation.locateProjected().
+			for(int i=0, j=0; i<count; i++, j+=3) {
+				double rlon = D.RadiansPerDegree * lon[offset + start + i];
+				double rlat = D.RadiansPerDegree * lat[offset + start + i];
+				double cLat = Math.cos(rlat);
+				scratch[j] = cLat * Math.sin(rlon);
+				scratch[j+1] = Math.sin(rlat);
+				scratch[j+2] = -cLat * Math.cos(rlon);
+			}
+
+			for(int i=0, j=0; i<count; i++, j+=3)
+				outIds[outOffset + start + i] = Tessellation.locateProjectedUnitVector(scratch[j], scratch[j+1], scratch[j+2], depth);
+
+			if(outX != null) {
+				for(int i=0, j=0; i<count; i++, j+=3) {
+					outX[outOffset + start + i] = (float)scratch[j];
+					outY[outOffset + start + i] = (float)scratch[j+1];
+					outZ[outOffset + start + i] = (float)scratch[j+2];
+				}
+			}
+		}
+	}
+
+	private static final class LocateTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final float[] lat;
+		private final float[] lon;
+		private final int offset;
+		private final int length;
+		private final int depth;
+		private final long[] outIds;
+		private final float[] outX;
+		private final float[] outY;
+		private final float[] outZ;
+		private final int outOffset;
+
+		LocateTask(float[] lat, float[] lon, int offset, int length, int depth, long[] outIds,
+				float[] outX, float[] outY, float[] outZ, int outOffset) {
+			this.lat = lat;
+			this.lon = lon;
+			this.offset = offset;
+			this.length = length;
+			this.depth = depth;
+			this.outIds = outIds;
+			this.outX = outX;
+			this.outY = outY;
+			this.outZ = outZ;
+			this.outOffset = outOffset;
+		}
+
+		@Override
+		protected void compute() {
+			if(length <= Threshold) {
+				locateRange(lat, lon, offset, length, depth, outIds, outX, outY, outZ, outOffset);
+				return;
+			}
+			//	Split on a multiple of the block size, so that every block but the last one is full.
+			int half = ((length >>> 1) / BlockSize) * BlockSize;
+			invokeAll(
+					new LocateTask(lat, lon, offset, half, depth, outIds, outX, outY, outZ, outOffset),
+					new LocateTask(lat, lon, offset + half, length - half, depth, outIds, outX, outY, outZ, outOffset + half));
+		}
+	}
+}
@@ -0,0 +1,639 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An in-memory index of points keyed by the {@link CellId cell ids} of the subtriangles that contain them.
+ *
+ * Every point is located at a fixed layer, and the points are held in parallel arrays sorted by cell id:
+ * {@literal
+ * 		long[]     --> the cell id
+ * 		float[]    --> the latitude in degrees
+ * 		float[]    --> the longitude in degrees
+ * 		float[] x3 --> the unit vector, see LatLon.toUnitVector(), so that distances are compared without trigonometry
+ * 		long[]     --> the payload, such as a row number or a key of the caller
+ * }
+ * No object is allocated per point, so an index of n points takes 36 n bytes plus the spare capacity of the arrays.
+ * The descendants of any subtriangle occupy a contiguous range of cell ids, so the points within a subtriangle of
+ * any layer up to the layer of the index are a contiguous {@link Slice} of the arrays, found by two binary searches.
+ *
+ * Points that are added are appended to an unsorted tail.  The tail is sorted and merged into the sorted points by
+ * the next query, so a batch of insertions costs one sort of the batch and one linear merge.  Queries therefore
+ * modify the arrays, and instances are not thread safe.
+ */
+public class PointIndex
+{
+	/**
+	 * A range of a sort of shorter than this is sorted by insertion.
+	 */
+	private static final int InsertionThreshold = 24;
+	/**
+	 * The capacity of an index constructed without one.
+	 */
+	private static final int DefaultCapacity = 16;
+
+	/**
+	 * A contiguous range of the points of an index, in the order of their cell ids.
+	 */
+	public static final class Slice
+	{
+		/**
+		 * The index of the first point.
+		 */
+		public final int start;
+		/**
+		 * The index after the last point.
+		 */
+		public final int end;
+
+		/**
+		 * Constructs a range.
+		 * @param start The index of the first point.
+		 * @param end The index after the last point.
+		 */
+		public Slice(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		/**
+		 * Gets the number of points.
+		 * @return The number of points in the range.
+		 */
+		public int size() {
+			return this.end - this.start;
+		}
+		/**
+		 * Determines whether the range is empty.
+		 * @return True if the range holds no points, false otherwise.
+		 */
+		public boolean isEmpty() {
+			return this.end == this.start;
+		}
+	}
+
+	private final int level;
+	/**
+	 * The arrays of the points.  The searches of this package read them directly, after calling {@link #sort()}.
+	 */
+	long[] ids;
+	float[] lats;
+	float[] lons;
+	float[] xs;
+	float[] ys;
+	float[] zs;
+	long[] payloads;
+	/**
+	 * The number of points.
+	 */
+	int size;
+	/**
+	 * The number of points at the start of the arrays that are sorted.  The rest are the unsorted tail.
+	 */
+	private int sorted;
+	/**
+	 * The view of the points read by the searches of this package.
+	 */
+	private final Store store = new Store();
+
+	/**
+	 * Constructs an empty index.
+	 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public PointIndex(int level) {
+		this(level, DefaultCapacity);
+	}
+	/**
+	 * Constructs an empty index.
+	 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+	 * @param capacity The number of points the index can hold before its arrays are grown.
+	 */
+	public PointIndex(int level, int capacity) {
+		if(level < 1 || level > CellId.MaxLevel)
+			throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+		if(capacity < 0)
+			throw new IllegalArgumentException("The capacity must not be negative.");
+		this.level = level;
+		this.ids = new long[capacity];
+		this.lats = new float[capacity];
+		this.lons = new float[capacity];
+		this.xs = new float[capacity];
+		this.ys = new float[capacity];
+		this.zs = new float[capacity];
+		this.payloads = new long[capacity];
+	}
+	/**
+	 * Builds an index from arrays of points, locating them on the threads of the common pool.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.  The length must equal the length of lat.
+	 * @param payloads The payloads.  The length must equal the length of lat.
+	 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+	 * @return The index, which holds every point except those with empty coordinates.
+	 */
+	public static PointIndex build(float[] lat, float[] lon, long[] payloads, int level) {
+		PointIndex output = new PointIndex(level, lat.length);
+		output.addAll(lat, lon, payloads);
+		return output;
+	}
+	/**
+	 * Gets the layer at which points are located.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	/**
+	 * Gets the number of points.
+	 * @return The number of points in the index.
+	 */
+	public int size() {
+		return this.size;
+	}
+	/**
+	 * Adds a point.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param payload The payload.
+	 * @return True if the point was added, false if the coordinate is empty.
+	 */
+	public boolean add(float lat, float lon, long payload) {
+		//	Unit vector, as in Tessellation.locateProjected().
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		double x = cLat * Math.sin(rlon), y = Math.sin(rlat), z = -cLat * Math.cos(rlon);
+		long packed = Tessellation.locateProjectedUnitVector(x, y, z, this.level);
+		if(packed == 0L)
+			return false;
+		this.append(CellId.fromPacked64(packed), lat, lon, (float)x, (float)y, (float)z, payload);
+		return true;
+	}
+	/**
+	 * Adds arrays of points, locating them on the threads of the common pool.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.  The length must equal the length of lat.
+	 * @param payloads The payloads.  The length must equal the length of lat.
+	 * @return The number of points added, which excludes those with empty coordinates.
+	 */
+	public int addAll(float[] lat, float[] lon, long[] payloads) {
+		return this.addAll(ForkJoinPool.commonPool(), lat, lon, payloads, 0, lat.length);
+	}
+	/**
+	 * Adds a range of arrays of points.
+	 * @param pool The pool that locates the points, see {@link ParallelLocator}.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.
+	 * @param payloads The payloads.
+	 * @param offset The index of the first point.
+	 * @param length The number of points.
+	 * @return The number of points added, which excludes those with empty coordinates.
+	 */
+	public int addAll(ForkJoinPool pool, float[] lat, float[] lon, long[] payloads, int offset, int length) {
+		if(offset < 0 || length < 0 || offset + length > lat.length || offset + length > lon.length
+				|| offset + length > payloads.length)
+			throw new IndexOutOfBoundsException("The range exceeds the bounds of the arrays.");
+		this.ensureCapacity(this.size + length);
+
+		//	Locate into the spare capacity, then convert in place and drop the empty coordinates.
+		int base = this.size;
+		ParallelLocator.locate(pool, lat, lon, offset, length, this.level, this.ids, this.xs, this.ys, this.zs, base);
+		int n = base;
+		for(int i=0; i<length; i++) {
+			long packed = this.ids[base + i];
+			if(packed == 0L)
+				continue;
+			this.ids[n] = CellId.fromPacked64(packed);
+			this.lats[n] = lat[offset + i];
+			this.lons[n] = lon[offset + i];
+			this.xs[n] = this.xs[base + i];
+			this.ys[n] = this.ys[base + i];
+			this.zs[n] = this.zs[base + i];
+			this.payloads[n] = payloads[offset + i];
+			n++;
+		}
+		this.size = n;
+		return n - base;
+	}
+	/**
+	 * Appends a point that has already been located to the unsorted tail.
+	 * @param id The cell id at the layer of the index.
+	 */
+	void append(long id, float lat, float lon, float x, float y, float z, long payload) {
+		this.ensureCapacity(this.size + 1);
+		int i = this.size++;
+		this.ids[i] = id;
+		this.lats[i] = lat;
+		this.lons[i] = lon;
+		this.xs[i] = x;
+		this.ys[i] = y;
+		this.zs[i] = z;
+		this.payloads[i] = payload;
+	}
+	/**
+	 * Appends the points of another index at the same layer.  The points stay sorted if both indices are sorted and
+	 * the other index follows this one.
+	 * @param other The other index, which is not modified.
+	 */
+	void appendAll(PointIndex other) {
+		int n = other.size, base = this.size;
+		this.ensureCapacity(base + n);
+		System.arraycopy(other.ids, 0, this.ids, base, n);
+		System.arraycopy(other.lats, 0, this.lats, base, n);
+		System.arraycopy(other.lons, 0, this.lons, base, n);
+		System.arraycopy(other.xs, 0, this.xs, base, n);
+		System.arraycopy(other.ys, 0, this.ys, base, n);
+		System.arraycopy(other.zs, 0, this.zs, base, n);
+		System.arraycopy(other.payloads, 0, this.payloads, base, n);
+		this.size = base + n;
+		if(this.sorted == base && other.sorted == n && (base == 0 || n == 0 || this.ids[base - 1] <= other.ids[0]))
+			this.sorted = this.size;
+	}
+	/**
+	 * Appends the points of another index at the same layer, and if both indices are sorted, merges them into the
+	 * sorted points in linear time rather than sorting them again.
+	 * @param other The other index, which is not modified.
+	 */
+	void mergeAll(PointIndex other) {
+		int tail = this.size;
+		this.appendAll(other);
+		if(this.sorted == tail && other.sorted == other.size && this.sorted != this.size) {
+			this.merge(tail);
+			this.sorted = this.size;
+		}
+	}
+	/**
+	 * Gets the cell id of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The cell id of the subtriangle containing the point, at the layer of the index.
+	 */
+	public long cellId(int i) {
+		this.sort();
+		return this.ids[this.check(i)];
+	}
+	/**
+	 * Gets the latitude of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The latitude in degrees.
+	 */
+	public float lat(int i) {
+		this.sort();
+		return this.lats[this.check(i)];
+	}
+	/**
+	 * Gets the longitude of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The longitude in degrees.
+	 */
+	public float lon(int i) {
+		this.sort();
+		return this.lons[this.check(i)];
+	}
+	/**
+	 * Gets the payload of a point.
+	 * @param i The index of the point, in the range [0,{@link #size()}).
+	 * @return The payload.
+	 */
+	public long payload(int i) {
+		this.sort();
+		return this.payloads[this.check(i)];
+	}
+	/**
+	 * Finds the points within a subtriangle.
+	 * @param cell The cell id of the subtriangle, at a layer no greater than the layer of the index.
+	 * @return The range of the points, which is empty if there are none.
+	 */
+	public Slice slice(long cell) {
+		if(!CellId.isValid(cell) || CellId.level(cell) > this.level)
+			throw new IllegalArgumentException("The cell must be valid and no finer than layer " + this.level + ".");
+		this.sort();
+		int start = this.lowerBound(CellId.rangeMin(cell), 0, this.size);
+		int end = this.upperBound(CellId.rangeMax(cell), start, this.size);
+		return new Slice(start, end);
+	}
+	/**
+	 * Counts the points within a subtriangle.
+	 * @param cell The cell id of the subtriangle, at a layer no greater than the layer of the index.
+	 * @return The number of points.
+	 */
+	public int count(long cell) {
+		return this.slice(cell).size();
+	}
+	/**
+	 * Counts the points within a region.
+	 * @param region The region, whose cells must be no finer than the layer of the index.
+	 * @return The number of points.
+	 */
+	public int count(CellUnion region) {
+		this.sort();
+		int output = 0;
+		int start = 0;
+		for(int c=0; c<region.size(); c++) {
+			long cell = region.cellId(c);
+			if(CellId.level(cell) > this.level)
+				throw new IllegalArgumentException("The cells must be no finer than layer " + this.level + ".");
+			//	The cells are sorted and disjoint, so each search starts where the previous one ended.
+			start = this.lowerBound(CellId.rangeMin(cell), start, this.size);
+			int end = this.upperBound(CellId.rangeMax(cell), start, this.size);
+			output += end - start;
+			start = end;
+		}
+		return output;
+	}
+	/**
+	 * Finds the points within a distance of a coordinate, see {@link RadiusQuery}.
+	 * @param center The center.
+	 * @param km The distance in kilometers, on a sphere of radius {@link D#EarthRadiusKilometers}.  Must be at least 0.
+	 * @return The indices of the points whose distance from the center, by
+	 * {@link LatLon#distRadians(float, float, float, float)}, is no greater than the distance.  The indices are in
+	 * ascending order.
+	 */
+	public int[] withinRadius(LatLon center, double km) {
+		RadiusQuery query = new RadiusQuery(this.store, center.lat, center.lon, toRadians(km), true);
+		query.run();
+		long[] points = query.points();
+		int[] output = new int[points.length];
+		for(int i=0; i<points.length; i++)
+			output[i] = (int)points[i];
+		return output;
+	}
+	/**
+	 * Counts the points within a distance of a coordinate.  The points of subtriangles that lie within the distance
+	 * are counted without being visited.
+	 * @param center The center.
+	 * @param km The distance in kilometers, on a sphere of radius {@link D#EarthRadiusKilometers}.  Must be at least 0.
+	 * @return The number of points, see {@link #withinRadius(LatLon, double)}.
+	 */
+	public int countWithinRadius(LatLon center, double km) {
+		return (int)new RadiusQuery(this.store, center.lat, center.lon, toRadians(km), false).run();
+	}
+	/**
+	 * Sorts the unsorted tail and merges it into the sorted points.  This happens implicitly before every query.
+	 */
+	public void sort() {
+		if(this.sorted == this.size)
+			return;
+		int tail = this.sorted;
+		this.quicksort(tail, this.size, 2 * (32 - Integer.numberOfLeadingZeros(this.size - tail)));
+		if(tail > 0 && this.ids[tail - 1] > this.ids[tail])
+			this.merge(tail);
+		this.sorted = this.size;
+	}
+	/**
+	 * Removes every point, keeping the capacity of the arrays.
+	 */
+	void clear() {
+		this.size = 0;
+		this.sorted = 0;
+	}
+	/**
+	 * Reduces the capacity of the arrays to the number of points.
+	 */
+	public void trimToSize() {
+		if(this.ids.length != this.size)
+			this.resize(this.size);
+	}
+
+	/**
+	 * Gets the view of the points read by {@link NearestNeighbors} and {@link RadiusQuery}.
+	 */
+	PointStore store() {
+		return this.store;
+	}
+	static double toRadians(double km) {
+		if(!(km >= 0.0))
+			throw new IllegalArgumentException("The distance must be at least 0.");
+		return km / D.EarthRadiusKilometers;
+	}
+	private int check(int i) {
+		if(i < 0 || i >= this.size)
+			throw new IndexOutOfBoundsException("The index " + i + " is not in the range [0," + this.size + ").");
+		return i;
+	}
+	/**
+	 * Finds the first sorted point in a range whose cell id is not less than a key.
+	 */
+	int lowerBound(long key, int from, int to) {
+		long[] a = this.ids;
+		while(from < to) {
+			int mid = (from + to) >>> 1;
+			if(a[mid] < key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+	/**
+	 * Finds the first sorted point in a range whose cell id is greater than a key.  The range of the last octant ends
+	 * at the greatest long, so this is not the lower bound of the key plus 1.
+	 */
+	int upperBound(long key, int from, int to) {
+		long[] a = this.ids;
+		while(from < to) {
+			int mid = (from + to) >>> 1;
+			if(a[mid] <= key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+	private void ensureCapacity(int capacity) {
+		if(capacity < 0)
+			throw new IllegalStateException("The index cannot hold more than " + Integer.MAX_VALUE + " points.");
+		if(capacity <= this.ids.length)
+			return;
+		long grown = (long)this.ids.length + (this.ids.length >> 1) + 1L;
+		this.resize((int)Math.min(Math.max(grown, (long)capacity), Integer.MAX_VALUE - 8L));
+	}
+	private void resize(int capacity) {
+		this.ids = Arrays.copyOf(this.ids, capacity);
+		this.lats = Arrays.copyOf(this.lats, capacity);
+		this.lons = Arrays.copyOf(this.lons, capacity);
+		this.xs = Arrays.copyOf(this.xs, capacity);
+		this.ys = Arrays.copyOf(this.ys, capacity);
+		this.zs = Arrays.copyOf(this.zs, capacity);
+		this.payloads = Arrays.copyOf(this.payloads, capacity);
+	}
+	/**
+	 * Merges the sorted tail starting at an index into the sorted points before it.  The tail is copied out, and the
+	 * two runs are merged from the back, so only the tail needs extra memory.
+	 */
+	private void merge(int tail) {
+		int n = this.size - tail;
+		long[] tIds = Arrays.copyOfRange(this.ids, tail, this.size);
+		float[] tLats = Arrays.copyOfRange(this.lats, tail, this.size);
+		float[] tLons = Arrays.copyOfRange(this.lons, tail, this.size);
+		float[] tXs = Arrays.copyOfRange(this.xs, tail, this.size);
+		float[] tYs = Arrays.copyOfRange(this.ys, tail, this.size);
+		float[] tZs = Arrays.copyOfRange(this.zs, tail, this.size);
+		long[] tPayloads = Arrays.copyOfRange(this.payloads, tail, this.size);
+
+		int i = tail - 1, j = n - 1, k = this.size - 1;
+		while(j >= 0) {
+			if(i >= 0 && this.ids[i] > tIds[j]) {
+				this.move(i, k);
+				i--;
+			} else {
+				this.ids[k] = tIds[j];
+				this.lats[k] = tLats[j];
+				this.lons[k] = tLons[j];
+				this.xs[k] = tXs[j];
+				this.ys[k] = tYs[j];
+				this.zs[k] = tZs[j];
+				this.payloads[k] = tPayloads[j];
+				j--;
+			}
+			k--;
+		}
+	}
+	/**
+	 * Sorts a range of the points by cell id.  The partition is three way, so runs of points in the same cell are not
+	 * partitioned again, and a range that is partitioned too deeply is sorted as a heap.
+	 */
+	private void quicksort(int from, int to, int depth) {
+		while(to - from > InsertionThreshold) {
+			if(depth-- == 0) {
+				this.heapsort(from, to);
+				return;
+			}
+			long pivot = this.median(from, (from + to) >>> 1, to - 1);
+
+			//	[from,lt) < pivot, [lt,i) == pivot, (gt,to) > pivot.
+			int lt = from, i = from, gt = to - 1;
+			while(i <= gt) {
+				long id = this.ids[i];
+				if(id < pivot)
+					this.swap(lt++, i++);
+				else if(id > pivot)
+					this.swap(i, gt--);
+				else
+					i++;
+			}
+			//	Recurse into the smaller side, so that the stack is logarithmic.
+			if(lt - from < to - gt - 1) {
+				this.quicksort(from, lt, depth);
+				from = gt + 1;
+			} else {
+				this.quicksort(gt + 1, to, depth);
+				to = lt;
+			}
+		}
+		for(int i=from+1; i<to; i++)
+			for(int j=i; j>from && this.ids[j-1] > this.ids[j]; j--)
+				this.swap(j - 1, j);
+	}
+	private long median(int a, int b, int c) {
+		long x = this.ids[a], y = this.ids[b], z = this.ids[c];
+		if(x < y)
+			return y < z ? y : Math.max(x, z);
+		return x < z ? x : Math.max(y, z);
+	}
+	private void heapsort(int from, int to) {
+		int n = to - from;
+		for(int i=n/2-1; i>=0; i--)
+			this.siftDown(from, i, n);
+		for(int end=n-1; end>0; end--) {
+			this.swap(from, from + end);
+			this.siftDown(from, 0, end);
+		}
+	}
+	private void siftDown(int from, int i, int n) {
+		while(true) {
+			int child = 2*i + 1;
+			if(child >= n)
+				return;
+			if(child + 1 < n && this.ids[from + child + 1] > this.ids[from + child])
+				child++;
+			if(this.ids[from + i] >= this.ids[from + child])
+				return;
+			this.swap(from + i, from + child);
+			i = child;
+		}
+	}
+	private void swap(int i, int j) {
+		long id = this.ids[i];
+		this.ids[i] = this.ids[j];
+		this.ids[j] = id;
+		float lat = this.lats[i];
+		this.lats[i] = this.lats[j];
+		this.lats[j] = lat;
+		float lon = this.lons[i];
+		this.lons[i] = this.lons[j];
+		this.lons[j] = lon;
+		float x = this.xs[i];
+		this.xs[i] = this.xs[j];
+		this.xs[j] = x;
+		float y = this.ys[i];
+		this.ys[i] = this.ys[j];
+		this.ys[j] = y;
+		float z = this.zs[i];
+		this.zs[i] = this.zs[j];
+		this.zs[j] = z;
+		long payload = this.payloads[i];
+		this.payloads[i] = this.payloads[j];
+		this.payloads[j] = payload;
+	}
+	private void move(int from, int to) {
+		this.ids[to] = this.ids[from];
+		this.lats[to] = this.lats[from];
+		this.lons[to] = this.lons[from];
+		this.xs[to] = this.xs[from];
+		this.ys[to] = this.ys[from];
+		this.zs[to] = this.zs[from];
+		this.payloads[to] = this.payloads[from];
+	}
+
+	/**
+	 * The points of the index as a {@link PointStore}, which reads the current arrays of the index.
+	 */
+	private final class Store extends PointStore
+	{
+		@Override
+		public int getLevel() {
+			return PointIndex.this.level;
+		}
+		@Override
+		void prepare() {
+			PointIndex.this.sort();
+		}
+		@Override
+		long count() {
+			return PointIndex.this.size;
+		}
+		@Override
+		long idAt(long i) {
+			return PointIndex.this.ids[(int)i];
+		}
+		@Override
+		float latAt(long i) {
+			return PointIndex.this.lats[(int)i];
+		}
+		@Override
+		float lonAt(long i) {
+			return PointIndex.this.lons[(int)i];
+		}
+		@Override
+		float xAt(long i) {
+			return PointIndex.this.xs[(int)i];
+		}
+		@Override
+		float yAt(long i) {
+			return PointIndex.this.ys[(int)i];
+		}
+		@Override
+		float zAt(long i) {
+			return PointIndex.this.zs[(int)i];
+		}
+		@Override
+		long payloadAt(long i) {
+			return PointIndex.this.payloads[(int)i];
+		}
+		@Override
+		long upperBound(long key, long from, long to) {
+			return PointIndex.this.upperBound(key, (int)from, (int)to);
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes an {@link OffHeapPointIndex} to a file, and opens the file as an index whose columns are mapped into memory.
+ *
+ * The file is laid out in blocks that start on page boundaries:
+ * {@literal
+ * 		header      --> the fields below, little-endian, padded to one page
+ * 		keys        --> the cell ids, sorted
+ * 		coordinates --> the latitudes, the longitudes, and the unit vectors (x,y,z), each a column of floats
+ * 		payloads    --> the payloads
+ * 		directory   --> the ancestors at the directory layer, and the index of the first point of each one
+ * }
+ * The header holds:
+ * {@literal
+ * 		long[1] --> Magic
+ * 		int[1]  --> Version
+ * 		int[1]  --> the layer of the index
+ * 		long[1] --> the number of points
+ * 		int[1]  --> the layer of the directory
+ * 		int[1]  --> the byte order of the blocks, 0 for little-endian and 1 for big-endian
+ * 		long[1] --> the number of entries in the directory
+ * 		long[9] --> the offsets of the columns, in the order of the blocks
+ * }
+ * The blocks are the bytes of the columns in the byte order of the buffers that held them, so they are written and
+ * read without conversion.  Opening a file maps each column in regions of {@link OffHeapPointIndex#ChunkSize}
+ * elements and reads nothing else but the header, so the time to open a file does not depend on its size.  Pages are
+ * read by the operating system as the queries touch them, and the directory keeps the binary searches of a query
+ * within a few pages.
+ *
+ * A mapping is released when the index that uses it is collected.  The file must not be modified or truncated while
+ * it is mapped.
+ */
+public final class PointIndexFile
+{
+	/**
+	 * The first 8 bytes of a file, "STPINDEX" in ASCII.
+	 */
+	public static final long Magic = 0x5845444e49505453L;
+	/**
+	 * The version of the format.
+	 */
+	public static final int Version = 1;
+	/**
+	 * The length of the header, and the alignment of the blocks, in bytes.
+	 */
+	private static final int PageSize = 4096;
+	/**
+	 * The number of columns in the file.
+	 */
+	private static final int ColumnCount = 9;
+	/**
+	 * The base-2 logarithms of the numbers of bytes per element of the columns.
+	 */
+	private static final int[] Shifts = {3, 2, 2, 2, 2, 2, 3, 3, 3};
+
+	/**
+	 * Writes a file from points in ascending order of cell id, without holding them in memory.  The number of points
+	 * is fixed in advance, so the columns are written at their final offsets through a small buffer each, and the
+	 * directory, which is the only part held in memory, is written after them.  An instance is not thread safe.
+	 */
+	static final class Writer
+	{
+		/**
+		 * The number of elements in the buffer of each column.
+		 */
+		private static final int BufferSize = 1 << 15;
+
+		private final FileChannel channel;
+		private final int level;
+		private final long size;
+		private final int directoryShift;
+		private final long[] positions;
+		private final ByteBuffer[] buffers = new ByteBuffer[7];
+		private long[] prefixes = new long[64];
+		private long[] starts = new long[64];
+		private int directorySize;
+		private long count;
+		private long last = Long.MIN_VALUE;
+
+		/**
+		 * Creates a file, replacing the file if it exists.
+		 * @param path The path of the file.
+		 * @param level The layer at which points are located, in the range [1,{@link CellId#MaxLevel}].
+		 * @param size The number of points that will be appended.
+		 */
+		Writer(Path path, int level, long size) throws IOException {
+			if(level < 1 || level > CellId.MaxLevel)
+				throw new IllegalArgumentException("The level must be in the range [1," + CellId.MaxLevel + "].");
+			if(size < 0)
+				throw new IllegalArgumentException("The number of points must not be negative.");
+			this.level = level;
+			this.size = size;
+			this.directoryShift = OffHeapPointIndex.directoryShift(level);
+			this.positions = new long[ColumnCount];
+			layout(size, 0, this.positions);
+			for(int c=0; c<7; c++)
+				this.buffers[c] = ByteBuffer.allocateDirect(BufferSize << Shifts[c]).order(ByteOrder.nativeOrder());
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		}
+		/**
+		 * Appends a point that has already been located.
+		 * @param id The cell id at the layer of the index, no less than that of the previous point.
+		 */
+		void append(long id, float lat, float lon, float x, float y, float z, long payload) throws IOException {
+			if(id < this.last)
+				throw new IllegalArgumentException("The points must be appended in ascending order of cell id.");
+			if(this.count == this.size)
+				throw new IllegalStateException("The file is full.");
+			if(!this.buffers[0].hasRemaining())
+				this.flush();
+			this.buffers[0].putLong(id);
+			this.buffers[1].putFloat(lat);
+			this.buffers[2].putFloat(lon);
+			this.buffers[3].putFloat(x);
+			this.buffers[4].putFloat(y);
+			this.buffers[5].putFloat(z);
+			this.buffers[6].putLong(payload);
+
+			long prefix = id >>> this.directoryShift;
+			int n = this.directorySize;
+			if(n == 0 || this.prefixes[n - 1] != prefix) {
+				if(n == this.prefixes.length) {
+					this.prefixes = Arrays.copyOf(this.prefixes, 2 * n);
+					this.starts = Arrays.copyOf(this.starts, 2 * n);
+				}
+				this.prefixes[n] = prefix;
+				this.starts[n] = this.count;
+				this.directorySize = n + 1;
+			}
+			this.count++;
+			this.last = id;
+		}
+		/**
+		 * Writes the directory and the header, after every point has been appended.
+		 */
+		void finish() throws IOException {
+			if(this.count != this.size)
+				throw new IllegalStateException("Only " + this.count + " of " + this.size + " points were appended.");
+			this.flush();
+			long end = layout(this.size, this.directorySize, this.positions);
+			ByteBuffer directory = ByteBuffer.allocate(this.directorySize << 3).order(ByteOrder.nativeOrder());
+			directory.asLongBuffer().put(this.prefixes, 0, this.directorySize);
+			writeFully(this.channel, directory, this.positions[7]);
+			directory.clear();
+			directory.asLongBuffer().put(this.starts, 0, this.directorySize);
+			writeFully(this.channel, directory, this.positions[8]);
+
+			writeFully(this.channel, header(this.level, this.size, ByteOrder.nativeOrder(), this.directorySize, this.positions), 0);
+			this.channel.truncate(end);
+			this.channel.force(true);
+		}
+		/**
+		 * Closes the file.  A file that was not finished is not a valid index.
+		 */
+		void close() throws IOException {
+			this.channel.close();
+		}
+		private void flush() throws IOException {
+			for(int c=0; c<7; c++) {
+				ByteBuffer buffer = this.buffers[c];
+				buffer.flip();
+				this.positions[c] = writeFully(this.channel, buffer, this.positions[c]);
+				buffer.clear();
+			}
+		}
+	}
+
+	private PointIndexFile() {}
+	/**
+	 * Writes an index to a file, replacing the file if it exists.
+	 * @param index The index.
+	 * @param path The path of the file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void write(OffHeapPointIndex index, Path path) throws IOException {
+		OffHeapPointIndex.Column[] columns = index.getColumns();
+		long size = index.size(), directorySize = index.getDirectorySize();
+		long[] offsets = new long[ColumnCount];
+		long position = layout(size, directorySize, offsets);
+		ByteBuffer header = header(index.getLevel(), size, order(columns[0]), directorySize, offsets);
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			writeFully(channel, header, 0);
+			for(int c=0; c<ColumnCount; c++)
+				writeColumn(channel, columns[c], c < 7 ? size : directorySize, offsets[c]);
+			channel.truncate(position);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+	/**
+	 * Opens a file as an index.  The columns are mapped and not read.
+	 * @param path The path of the file.
+	 * @return The index, which is immutable.
+	 * @throws IOException If the file cannot be read, or is not a valid index.
+	 */
+	public static OffHeapPointIndex open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			if(fileSize < PageSize)
+				throw new IOException("The file is too short to be a point index.");
+			ByteBuffer header = ByteBuffer.allocate(PageSize).order(ByteOrder.LITTLE_ENDIAN);
+			while(header.hasRemaining())
+				if(channel.read(header, header.position()) < 0)
+					throw new IOException("The file is too short to be a point index.");
+			header.clear();
+
+			if(header.getLong() != Magic)
+				throw new IOException("The file is not a point index.");
+			int version = header.getInt();
+			if(version != Version)
+				throw new IOException("The version " + version + " of the file is not supported.");
+			int level = header.getInt();
+			long size = header.getLong();
+			int directoryLevel = header.getInt();
+			int order = header.getInt();
+			long directorySize = header.getLong();
+			if(level < 1 || level > CellId.MaxLevel || size < 0 || directoryLevel != Math.min(level, OffHeapPointIndex.DirectoryLevel)
+					|| (order != 0 && order != 1) || directorySize < 0 || directorySize > size)
+				throw new IOException("The header of the file is not valid.");
+			ByteOrder byteOrder = order == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+			OffHeapPointIndex.Column[] columns = new OffHeapPointIndex.Column[ColumnCount];
+			for(int c=0; c<ColumnCount; c++) {
+				long offset = header.getLong();
+				long length = c < 7 ? size : directorySize;
+				if(offset < PageSize || offset > fileSize || length > (fileSize - offset) >>> Shifts[c])
+					throw new IOException("The file is truncated.");
+				columns[c] = map(channel, offset, length, Shifts[c], byteOrder);
+			}
+			return new OffHeapPointIndex(level, size, columns[0], columns[1], columns[2], columns[3], columns[4], columns[5],
+					columns[6], directorySize, columns[7], columns[8]);
+		} finally {
+			//	The mappings remain valid after the channel is closed.
+			channel.close();
+		}
+	}
+
+	/**
+	 * Computes the offsets of the columns.
+	 * @param size The number of points.
+	 * @param directorySize The number of entries in the directory.
+	 * @param output Receives the offsets of the columns.
+	 * @return The length of the file.
+	 */
+	private static long layout(long size, long directorySize, long[] output) {
+		long position = PageSize;
+		for(int c=0; c<ColumnCount; c++) {
+			output[c] = position;
+			long length = c < 7 ? size : directorySize;
+			position = align(position + (length << Shifts[c]));
+		}
+		return position;
+	}
+	private static ByteBuffer header(int level, long size, ByteOrder order, long directorySize, long[] offsets) {
+		ByteBuffer output = ByteBuffer.allocate(PageSize).order(ByteOrder.LITTLE_ENDIAN);
+		output.putLong(Magic);
+		output.putInt(Version);
+		output.putInt(level);
+		output.putLong(size);
+		output.putInt(Math.min(level, OffHeapPointIndex.DirectoryLevel));
+		output.putInt(order == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+		output.putLong(directorySize);
+		for(long offset : offsets)
+			output.putLong(offset);
+		output.clear();
+		return output;
+	}
+	private static OffHeapPointIndex.Column map(FileChannel channel, long offset, long length, int shift, ByteOrder order) throws IOException {
+		int count = (int)((length + OffHeapPointIndex.ChunkSize - 1) >>> OffHeapPointIndex.ChunkShift);
+		ByteBuffer[] chunks = new ByteBuffer[count];
+		for(int c=0; c<count; c++) {
+			long start = (long)c << OffHeapPointIndex.ChunkShift;
+			long elements = Math.min(OffHeapPointIndex.ChunkSize, length - start);
+			chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + (start << shift), elements << shift).order(order);
+		}
+		return new OffHeapPointIndex.Column(chunks, shift);
+	}
+	private static void writeColumn(FileChannel channel, OffHeapPointIndex.Column column, long length, long offset) throws IOException {
+		ByteBuffer[] chunks = column.getChunks();
+		int shift = column.getShift();
+		for(int c=0; length>0; c++) {
+			long elements = Math.min(OffHeapPointIndex.ChunkSize, length);
+			//	A duplicate, so that the position of the column's buffer is not modified.
+			ByteBuffer chunk = chunks[c].duplicate();
+			chunk.clear().limit((int)(elements << shift));
+			offset = writeFully(channel, chunk, offset);
+			length -= elements;
+		}
+	}
+	private static long writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while(buffer.hasRemaining())
+			offset += channel.write(buffer, offset);
+		return offset;
+	}
+	/**
+	 * Gets the byte order of a column, which is that of the machine for a column that was built rather than mapped.
+	 */
+	private static ByteOrder order(OffHeapPointIndex.Column column) {
+		ByteBuffer[] chunks = column.getChunks();
+		return chunks.length > 0 && chunks[0] != null ? chunks[0].order() : ByteOrder.nativeOrder();
+	}
+	private static long align(long position) {
+		return (position + PageSize - 1) & -(long)PageSize;
+	}
+}
@@ -0,0 +1,33 @@
+package com.github.adaviding.numerics.sphere;
+
+/**
+ * The points of an index sorted by cell id, as read by {@link NearestNeighbors} and {@link RadiusQuery}.  The points
+ * are addressed by long indices, so that a store is not limited to the length of an array.
+ */
+abstract class PointStore
+{
+	/**
+	 * Gets the layer at which points are located.
+	 * @return The layer, in the range [1,{@link CellId#MaxLevel}].
+	 */
+	public abstract int getLevel();
+	/**
+	 * Sorts any points that are not sorted yet.  This is called before every search.
+	 */
+	abstract void prepare();
+	/**
+	 * Gets the number of points.
+	 */
+	abstract long count();
+	abstract long idAt(long i);
+	abstract float latAt(long i);
+	abstract float lonAt(long i);
+	abstract float xAt(long i);
+	abstract float yAt(long i);
+	abstract float zAt(long i);
+	abstract long payloadAt(long i);
+	/**
+	 * Finds the first point in a range whose cell id is greater than a key.
+	 */
+	abstract long upperBound(long key, long from, long to);
+}
@@ -0,0 +1,378 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.f3.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Approximates a {@link SphericalPolygon} by a set of subtriangles at mixed layers:  coarse subtriangles for the
+ * interior, and fine subtriangles along the boundary.
+ *
+ * The covering is refined one subtriangle at a time, coarsest first.  A subtriangle that crosses the boundary of the
+ * polygon is replaced by its children that intersect the polygon, unless it lies at the maximum layer, or unless the
+ * replacement would exceed the maximum number of cells.  A subtriangle within the polygon is kept whole once it reaches
+ * the minimum layer.  The result always covers the polygon.
+ *
+ * The edges of the polygon are treated as great circle arcs.  Each candidate subtriangle carries the edges that come
+ * near it, so a test only considers a few edges even when the polygon has thousands of vertices.  A subtriangle that no
+ * edge crosses lies entirely inside or entirely outside the polygon, which is decided by whether its center is inside.
+ * That is propagated from parent to child by counting the edges that cross the arc between their centers, starting from
+ * the centroid of the polygon.  All tests are products of unit vectors, without trigonometry.
+ */
+public class PolygonCoverer
+{
+	/**
+	 * The shortest length of the returned addresses, in the range [1,{@link Tessellation#MaxDepth}].
+	 */
+	public final int minLevel;
+	/**
+	 * The longest length of the returned addresses, in the range [minLevel,{@link Tessellation#MaxDepth}].
+	 */
+	public final int maxLevel;
+	/**
+	 * The maximum number of subtriangles to return.  This limit yields to minLevel:  if the polygon intersects more than
+	 * maxCells subtriangles at the minimum layer, then all of them are returned.
+	 */
+	public final int maxCells;
+
+	/**
+	 * Constructs a coverer.
+	 * @param minLevel The shortest length of the returned addresses, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @param maxLevel The longest length of the returned addresses, in the range [minLevel,{@link Tessellation#MaxDepth}].
+	 * @param maxCells The maximum number of subtriangles to return, at least 8.
+	 */
+	public PolygonCoverer(int minLevel, int maxLevel, int maxCells) {
+		if(minLevel < 1 || maxLevel < minLevel || maxLevel > Tessellation.MaxDepth)
+			throw new IllegalArgumentException("The levels must satisfy 1 <= minLevel <= maxLevel <= " + Tessellation.MaxDepth + ".");
+		if(maxCells < 8)
+			throw new IllegalArgumentException("The maximum number of cells must be at least 8.");
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+		this.maxCells = maxCells;
+	}
+	/**
+	 * Computes a covering of a polygon.
+	 * @param polygon The polygon.
+	 * @return The 64-bit packed addresses of disjoint subtriangles whose union covers the polygon, in ascending order.  See
+	 * {@link Subtriangle#pack64(byte[])}.  The result is empty if the polygon has fewer than 3 vertices.
+	 */
+	public long[] cover(SphericalPolygon polygon) {
+		if(polygon.uvecs == null)
+			return new long[0];
+		Edges edges = new Edges(polygon.uvecs);
+
+		//	The centroid maps to (0,0) in the rotated coordinates of the planar polygon.
+		Point r = polygon.centroidUvec;
+		double rx = r.x, ry = r.y, rz = r.z;
+		boolean refInside = polygon.polygon.contains(0.0f, 0.0f) >= 0;
+		Covering result = new Covering(edges.count);
+		for(int i=0; i<edges.count; i++)
+			result.edges[i] = i;
+		result.edgeCount = edges.count;
+
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+		for(int octant=0; octant<8; octant++) {
+			Candidate c = new Candidate(PackedId.forOctant(octant), 1);
+			CellCover.octantVertices(octant, c.face);
+			c.initGeometry();
+			c.inside = refInside ^ ((edges.countCrossings(result.edges, 0, edges.count, rx, ry, rz, c.cx, c.cy, c.cz) & 1) == 1);
+			c.classify(edges, result, 0, edges.count);
+			addCandidate(c, result, queue);
+		}
+
+		double[] mid = new double[9];
+		ArrayList<Candidate> children = new ArrayList<Candidate>(4);
+		while(!queue.isEmpty()) {
+			Candidate c = queue.poll();
+			if(c.level >= this.maxLevel) {
+				result.add(c.id);
+				continue;
+			}
+
+			children.clear();
+			CellCover.midpoints(c.face, mid);
+			for(int k=0; k<4; k++) {
+				Candidate child = new Candidate(PackedId.child(c.id, k), c.level + 1);
+				CellCover.childVertices(c.face, mid, k, child.face);
+				child.initGeometry();
+				if(c.state == CellCover.Contained) {
+					child.state = CellCover.Contained;
+				} else {
+					child.inside = c.inside ^ ((edges.countCrossings(result.edges, c.edgeStart, c.edgeCount, c.cx, c.cy, c.cz, child.cx, child.cy, child.cz) & 1) == 1);
+					child.classify(edges, result, c.edgeStart, c.edgeCount);
+				}
+				if(child.state != CellCover.Disjoint)
+					children.add(child);
+			}
+
+			if(c.level >= this.minLevel && result.count + queue.size() + children.size() > this.maxCells) {
+				result.add(c.id);
+				continue;
+			}
+			for(Candidate child : children)
+				addCandidate(child, result, queue);
+		}
+
+		long[] output = Arrays.copyOf(result.output, result.count);
+		Arrays.sort(output);
+		return output;
+	}
+
+	/**
+	 * Computes a covering of a polygon, as a normalized union.  See {@link #cover(SphericalPolygon)}.
+	 * @param polygon The polygon.
+	 * @return The union of the cells, which covers the polygon.  The union may hold fewer cells than the covering,
+	 * because complete sets of siblings are merged into their parents.
+	 */
+	public CellUnion coverUnion(SphericalPolygon polygon) {
+		return CellUnion.fromPacked64(this.cover(polygon));
+	}
+
+	private void addCandidate(Candidate c, Covering result, PriorityQueue<Candidate> queue) {
+		if(c.state == CellCover.Disjoint)
+			return;
+		if(c.state == CellCover.Contained && c.level >= this.minLevel)
+			result.add(c.id);
+		else
+			queue.add(c);
+	}
+
+	/**
+	 * The state of one call to {@link #cover(SphericalPolygon)}.
+	 */
+	private static final class Covering
+	{
+		private long[] output = new long[64];
+		private int count = 0;
+		/**
+		 * The indices of the edges kept by the candidates that cross the boundary, each in a range of this array.  The
+		 * first range holds every edge, for the octants.
+		 */
+		private int[] edges;
+		private int edgeCount = 0;
+
+		Covering(int edgeCount) {
+			this.edges = new int[Math.max(16, 4 * edgeCount)];
+		}
+
+		void add(long id) {
+			if(this.count == this.output.length)
+				this.output = Arrays.copyOf(this.output, 2 * this.count);
+			this.output[this.count++] = id;
+		}
+		/**
+		 * Ensures that a range of the given length can be written after the ranges kept so far.
+		 */
+		void reserve(int length) {
+			if(this.edgeCount + length > this.edges.length)
+				this.edges = Arrays.copyOf(this.edges, Math.max(this.edgeCount + length, 2 * this.edges.length));
+		}
+	}
+
+	/**
+	 * A subtriangle being considered for the covering.
+	 */
+	private static final class Candidate implements Comparable<Candidate>
+	{
+		final long id;
+		final int level;
+		/**
+		 * The face points of the vertices, see {@link CellCover}.
+		 */
+		final double[] face = new double[9];
+		/**
+		 * The unit vectors of the vertices.
+		 */
+		final double[] unit = new double[9];
+		/**
+		 * The center, and the cosine of the radius of the bounding cap.
+		 */
+		double cx, cy, cz, cosB;
+		/**
+		 * True if the center lies inside the polygon.
+		 */
+		boolean inside;
+		int state;
+		/**
+		 * The range of {@link Covering#edges} that holds the indices of the edges that intersect the bounding cap.  The
+		 * range is kept only if the subtriangle crosses the boundary, since the children of the others are not tested.
+		 */
+		int edgeStart;
+		int edgeCount;
+
+		Candidate(long id, int level) {
+			this.id = id;
+			this.level = level;
+		}
+
+		void initGeometry() {
+			CellCover.normalize(this.face, this.unit);
+			double[] v = this.unit;
+			double mx = v[0] + v[3] + v[6], my = v[1] + v[4] + v[7], mz = v[2] + v[5] + v[8];
+			double s = 1.0 / Math.sqrt(mx*mx + my*my + mz*mz);
+			this.cx = s * mx;
+			this.cy = s * my;
+			this.cz = s * mz;
+			this.cosB = Math.min(Math.min(
+					this.cx*v[0] + this.cy*v[1] + this.cz*v[2],
+					this.cx*v[3] + this.cy*v[4] + this.cz*v[5]),
+					this.cx*v[6] + this.cy*v[7] + this.cz*v[8]);
+		}
+		/**
+		 * Keeps the edges of the parent that come near this subtriangle, and classifies it.
+		 */
+		void classify(Edges edges, Covering result, int parentStart, int parentCount) {
+			double sinB = Math.sqrt(Math.max(0.0, 1.0 - this.cosB*this.cosB));
+			result.reserve(parentCount);
+			int[] pool = result.edges;
+			int start = result.edgeCount, count = 0;
+			boolean crossing = false;
+			for(int i=0; i<parentCount; i++) {
+				int e = pool[parentStart + i];
+				if(!edges.intersectsCap(e, this.cx, this.cy, this.cz, this.cosB, sinB))
+					continue;
+				pool[start + count++] = e;
+				if(!crossing && edges.intersectsTriangle(e, this.unit))
+					crossing = true;
+			}
+			if(crossing) {
+				this.state = CellCover.Crossing;
+				this.edgeStart = start;
+				this.edgeCount = count;
+				result.edgeCount += count;
+			} else {
+				this.state = this.inside ? CellCover.Contained : CellCover.Disjoint;
+			}
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			if(this.level != other.level)
+				return this.level < other.level ? -1 : 1;
+			return Long.compare(this.id, other.id);
+		}
+	}
+
+	/**
+	 * The edges of a polygon, as great circle arcs between consecutive vertices.
+	 */
+	private static final class Edges
+	{
+		final int count;
+		/**
+		 * The unit vectors of the start and end of each edge, and the unit normal of its great circle, stored as 9
+		 * values per edge:  (ax,ay,az,bx,by,bz,nx,ny,nz).
+		 */
+		final double[] data;
+
+		Edges(Point[] uvecs) {
+			this.count = uvecs.length;
+			this.data = new double[9 * this.count];
+			for(int i=0; i<this.count; i++) {
+				Point a = uvecs[i];
+				Point b = uvecs[i + 1 == this.count ? 0 : i + 1];
+				int o = 9*i;
+				double sa = 1.0 / Math.sqrt((double)a.x*a.x + (double)a.y*a.y + (double)a.z*a.z);
+				double sb = 1.0 / Math.sqrt((double)b.x*b.x + (double)b.y*b.y + (double)b.z*b.z);
+				double ax = sa*a.x, ay = sa*a.y, az = sa*a.z;
+				double bx = sb*b.x, by = sb*b.y, bz = sb*b.z;
+				double nx = ay*bz - az*by, ny = az*bx - ax*bz, nz = ax*by - ay*bx;
+				double n = Math.sqrt(nx*nx + ny*ny + nz*nz);
+				double sn = n > 0.0 ? 1.0 / n : 0.0;
+				this.data[o] = ax;		this.data[o+1] = ay;		this.data[o+2] = az;
+				this.data[o+3] = bx;	this.data[o+4] = by;		this.data[o+5] = bz;
+				this.data[o+6] = sn*nx;	this.data[o+7] = sn*ny;		this.data[o+8] = sn*nz;
+			}
+		}
+		/**
+		 * Determines whether an edge comes within the radius of a cap:  either an end lies in the cap, or the point of
+		 * the great circle nearest to the center lies between the ends and within the radius.
+		 */
+		boolean intersectsCap(int e, double cx, double cy, double cz, double cosR, double sinR) {
+			double[] d = this.data;
+			int o = 9*e;
+			if(cx*d[o] + cy*d[o+1] + cz*d[o+2] >= cosR || cx*d[o+3] + cy*d[o+4] + cz*d[o+5] >= cosR)
+				return true;
+			double cn = cx*d[o+6] + cy*d[o+7] + cz*d[o+8];
+			if(cosR >= 0.0 && Math.abs(cn) > sinR)
+				return false;
+			return onArc(d, o, cx, cy, cz);
+		}
+		/**
+		 * Determines whether an edge touches a spherical triangle:  either an end lies in the triangle, or the edge
+		 * crosses an edge of the triangle.
+		 */
+		boolean intersectsTriangle(int e, double[] v) {
+			double[] d = this.data;
+			int o = 9*e;
+			if(insideTriangle(v, d[o], d[o+1], d[o+2]) || insideTriangle(v, d[o+3], d[o+4], d[o+5]))
+				return true;
+			for(int i=0; i<9; i+=3) {
+				int j = i == 6 ? 0 : i + 3;
+				if(crosses(d[o], d[o+1], d[o+2], d[o+3], d[o+4], d[o+5], v[i], v[i+1], v[i+2], v[j], v[j+1], v[j+2]))
+					return true;
+			}
+			return false;
+		}
+		/**
+		 * Counts the edges that cross the arc from p to q.
+		 */
+		int countCrossings(int[] edges, int start, int count, double px, double py, double pz, double qx, double qy, double qz) {
+			double[] d = this.data;
+			int output = 0;
+			for(int i=start; i<start+count; i++) {
+				int o = 9*edges[i];
+				if(crosses(d[o], d[o+1], d[o+2], d[o+3], d[o+4], d[o+5], px, py, pz, qx, qy, qz))
+					output++;
+			}
+			return output;
+		}
+
+		private static boolean onArc(double[] d, int o, double cx, double cy, double cz) {
+			//	The point of the great circle nearest to c lies between a and b when (a x c).n >= 0 and (c x b).n >= 0.
+			double ax = d[o], ay = d[o+1], az = d[o+2];
+			double bx = d[o+3], by = d[o+4], bz = d[o+5];
+			double nx = d[o+6], ny = d[o+7], nz = d[o+8];
+			double acn = (ay*cz - az*cy)*nx + (az*cx - ax*cz)*ny + (ax*cy - ay*cx)*nz;
+			double cbn = (cy*bz - cz*by)*nx + (cz*bx - cx*bz)*ny + (cx*by - cy*bx)*nz;
+			return acn >= 0.0 && cbn >= 0.0;
+		}
+	}
+	/**
+	 * Determines whether a point lies in a spherical triangle, or on its boundary.
+	 */
+	private static boolean insideTriangle(double[] v, double px, double py, double pz) {
+		int positive = 0, negative = 0;
+		for(int i=0; i<9; i+=3) {
+			int j = i == 6 ? 0 : i + 3;
+			double s = det(v[i], v[i+1], v[i+2], v[j], v[j+1], v[j+2], px, py, pz);
+			if(s >= 0.0)
+				positive++;
+			if(s <= 0.0)
+				negative++;
+		}
+		return positive == 3 || negative == 3;
+	}
+	/**
+	 * Determines whether the arcs ab and cd cross at a point interior to both.
+	 */
+	private static boolean crosses(
+			double ax, double ay, double az, double bx, double by, double bz,
+			double cx, double cy, double cz, double dx, double dy, double dz) {
+		double acb = -det(ax, ay, az, bx, by, bz, cx, cy, cz);
+		double bda = det(ax, ay, az, bx, by, bz, dx, dy, dz);
+		if(acb * bda <= 0.0)
+			return false;
+		double cbd = -det(cx, cy, cz, dx, dy, dz, bx, by, bz);
+		double dac = det(cx, cy, cz, dx, dy, dz, ax, ay, az);
+		return acb * cbd > 0.0 && acb * dac > 0.0;
+	}
+	/**
+	 * Computes the triple product (a x b).c.
+	 */
+	private static double det(double ax, double ay, double az, double bx, double by, double bz, double cx, double cy, double cz) {
+		return (ay*bz - az*by)*cx + (az*bx - ax*bz)*cy + (ax*by - ay*bx)*cz;
+	}
+}
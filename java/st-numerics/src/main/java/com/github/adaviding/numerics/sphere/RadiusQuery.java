@@ -0,0 +1,160 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+import java.util.Arrays;
+
+/**
+ * Finds the points of a {@link PointStore} within a distance of a coordinate.
+ *
+ * The search descends from the octants through the subtriangles that hold points, as in {@link NearestNeighbors}, and
+ * classifies each one against the cap of the query with {@link CellCover.CapRegion}.  A disjoint subtriangle is
+ * pruned, a contained subtriangle is accepted as a whole slice of the index without looking at its points, and a
+ * crossing subtriangle is subdivided until it holds few points, which are then tested one at a time.
+ *
+ * A point is within the distance when {@link LatLon#distRadians(float, float, float, float)} says so, but that
+ * function is only called for points near the edge of the cap.  Every other point is decided by the squared chord
+ * from the center to its unit vector, which is 2 - 2 cos(d) but is computed from differences, so it keeps its
+ * precision for small distances.  The unit vectors of the points are stored in single precision, so the chord is
+ * trusted only outside of a band of {@link #ChordError} around the chord of the radius.  Likewise, subtriangles are
+ * accepted or pruned against caps that are a little smaller or larger than the query.  The result is therefore exactly
+ * the set of points within the distance.
+ *
+ * An instance answers one query.
+ */
+final class RadiusQuery
+{
+	/**
+	 * A crossing subtriangle holding no more points than this is scanned rather than subdivided.
+	 */
+	private static final int LeafSize = 16;
+	/**
+	 * The amount by which the radius is decreased to accept a subtriangle whole, and increased to prune it, in radians.
+	 * It covers the rounding of the vertices of the subtriangles.
+	 */
+	private static final double CellMargin = 1e-9;
+	/**
+	 * A bound of the error of the chord from the center to a unit vector stored in single precision.  The rounding of
+	 * each ordinate is at most 2^-24 of its magnitude, so the rounded vector is within 6e-8 of the exact one.
+	 */
+	private static final double ChordError = 2e-7;
+
+	private final PointStore index;
+	private final float lat, lon;
+	private final double radius;
+	private final double cx, cy, cz;
+	private final CellCover.CapRegion inner, outer;
+	/**
+	 * The squared chords below which a point is within the distance, and above which it is not.
+	 */
+	private final double inner2, outer2;
+	private final boolean collect;
+	private final CellGeometry geometry = new CellGeometry();
+	private final double[] vertices = new double[9];
+	private long[] output;
+	private long count;
+
+	/**
+	 * Constructs a query.
+	 * @param index The store of the points.
+	 * @param lat The latitude of the center in degrees.
+	 * @param lon The longitude of the center in degrees.
+	 * @param radius The distance in radians, at least 0.
+	 * @param collect True to collect the indices of the points, false to count them only.
+	 */
+	RadiusQuery(PointStore index, float lat, float lon, double radius, boolean collect) {
+		this.index = index;
+		this.lat = lat;
+		this.lon = lon;
+		this.radius = Math.min(radius, Math.PI);
+		this.collect = collect;
+		this.output = collect ? new long[64] : null;
+
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		this.cx = cLat * Math.sin(rlon);
+		this.cy = Math.sin(rlat);
+		this.cz = -cLat * Math.cos(rlon);
+		this.inner = new CellCover.CapRegion(this.cx, this.cy, this.cz, Math.max(0.0, this.radius - CellMargin));
+		this.outer = new CellCover.CapRegion(this.cx, this.cy, this.cz, Math.min(Math.PI, this.radius + CellMargin));
+
+		double chord = 2.0 * Math.sin(0.5 * this.radius);
+		double lo = Math.max(0.0, chord - ChordError), hi = chord + ChordError;
+		this.inner2 = lo * lo;
+		this.outer2 = hi * hi;
+	}
+	/**
+	 * Runs the query.
+	 * @return The number of points within the distance.
+	 */
+	long run() {
+		PointStore index = this.index;
+		index.prepare();
+		if(Float.isNaN(this.lat) || Float.isNaN(this.lon))
+			return 0;
+		long size = index.count();
+		long lsb = CellId.lsbForLevel(1);
+		long start = 0;
+		for(int octant=0; octant<8 && start<size; octant++) {
+			long cell = ((long)octant << 60) | lsb;
+			long end = index.upperBound(CellId.rangeMax(cell), start, size);
+			if(end > start)
+				this.visit(cell, start, end);
+			start = end;
+		}
+		return this.count;
+	}
+	/**
+	 * Gets the indices of the points found by {@link #run()}.
+	 * @return The indices, in ascending order.
+	 */
+	long[] points() {
+		return Arrays.copyOf(this.output, (int)this.count);
+	}
+
+	private void visit(long cell, long start, long end) {
+		double[] v = this.vertices;
+		this.geometry.vertices(CellId.toPacked64(cell), v);
+		if(this.outer.classify(v) == CellCover.Disjoint)
+			return;
+		if(this.inner.classify(v) == CellCover.Contained) {
+			this.accept(start, end);
+			return;
+		}
+
+		PointStore index = this.index;
+		if(end - start <= LeafSize || CellId.level(cell) == index.getLevel()) {
+			for(long i=start; i<end; i++) {
+				double dx = this.cx - index.xAt(i), dy = this.cy - index.yAt(i), dz = this.cz - index.zAt(i);
+				double d2 = dx*dx + dy*dy + dz*dz;
+				if(d2 <= this.inner2
+						|| d2 <= this.outer2 && LatLon.distRadians(this.lat, this.lon, index.latAt(i), index.lonAt(i)) <= this.radius)
+					this.accept(i, i + 1);
+			}
+			return;
+		}
+
+		//	The children are in ascending order of cell id, so the points are found in ascending order.
+		for(int c=0; c<4; c++) {
+			long child = CellId.child(cell, c);
+			long childEnd = c == 3 ? end : index.upperBound(CellId.rangeMax(child), start, end);
+			if(childEnd > start)
+				this.visit(child, start, childEnd);
+			start = childEnd;
+		}
+	}
+	private void accept(long start, long end) {
+		if(this.collect) {
+			long n = this.count + end - start;
+			if(n > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException("The query matches more points than an array can hold.");
+			if(n > this.output.length)
+				this.output = Arrays.copyOf(this.output, (int)Math.max(n, Math.min(2L * this.output.length, Integer.MAX_VALUE - 8)));
+			for(long i=start; i<end; i++)
+				this.output[(int)this.count++] = i;
+		} else {
+			this.count += end - start;
+		}
+	}
+}
@@ -42,6 +42,11 @@ public class SphericalPolygon
 	 * the "centroidToOrigin" rotation.  On such a sphere, the polygon's centroid is exactly (y=Lat=0,x=Lon=0).
 	 */
 	protected final Polygon polygon;
+	/**
+	 * The unit vectors of the polygon vertices, in the order they were specified.  Consecutive vertices (and the last and
+	 * first vertex) are joined by the edges of the polygon.
+	 */
+	protected final Point[] uvecs;
 	/**
 	 * The perimeter length, in units of degrees.
 	 *
@@ -68,11 +73,13 @@ public class SphericalPolygon
 			this.centroidUvec = null;
 			this.centroidToOrigin = null;
 			this.polygon = null;
+			this.uvecs = null;
 			this.perimeter = 0.0f;
 			return;
 		}
 
 		this.polygon = new Polygon(vertices.size());
+		this.uvecs = new Point[vertices.size()];
 
 		//	----------------------------------------
 		//	Compute the centroid as an f3.Point, by computing the weighted average of vectors.
@@ -135,7 +142,8 @@ public class SphericalPolygon
 			LatLon ll = vertices.get(i);
 			this.cap.expandToInclude(ll);
 			//	Rotate to the centroid-at-origin space.
-			pThis = LatLon.fromUnitVector(this.centroidToOrigin.multiply(ll.toUnitVector()));
+			this.uvecs[i] = ll.toUnitVector();
+			pThis = LatLon.fromUnitVector(this.centroidToOrigin.multiply(this.uvecs[i]));
 			//	Store as (Lon,Lat)
 			this.polygon.vertices[i] = new com.github.adaviding.numerics.f2.Point(pThis.lon, pThis.lat);
 		}
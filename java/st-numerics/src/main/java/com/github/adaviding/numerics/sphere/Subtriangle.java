@@ -4,6 +4,7 @@ import com.github.adaviding.numerics.f3.Plane;
 import com.github.adaviding.numerics.f3.Point;
 
 import javax.validation.constraints.NotNull;
+import java.util.Arrays;
 
 /**
  * This class represents a spherical triangle covering a portion of the sphere's surface.  Except for the root node
@@ -27,6 +28,17 @@ import javax.validation.constraints.NotNull;
  *
  * In general, the i-th layer is a uniform tessellation of the unit sphere consisting of 8*4^(i-1) equilateral spherical triangles of equal size.
  *
+ * A subtriangle is 4-sected by joining the midpoints of its edges, where each midpoint is taken on the face of the
+ * octahedron that circumscribes the octant (i.e. the plane |x| + |y| + |z| = 1) and then projected back to the unit
+ * sphere.  The midpoints lie on the great circle arcs of the parent, so every edge of every subtriangle is a great
+ * circle arc.  Given the parent vertices (v0, v1, v2) and the midpoints m01, m12 and m20, the vertices of the children are
+ * {@literal
+ * 		0 --> (m12, m01, m20)
+ * 		1 --> (v0,  m01, m20)
+ * 		2 --> (m01, v1,  m12)
+ * 		3 --> (m20, m12, v2 )
+ * }
+ *
  * @url http://mathworld.wolfram.com/SphericalTriangle.html
  */
 public class Subtriangle
@@ -118,8 +130,16 @@ public class Subtriangle
 	 * @return The calculated plane.
 	 */
 	private static Plane calcPlane(Point a, Point b, Point posSide) {
-		Point unitCross = Point.cross(a,b).toUnitVector();
-		Plane output = new Plane(0f, unitCross.x, unitCross.y, unitCross.z);
+		//	The cross product a x b is computed as a x (b - a).  This avoids cancellation when a and b are close together,
+		//	which would otherwise tilt the planes of small subtriangles by more than their size.
+		double dx = (double)b.x - a.x;
+		double dy = (double)b.y - a.y;
+		double dz = (double)b.z - a.z;
+		double nx = a.y*dz - a.z*dy;
+		double ny = a.z*dx - a.x*dz;
+		double nz = a.x*dy - a.y*dx;
+		double norm = Math.sqrt(nx*nx + ny*ny + nz*nz);
+		Plane output = new Plane(0f, (float)(nx/norm), (float)(ny/norm), (float)(nz/norm));
 		if(output.signedDistance(posSide)<0f)
 			output = output.conjugate();
 		return output;
@@ -127,6 +147,81 @@ public class Subtriangle
 	public void updatePlanes() {
 		this.planes = calcPlanes(this.vertices);
 	}
+	/**
+	 * Calculates the midpoint of an edge.  The midpoint is taken on the face of the octahedron that circumscribes the
+	 * octant (the plane |x| + |y| + |z| = 1) and then projected back to the unit sphere.
+	 * @param a One end of the edge.  Typically a unit vector.
+	 * @param b The other end of the edge.  Typically a unit vector.
+	 * @return The midpoint, as a unit vector.
+	 */
+	public static Point midpoint(@NotNull Point a, @NotNull Point b) {
+		double la = Math.abs(a.x) + Math.abs(a.y) + Math.abs(a.z);
+		double lb = Math.abs(b.x) + Math.abs(b.y) + Math.abs(b.z);
+		double x = a.x / la + b.x / lb;
+		double y = a.y / la + b.y / lb;
+		double z = a.z / la + b.z / lb;
+		double norm = Math.sqrt(x*x + y*y + z*z);
+		return new Point((float)(x / norm), (float)(y / norm), (float)(z / norm));
+	}
+	/**
+	 * Determines whether a point lies on the subtriangle, i.e. whether its signed distance to all 3 planes is non-negative.
+	 * @param uvec The point, typically a unit vector.
+	 * @return True if the point lies on the subtriangle or on its edge, false otherwise.
+	 */
+	public boolean contains(@NotNull Point uvec) {
+		return this.planes[0].signedDistance(uvec) >= 0f
+				&& this.planes[1].signedDistance(uvec) >= 0f
+				&& this.planes[2].signedDistance(uvec) >= 0f;
+	}
+	/**
+	 * Creates the 4 children of this subtriangle, unless they already exist.  See the class description for the vertices
+	 * of each child.
+	 * @return The children, indexed by the last entry of their address.
+	 */
+	public Subtriangle[] subdivide() {
+		if(this.children != null)
+			return this.children;
+		if(this.vertices == null)
+			throw new IllegalStateException("The root node cannot be subdivided.  Its children are the octants.");
+
+		Point m01 = midpoint(this.vertices[0], this.vertices[1]);
+		Point m12 = midpoint(this.vertices[1], this.vertices[2]);
+		Point m20 = midpoint(this.vertices[2], this.vertices[0]);
+
+		Subtriangle[] output = new Subtriangle[4];
+		output[0] = this.createChild(0, m12, m01, m20);
+		output[1] = this.createChild(1, this.vertices[0], m01, m20);
+		output[2] = this.createChild(2, m01, this.vertices[1], m12);
+		output[3] = this.createChild(3, m20, m12, this.vertices[2]);
+		this.children = output;
+		return output;
+	}
+	private Subtriangle createChild(int digit, Point v0, Point v1, Point v2) {
+		Subtriangle output = new Subtriangle();
+		output.parent = this;
+		output.address = Arrays.copyOf(this.address, this.address.length + 1);
+		output.address[this.address.length] = (byte)digit;
+		output.vertices = new Point[] { v0, v1, v2 };
+		output.updatePlanes();
+		return output;
+	}
+	/**
+	 * Finds the child containing a point, using the planes of the central child.  If the point lies on the negative side
+	 * of a plane of the central child, then it belongs to the child in the corner beyond that plane.  The children must
+	 * already exist.
+	 * @param uvec The point, typically a unit vector lying on this subtriangle.
+	 * @return The child containing the point.
+	 */
+	public Subtriangle childContaining(@NotNull Point uvec) {
+		Plane[] center = this.children[0].planes;
+		if(center[1].signedDistance(uvec) < 0f)
+			return this.children[1];
+		if(center[0].signedDistance(uvec) < 0f)
+			return this.children[2];
+		if(center[2].signedDistance(uvec) < 0f)
+			return this.children[3];
+		return this.children[0];
+	}
 	/**
 	 * 32-bytes is capable of identifying any spherical triangle of ~3.8 square meters on the surface of a
 	 * tessellated Earth sphere.  Superordinate triangles may also be addressed.
@@ -166,7 +261,7 @@ public class Subtriangle
 		long output = ((long)idLength << 59) + ((long)address[0] << 56);
 		int shift = 54;
 		for(int i=1; i<idLength; i++) {
-			output += (int)address[i] << shift;
+			output += (long)address[i] << shift;
 			shift -= 2;
 		}
 
@@ -178,18 +273,18 @@ public class Subtriangle
 	 * @return The unpacked subtriangle address.  See {@link #address}.
 	 */
 	public static byte[] unpack32(int packed) {
-		int idLength = packed >> 27;
+		int idLength = packed >>> 27;
 		byte[] output = new byte[idLength];
 		if (idLength==0)
 			return output;
 
 		packed = (packed << 5);
 
-		output[0] = (byte)(packed >> 29);
+		output[0] = (byte)(packed >>> 29);
 		packed = (packed << 3);
 
 		for(int i=1; i<idLength; i++) {
-			output[i] = (byte)(packed >> 30);
+			output[i] = (byte)(packed >>> 30);
 			packed = (packed << 2);
 		}
 		return output;
@@ -200,18 +295,18 @@ public class Subtriangle
 	 * @return The unpacked subtriangle address.  See {@link #address}.
 	 */
 	public static byte[] unpack64(long packed) {
-		int idLength = (int)(packed >> 59);
+		int idLength = (int)(packed >>> 59);
 		byte[] output = new byte[idLength];
 		if (idLength==0)
 			return output;
 
 		packed = (packed << 5);
 
-		output[0] = (byte)(packed >> 61);
+		output[0] = (byte)(packed >>> 61);
 		packed = (packed << 3);
 
 		for(int i=1; i<idLength; i++) {
-			output[i] = (byte)(packed >> 62);
+			output[i] = (byte)(packed >>> 62);
 			packed = (packed << 2);
 		}
 		return output;
@@ -26,7 +26,7 @@ public class SurfaceRect extends Rect
 		else
 		{
 			//	Irregular:  intersects international date line.
-			return p.y >=this.bottom && p.y <=this.top && (p.x <=this.left || p.x >=this.right);
+			return p.y >=this.bottom && p.y <=this.top && (p.x >=this.left || p.x <=this.right);
 		}
 	}
 	/**
@@ -46,7 +46,7 @@ public class SurfaceRect extends Rect
 		else
 		{
 			//	Irregular:  intersects international date line.
-			return y>=this.bottom && y<=this.top && (x<=this.left || x>=this.right);
+			return y>=this.bottom && y<=this.top && (x>=this.left || x<=this.right);
 		}
 	}
 	/**
@@ -64,7 +64,7 @@ public class SurfaceRect extends Rect
 		else
 		{
 			//	Irregular:  intersects international date line.
-			return x.lat>=this.bottom && x.lat<=this.top && (x.lon<=this.left || x.lon>=this.right);
+			return x.lat>=this.bottom && x.lat<=this.top && (x.lon>=this.left || x.lon<=this.right);
 		}
 	}
 	/**
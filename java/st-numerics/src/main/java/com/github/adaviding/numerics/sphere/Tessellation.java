@@ -1,7 +1,12 @@
 package com.github.adaviding.numerics.sphere;
 
+import com.github.adaviding.numerics.D;
+import com.github.adaviding.numerics.f3.Plane;
 import com.github.adaviding.numerics.f3.Point;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 /**
  * This class represents a mosaic of spherical triangles that uniformly cover the surface of a sphere.  It is useful for
  * quickly mapping a LatLon coordinate to a numbered spherical triangle which contains the LatLon.  It is also useful for
@@ -23,6 +28,10 @@ import com.github.adaviding.numerics.f3.Point;
  * The third layer of subtriangles  is created by 4-secting each subtriangle from layer 2, resulting in 128 subtriangles at layer 3.
  * The i-th layer is a uniform tessellation of the unit sphere consisting of 8*4^(i-1) equally sized equilateral spherical triangles.
  *
+ * The hierarchy is subdivided lazily.  Only the octants are created by the constructor, and the children of a subtriangle
+ * are created the first time {@link #find(LatLon)} visits it.  The number of materialized nodes is bounded by a node
+ * budget.  When the budget is exceeded, the subdivisions that were least recently visited are discarded.
+ *
  * @url http://mathworld.wolfram.com/SphericalTriangle.html
  * @url http://en.wikipedia.org/wiki/Tessellation#Tessellations_with_triangles_and_quadrilaterals
  */
@@ -39,57 +48,471 @@ public class Tessellation
 	 */
 	private Subtriangle root;
 	/**
-	 * Constructs a tessellation to the given depth.
+	 * The maximum number of materialized nodes, not including the root.
+	 */
+	private final int maxNodes;
+	/**
+	 * The number of materialized nodes, not including the root.
+	 */
+	private int nodeCount;
+	/**
+	 * The subdivided nodes (i.e. the nodes with children), in order of least recent to most recent visit.  A node is always
+	 * visited after its descendants, so the least recently visited node has no subdivided children.
+	 */
+	private final LinkedHashMap<Subtriangle, Subtriangle> subdivided = new LinkedHashMap<Subtriangle, Subtriangle>(16, 0.75f, true);
+	/**
+	 * The maximum depth that can be addressed by {@link Subtriangle#pack64(byte[])}.
+	 */
+	public static final int MaxDepth = 29;
+	/**
+	 * The axis indices (0 = x, 1 = y, 2 = z) of the octant vertices, in the vertex order of {@link Subtriangle#vertices},
+	 * for octants 0 through 3.  Octants 4 through 7 are the reflection of octants 0 through 3 across the equator.  The
+	 * order of the octants matches the table in {@link Subtriangle#address}.
+	 */
+	static final int[][] OctantAxes = {
+			{1, 0, 2},	//	90 <= lon <= 180:  west = right,    east = forward
+			{1, 2, 0},	//	 0 <= lon <   90:  west = backward, east = right
+			{1, 0, 2},	//	-90 <= lon <   0:  west = left,     east = backward
+			{1, 2, 0}	//	-180 < lon <  -90:  west = forward,  east = left
+	};
+	/**
+	 * The signs of the x, y and z components of the octant vertices, for octants 0 through 7.
+	 */
+	static final int[][] OctantSigns = {
+			{ 1, 1, 1}, { 1, 1,-1}, {-1, 1,-1}, {-1, 1, 1},
+			{ 1,-1, 1}, { 1,-1,-1}, {-1,-1,-1}, {-1,-1, 1}
+	};
+	/**
+	 * The fixed point representation of 1.0 used by {@link #locateProjectedUnitVector(double, double, double, int)}.
+	 */
+	private static final long FixedPointOne = 1L << 62;
+	/**
+	 * The distance from 1/2, in units of {@link #FixedPointOne}, within which {@link #locateProjectedUnitVector} defers
+	 * to the planes of {@link #locateUnitVector}.  The errors of the projection and of the planes are each within a few
+	 * thousand units.
+	 */
+	private static final long TieMargin = 1L << 16;
+	/**
+	 * Constructs a tessellation to the given depth, without a bound on the number of materialized nodes.
 	 * @param depth  The depth of the subtriangle hierarchy, where a depth of 0 is just the root node by itself.
 	 *               This is the number of layers under the root, not including the root.  This is also the
 	 *               maximum allowed length of {@link Subtriangle#address}.
 	 */
 	public Tessellation(int depth) {
+		this(depth, Integer.MAX_VALUE);
+	}
+	/**
+	 * Constructs a tessellation to the given depth.
+	 * @param depth  The depth of the subtriangle hierarchy, where a depth of 0 is just the root node by itself.
+	 *               This is the number of layers under the root, not including the root.  This is also the
+	 *               maximum allowed length of {@link Subtriangle#address}.
+	 * @param maxNodes The maximum number of materialized nodes, not including the root.  This must be large enough to
+	 *                 hold the octants and one path of subdivisions to the given depth, i.e. 8 + 4 * (depth - 1).
+	 */
+	public Tessellation(int depth, int maxNodes) {
+		if(depth > 0 && maxNodes < 8 + 4 * (depth - 1))
+			throw new IllegalArgumentException("The node budget must be at least 8 + 4 * (depth - 1).");
 		this.depth = depth;
+		this.maxNodes = maxNodes;
 		this.root = new Subtriangle();
+		this.root.address = new byte[0];
 
 		if(this.depth > 0) {
 			this.root.children = new Subtriangle[8];
 
-			Point left  = new Point(-1f, 0f, 0f);
-			Point right = new Point( 1f, 0f, 0f);
-
-			Point down = new Point(0f,-1f,0f);
-			Point up   = new Point(0f, 1f,0f);
-
-			Point backward = new Point(0f, 0f, -1f);
-			Point forward  = new Point(0f, 0f,  1f);
-
 			for(int i=0; i<8; i++) {
 				Subtriangle sub = new Subtriangle();
 				sub.parent = this.root;
+				sub.address = new byte[] { (byte)i };
+				sub.vertices = octantVertices(i);
+				sub.updatePlanes();
 				this.root.children[i] = sub;
+			}
+			this.nodeCount = 8;
+		}
+	}
+	/**
+	 * Gets the depth of the subtriangle hierarchy.
+	 * @return The number of layers under the root, not including the root.
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+	/**
+	 * Gets the root node representing the entire sphere.
+	 * @return The root node.
+	 */
+	public Subtriangle getRoot() {
+		return this.root;
+	}
+	/**
+	 * Gets the maximum number of materialized nodes.
+	 * @return The node budget, not including the root.
+	 */
+	public int getMaxNodes() {
+		return this.maxNodes;
+	}
+	/**
+	 * Gets the number of materialized nodes.
+	 * @return The number of nodes currently in the hierarchy, not including the root.
+	 */
+	public synchronized int getNodeCount() {
+		return this.nodeCount;
+	}
+	/**
+	 * Finds the subtriangle containing a coordinate at the depth of this tessellation, subdividing the hierarchy where
+	 * necessary.  See {@link #find(Point)}.
+	 * @param p The coordinate.
+	 * @return The subtriangle containing the coordinate, or null if the coordinate is null or empty, or if the depth of
+	 * this tessellation is 0.
+	 */
+	public Subtriangle find(LatLon p) {
+		if(p == null || p.isEmpty())
+			return null;
+		return this.find(p.toUnitVector());
+	}
+	/**
+	 * Finds the subtriangle containing a point at the depth of this tessellation, subdividing the hierarchy where necessary.
+	 * At each layer the child is chosen with {@link Subtriangle#childContaining(Point)}.
+	 *
+	 * If the node budget is exceeded, the least recently visited subdivisions are discarded.  The returned subtriangle
+	 * remains valid, but it may later be detached from the hierarchy and replaced by a new instance.
+	 *
+	 * The vertices and planes of the nodes are single precision, so a point lying within about 1e-7 of an edge may be
+	 * assigned to a different subtriangle than {@link #locateUnitVector(double, double, double, int)} would assign.
+	 *
+	 * @param uvec The point, as a unit vector.  See {@link LatLon#toUnitVector()}.
+	 * @return The subtriangle containing the point, or null if the depth of this tessellation is 0.
+	 */
+	public synchronized Subtriangle find(Point uvec) {
+		if(this.depth == 0 || uvec == null || uvec.isEmpty())
+			return null;
 
-				sub.vertices = new Point[3];
-
-				if(i<4)
-					sub.vertices[0] = up;
-				else
-					sub.vertices[0] = down;
-
-				int iMod4 = i%4;
-
-				if (iMod4 == 0) {
-					sub.vertices[1] = backward;
-					sub.vertices[2] = right;
-				} else if (iMod4 == 1) {
-					sub.vertices[1] = left;
-					sub.vertices[2] = backward;
-				} else if (iMod4 == 2) {
-					sub.vertices[1] = forward;
-					sub.vertices[2] = left;
-				} else if (iMod4 == 3) {
-					sub.vertices[1] = right;
-					sub.vertices[2] = forward;
-				}
+		Subtriangle node = this.root.children[octant(uvec.x, uvec.y, uvec.z)];
+		for(int i=1; i<this.depth; i++) {
+			if(node.children == null) {
+				node.subdivide();
+				this.nodeCount += 4;
+			}
+			node = node.childContaining(uvec);
+		}
 
-				sub.updatePlanes();
+		//	Visit the path from the bottom up, so that every node is visited after its descendants.
+		for(Subtriangle sub = node.parent; sub != this.root; sub = sub.parent)
+			this.subdivided.put(sub, sub);
+
+		//	Discard the least recently visited subdivisions.  Their children have no children of their own.
+		if(this.nodeCount > this.maxNodes) {
+			Iterator<Subtriangle> it = this.subdivided.keySet().iterator();
+			while(this.nodeCount > this.maxNodes && it.hasNext()) {
+				Subtriangle sub = it.next();
+				it.remove();
+				sub.children = null;
+				this.nodeCount -= 4;
+			}
+		}
+		return node;
+	}
+	/**
+	 * Gets the three vertices of an octant.  Each vertex is one of the six unit vectors along the coordinate axes.
+	 * @param octant The octant, in the range [0,8).  See {@link Subtriangle#address}.
+	 * @return The vertices of the octant, in the order described by {@link Subtriangle#vertices}.
+	 */
+	public static Point[] octantVertices(int octant) {
+		if(octant < 0 || octant > 7)
+			throw new IllegalArgumentException("The octant must be in the range [0,8).");
+		int[] axes = OctantAxes[octant & 3];
+		int[] signs = OctantSigns[octant];
+		Point[] output = new Point[3];
+		for(int i=0; i<3; i++) {
+			float[] xyz = new float[3];
+			xyz[axes[i]] = signs[axes[i]];
+			output[i] = new Point(xyz[0], xyz[1], xyz[2]);
+		}
+		return output;
+	}
+	/**
+	 * Determines the octant containing a vector, as described by {@link Subtriangle#address}.  Points lying exactly on
+	 * the boundary between two octants are assigned by the signs of the vector components, so a point on the equator
+	 * belongs to a northern octant.
+	 * @param x The x-ordinate of the vector.
+	 * @param y The y-ordinate of the vector.
+	 * @param z The z-ordinate of the vector.
+	 * @return The octant, in the range [0,8).
+	 */
+	public static int octant(double x, double y, double z) {
+		int output;
+		if(x >= 0.0)
+			output = z < 0.0 ? 1 : 0;
+		else
+			output = z > 0.0 ? 3 : 2;
+		if(y < 0.0)
+			output += 4;
+		return output;
+	}
+	/**
+	 * Finds the subtriangle containing a coordinate.  See {@link #locateUnitVector(double, double, double, int)}.
+	 * @param p The coordinate.
+	 * @param depth The length of the address to compute, in the range [0,{@link #MaxDepth}].
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if the
+	 * coordinate is null or empty.
+	 */
+	public static long locate(LatLon p, int depth) {
+		if(p == null)
+			return 0L;
+		return locate(p.lat, p.lon, depth);
+	}
+	/**
+	 * Finds the subtriangle containing a coordinate.  See {@link #locateUnitVector(double, double, double, int)}.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param depth The length of the address to compute, in the range [0,{@link #MaxDepth}].
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if the
+	 * coordinate is empty.
+	 */
+	public static long locate(float lat, float lon, int depth) {
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		return locateUnitVector(cLat * Math.sin(rlon), Math.sin(rlat), -cLat * Math.cos(rlon), depth);
+	}
+	/**
+	 * Finds the subtriangle containing a point on the unit sphere, without materializing any part of the hierarchy.
+	 *
+	 * The search starts at the octant and descends one layer at a time.  At each layer the point is tested against the
+	 * three planes of the central child (see {@link Subtriangle#planes}).  If the point lies on the negative side of a
+	 * plane then it belongs to the child in the corner beyond that plane, otherwise it belongs to the central child.
+	 * This method does not allocate memory.
+	 *
+	 * @param x The x-ordinate of the unit vector.  See {@link LatLon#toUnitVector()}.
+	 * @param y The y-ordinate of the unit vector.
+	 * @param z The z-ordinate of the unit vector.
+	 * @param depth The length of the address to compute, in the range [0,{@link #MaxDepth}].
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if any
+	 * ordinate is NaN, or if the depth is 0.
+	 */
+	public static long locateUnitVector(double x, double y, double z, int depth) {
+		if(depth < 0 || depth > MaxDepth)
+			throw new IllegalArgumentException("The depth must be in the range [0," + MaxDepth + "].");
+		if(depth == 0 || Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z))
+			return 0L;
+
+		int octant = octant(x, y, z);
+		long output = ((long)depth << 59) | ((long)octant << 56);
+
+		//	Reflect the point into the positive octant, where vertex 0 is (1,0,0), vertex 1 is (0,1,0) and vertex 2 is
+		//	(0,0,1).  Reflections preserve the side of every plane through the origin.
+		double px = Math.abs(y);
+		double py = (octant & 1) == 0 ? Math.abs(x) : Math.abs(z);
+		double pz = (octant & 1) == 0 ? Math.abs(z) : Math.abs(x);
+
+		//	The vertices are kept on the face of the octahedron, where the midpoint of an edge is the average of its ends.
+		double v0x = 1.0, v0y = 0.0, v0z = 0.0;
+		double v1x = 0.0, v1y = 1.0, v1z = 0.0;
+		double v2x = 0.0, v2y = 0.0, v2z = 1.0;
+
+		int shift = 54;
+		for(int i=1; i<depth; i++) {
+			double m01x = 0.5*(v0x+v1x), m01y = 0.5*(v0y+v1y), m01z = 0.5*(v0z+v1z);
+			double m12x = 0.5*(v1x+v2x), m12y = 0.5*(v1y+v2y), m12z = 0.5*(v1z+v2z);
+			double m20x = 0.5*(v2x+v0x), m20y = 0.5*(v2y+v0y), m20z = 0.5*(v2z+v0z);
+
+			//	The central child has vertices (m12, m01, m20).  Each of its planes is oriented so that the opposite
+			//	vertex of the central child lies on the positive side.
+			long digit;
+			if(isOutside(m01x, m01y, m01z, m20x, m20y, m20z, m12x, m12y, m12z, px, py, pz)) {
+				digit = 1;
+				v1x = m01x; v1y = m01y; v1z = m01z;
+				v2x = m20x; v2y = m20y; v2z = m20z;
+			} else if(isOutside(m12x, m12y, m12z, m01x, m01y, m01z, m20x, m20y, m20z, px, py, pz)) {
+				digit = 2;
+				v0x = m01x; v0y = m01y; v0z = m01z;
+				v2x = m12x; v2y = m12y; v2z = m12z;
+			} else if(isOutside(m20x, m20y, m20z, m12x, m12y, m12z, m01x, m01y, m01z, px, py, pz)) {
+				digit = 3;
+				v0x = m20x; v0y = m20y; v0z = m20z;
+				v1x = m12x; v1y = m12y; v1z = m12z;
+			} else {
+				digit = 0;
+				v0x = m12x; v0y = m12y; v0z = m12z;
+				v1x = m01x; v1y = m01y; v1z = m01z;
+				v2x = m20x; v2y = m20y; v2z = m20z;
+			}
+			output |= digit << shift;
+			shift -= 2;
+		}
+		return output;
+	}
+	/**
+	 * Finds the subtriangle containing a coordinate.  See {@link #locateProjectedUnitVector(double, double, double, int)}.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @param depth The length of the address to compute, in the range [0,{@link #MaxDepth}].
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if the
+	 * coordinate is empty.
+	 */
+	public static long locateProjected(float lat, float lon, int depth) {
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		return locateProjectedUnitVector(cLat * Math.sin(rlon), Math.sin(rlat), -cLat * Math.cos(rlon), depth);
+	}
+	/**
+	 * Finds the subtriangle containing a point on the unit sphere.  This returns the same address as
+	 * {@link #locateUnitVector(double, double, double, int)}, but the cost of each layer is a few integer operations.
+	 *
+	 * The point is projected once onto the face of the octahedron (the plane |x| + |y| + |z| = 1), where its barycentric
+	 * coordinates (a,b,c) with respect to the octant vertices are simply the absolute values of its ordinates divided by
+	 * their sum.  On that face every plane of every subtriangle is a line of constant a, b or c, so the child containing
+	 * the point is decided by comparing each barycentric coordinate with 1/2:
+	 * {@literal
+	 * 		a > 1/2 --> child 1, with coordinates (2a-1, 2b,   2c  )
+	 * 		b > 1/2 --> child 2, with coordinates (2a,   2b-1, 2c  )
+	 * 		c > 1/2 --> child 3, with coordinates (2a,   2b,   2c-1)
+	 * 		otherwise   child 0, with coordinates (1-2a, 1-2c, 1-2b)
+	 * }
+	 * The coordinates are held as 62-bit fixed point integers that sum to a power of two, so the scaling is a shift
+	 * and the arithmetic is exact.  This method does not allocate memory.
+	 *
+	 * The projection rounds each coordinate, and the planes of {@link #locateUnitVector(double, double, double, int)}
+	 * round their own arithmetic, so on their own the two could disagree about a point lying within a rounding error
+	 * of an edge, such as (-45,90) on a lattice of round coordinates.  When a coordinate is within 2^-46 of 1/2, the
+	 * point is therefore passed to {@link #locateUnitVector(double, double, double, int)}, which decides every layer.
+	 * Other points are at least that far from every edge, which exceeds the rounding error of either method, so both
+	 * methods decide them exactly.
+	 *
+	 * @param x The x-ordinate of the unit vector.  See {@link LatLon#toUnitVector()}.
+	 * @param y The y-ordinate of the unit vector.
+	 * @param z The z-ordinate of the unit vector.
+	 * @param depth The length of the address to compute, in the range [0,{@link #MaxDepth}].
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if any
+	 * ordinate is NaN, or if the depth is 0.
+	 */
+	public static long locateProjectedUnitVector(double x, double y, double z, int depth) {
+		if(depth < 0 || depth > MaxDepth)
+			throw new IllegalArgumentException("The depth must be in the range [0," + MaxDepth + "].");
+		if(depth == 0 || Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z))
+			return 0L;
+
+		int octant = octant(x, y, z);
+		long output = ((long)depth << 59) | ((long)octant << 56);
+
+		double ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+		double scale = FixedPointOne / (ax + ay + az);
+
+		//	Barycentric coordinates with respect to vertices 0, 1 and 2 of the octant, rounded to nearest.  The third
+		//	coordinate is derived from the other two, so that the three always sum to exactly FixedPointOne.
+		long a = Math.round(ay * scale);
+		long b = Math.round(((octant & 1) == 0 ? ax : az) * scale);
+		long c = FixedPointOne - a - b;
+		if(c < 0L) {
+			b += c;
+			c = 0L;
+		}
+
+		long half = FixedPointOne;
+		int shift = 54;
+		for(int i=1; i<depth; i++) {
+			half >>= 1;
+			long above = half + TieMargin, below = half - TieMargin;
+			if(a > above) {
+				a -= half;
+				output |= 1L << shift;
+			} else if(b > above) {
+				b -= half;
+				output |= 2L << shift;
+			} else if(c > above) {
+				c -= half;
+				output |= 3L << shift;
+			} else if(a < below && b < below && c < below) {
+				long t = half - b;
+				a = half - a;
+				b = half - c;
+				c = t;
+			} else {
+				//	A coordinate is within the rounding error of 1/2, so the planes decide.
+				return locateUnitVector(x, y, z, depth);
 			}
+			shift -= 2;
 		}
+		return output;
+	}
+	/**
+	 * Finds the subtriangles that intersect a spherical cap, without materializing any part of the hierarchy.
+	 *
+	 * Subtrees are pruned as soon as the bounding cap of a subtriangle is disjoint from the search cap.  A subtriangle
+	 * that lies entirely within the search cap is returned at its own layer instead of being expanded, so the result
+	 * holds addresses of mixed lengths:  short ones for the interior, and addresses of the given depth along the boundary.
+	 *
+	 * @param cap The search cap.  Its radius is in degrees, see {@link Cap#domeRadius}.
+	 * @param depth The length of the addresses of the subtriangles that cross the boundary of the cap, in the range
+	 *              [1,{@link #MaxDepth}].
+	 * @return The 64-bit packed addresses of disjoint subtriangles whose union covers the cap, see
+	 * {@link Subtriangle#pack64(byte[])}.  The result is empty if the radius is negative or NaN.
+	 */
+	public static long[] cover(Cap cap, int depth) {
+		if(cap.position == null || cap.position.isEmpty())
+			throw new IllegalArgumentException("The position of the cap must not be empty.");
+		if(!(cap.domeRadius >= 0.0f))
+			return new long[0];
+		return CellCover.cover(new CellCover.CapRegion(cap), depth);
+	}
+	/**
+	 * Finds the subtriangles that intersect a rectangle in latitude and longitude, without materializing any part of
+	 * the hierarchy.  As in {@link SurfaceRect#contains(LatLon)}, the rectangle spans the international date line when
+	 * right is not greater than left.  A rectangle whose top or bottom reaches a pole includes the pole.
+	 *
+	 * As with {@link #cover(Cap, int)}, subtriangles that lie entirely within the rectangle are returned at their own
+	 * layer, so the result holds addresses of mixed lengths.
+	 *
+	 * @param rect The rectangle, with longitudes (left and right) and latitudes (bottom and top) in degrees.
+	 * @param depth The length of the addresses of the subtriangles that cross the boundary of the rectangle, in the range
+	 *              [1,{@link #MaxDepth}].
+	 * @return The 64-bit packed addresses of disjoint subtriangles whose union covers the rectangle, see
+	 * {@link Subtriangle#pack64(byte[])}.  The result is empty if the bottom lies above the top, or if any side is NaN.
+	 */
+	public static long[] cover(SurfaceRect rect, int depth) {
+		if(!(rect.bottom <= rect.top) || Float.isNaN(rect.left) || Float.isNaN(rect.right))
+			return new long[0];
+		return CellCover.cover(new CellCover.RectRegion(rect), depth);
+	}
+	/**
+	 * Finds the subtriangles that intersect a spherical cap, as a normalized union.  See {@link #cover(Cap, int)}.
+	 * @param cap The search cap.  Its radius is in degrees, see {@link Cap#domeRadius}.
+	 * @param depth The layer of the cells that cross the boundary of the cap, in the range [1,{@link #MaxDepth}].
+	 * @return The union of the cells, which covers the cap.
+	 */
+	public static CellUnion coverUnion(Cap cap, int depth) {
+		return CellUnion.fromPacked64(cover(cap, depth));
+	}
+	/**
+	 * Finds the subtriangles that intersect a rectangle in latitude and longitude, as a normalized union.  See
+	 * {@link #cover(SurfaceRect, int)}.
+	 * @param rect The rectangle, with longitudes (left and right) and latitudes (bottom and top) in degrees.
+	 * @param depth The layer of the cells that cross the boundary of the rectangle, in the range [1,{@link #MaxDepth}].
+	 * @return The union of the cells, which covers the rectangle.
+	 */
+	public static CellUnion coverUnion(SurfaceRect rect, int depth) {
+		return CellUnion.fromPacked64(cover(rect, depth));
+	}
+	/**
+	 * Determines whether the point p lies strictly on the opposite side of the plane through (0,0,0), a and b from the
+	 * point q.  This is the allocation-free equivalent of a negative {@link Plane#signedDistance(Point)} for a plane
+	 * computed by {@link Subtriangle#calcPlanes(Point[])}.
+	 */
+	private static boolean isOutside(
+			double ax, double ay, double az,
+			double bx, double by, double bz,
+			double qx, double qy, double qz,
+			double px, double py, double pz) {
+		//	The normal is computed as a x (b - a), which equals a x b.  The vertices lie on the face of the octahedron, so the
+		//	difference is exact and the cross product does not suffer cancellation when a and b are very close together.
+		double dx = bx - ax, dy = by - ay, dz = bz - az;
+		double nx = ay*dz - az*dy;
+		double ny = az*dx - ax*dz;
+		double nz = ax*dy - ay*dx;
+		double dq = nx*qx + ny*qy + nz*qz;
+		double dp = nx*px + ny*py + nz*pz;
+		return dq > 0.0 ? dp < 0.0 : dp > 0.0;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,299 @@
+package com.github.adaviding.numerics.sphere;
+
+import com.github.adaviding.numerics.D;
+
+/**
+ * A compact, fully materialized tessellation.  Instead of a hierarchy of {@link Subtriangle} nodes, each layer is stored
+ * as two contiguous arrays of single precision values.
+ *
+ * The subtriangles of a layer share their vertices and their planes.  At layer L each octant is a triangular grid with
+ * n = 2^(L-1) divisions along each edge (see {@link FaceGrid}), which has (n+1)(n+2)/2 vertices.  Every edge of every
+ * subtriangle lies on one of 3(n+1) planes, namely the planes where one of the barycentric coordinates (a,b,c) of the
+ * octant face is a multiple of 1/n.  A layer therefore stores
+ *
+ * 	(1) the unit vectors of the grid vertices of each octant (x,y,z), and
+ * 	(2) the coefficients (bx,by,bz) of the grid planes of each octant, which all intersect (0,0,0) so that a = 0.
+ *
+ * The vertices and planes of a subtriangle are found from its position within its layer (see {@link #position(long)}),
+ * by way of its grid coordinates.  A tessellation of depth 10 occupies about 17 MB.
+ */
+public class TessellationTable
+{
+	/**
+	 * The maximum depth of a table, which bounds its memory.  A table of depth 12 occupies about 270 MB, and each further
+	 * layer multiplies this by about 4, to about 4.3 GB at depth 14.  For deeper layers, use {@link Tessellation}.
+	 */
+	public static final int MaxDepth = 12;
+	/**
+	 * The depth of the table, which is also the length of the addresses it computes.
+	 */
+	private final int depth;
+	/**
+	 * The grid vertices of each layer, indexed by (layer - 1).  For each octant, the grid points (p,q,r) are stored in
+	 * order of p and then q, as 3 consecutive values x, y and z.
+	 */
+	private final float[][] vertices;
+	/**
+	 * The grid planes of each layer, indexed by (layer - 1).  For each octant and for each barycentric coordinate (a,b,c),
+	 * the planes where the coordinate equals 0/n, 1/n, ... n/n are stored as 3 consecutive values bx, by and bz.  The
+	 * signed distance is positive on the side where the coordinate is greater.
+	 */
+	private final float[][] planes;
+	/**
+	 * Constructs a table to the given depth.
+	 * @param depth The depth of the table, in the range [1,{@link #MaxDepth}].
+	 */
+	public TessellationTable(int depth) {
+		if(depth < 1 || depth > MaxDepth)
+			throw new IllegalArgumentException("The depth must be in the range [1," + MaxDepth + "].");
+		this.depth = depth;
+		this.vertices = new float[depth][];
+		this.planes = new float[depth][];
+
+		for(int level=1; level<=depth; level++) {
+			int n = 1 << (level - 1);
+			int count = (n + 1) * (n + 2) / 2;
+			float[] v = new float[8 * count * 3];
+			float[] pl = new float[8 * 3 * (n + 1) * 3];
+
+			for(int octant=0; octant<8; octant++) {
+				int[] axes = Tessellation.OctantAxes[octant & 3];
+				int[] signs = Tessellation.OctantSigns[octant];
+				double[] canonical = new double[3];
+				double[] xyz = new double[3];
+
+				int offset = octant * count * 3;
+				for(int p=0; p<=n; p++) {
+					for(int q=0; q<=n-p; q++) {
+						canonical[0] = p;
+						canonical[1] = q;
+						canonical[2] = n - p - q;
+						toOctant(canonical, axes, signs, xyz);
+						double norm = Math.sqrt(xyz[0]*xyz[0] + xyz[1]*xyz[1] + xyz[2]*xyz[2]);
+						v[offset++] = (float)(xyz[0] / norm);
+						v[offset++] = (float)(xyz[1] / norm);
+						v[offset++] = (float)(xyz[2] / norm);
+					}
+				}
+
+				//	The plane where a = t satisfies (1-t)|y| - t|x| - t|z| = 0 on the octant, and likewise for b and c.
+				offset = octant * 3 * (n + 1) * 3;
+				for(int f=0; f<3; f++) {
+					for(int t=0; t<=n; t++) {
+						for(int e=0; e<3; e++)
+							canonical[e] = e == f ? n - t : -t;
+						toOctant(canonical, axes, signs, xyz);
+						double norm = Math.sqrt(xyz[0]*xyz[0] + xyz[1]*xyz[1] + xyz[2]*xyz[2]);
+						pl[offset++] = (float)(xyz[0] / norm);
+						pl[offset++] = (float)(xyz[1] / norm);
+						pl[offset++] = (float)(xyz[2] / norm);
+					}
+				}
+			}
+			this.vertices[level - 1] = v;
+			this.planes[level - 1] = pl;
+		}
+	}
+	/**
+	 * Maps a vector from the coordinates of the positive octant, where the vertices are (1,0,0), (0,1,0) and (0,0,1),
+	 * to the coordinates of the sphere.
+	 */
+	private static void toOctant(double[] canonical, int[] axes, int[] signs, double[] output) {
+		for(int e=0; e<3; e++)
+			output[axes[e]] = signs[axes[e]] * canonical[e];
+	}
+	/**
+	 * Gets the depth of the table.
+	 * @return The depth of the table, which is also the length of the addresses it computes.
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+	/**
+	 * Computes the number of subtriangles in a layer.
+	 * @param level The layer, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @return The number of subtriangles, 8*4^(level-1).
+	 */
+	public static long count(int level) {
+		return 8L << (2 * (level - 1));
+	}
+	/**
+	 * Computes the position of a subtriangle within its layer.  The position is the octant followed by the 2-bit digits
+	 * of the address, read as a single integer in the range [0,{@link #count(int)}).
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.
+	 * @return The position of the subtriangle within its layer.
+	 */
+	public static long position(long packed) {
+		int level = (int)(packed >>> 59);
+		if(level < 1)
+			throw new IllegalArgumentException("The address must identify an octant or one of its subtriangles.");
+		return (packed >>> (58 - 2 * level)) & ((1L << (2 * level + 1)) - 1L);
+	}
+	/**
+	 * Computes the packed address of a subtriangle from its position within its layer.
+	 * @param level The layer, in the range [1,{@link Tessellation#MaxDepth}].
+	 * @param position The position within the layer, see {@link #position(long)}.
+	 * @return The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.
+	 */
+	public static long fromPosition(int level, long position) {
+		if(level < 1 || level > Tessellation.MaxDepth || position < 0L || position >= count(level))
+			throw new IllegalArgumentException("The position does not identify a subtriangle.");
+		return ((long)level << 59) | (position << (58 - 2 * level));
+	}
+	/**
+	 * Gets the vertices of a subtriangle.  This method does not allocate memory.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must not exceed the
+	 *               depth of the table.
+	 * @param grid Receives 4 values:  the grid coordinates of the subtriangle, see {@link FaceGrid#fromPacked(long, int[])}.
+	 * @param output Receives 9 values:  x, y and z of vertices 0, 1 and 2, in the order of {@link Subtriangle#vertices}.
+	 */
+	public void getVertices(long packed, int[] grid, float[] output) {
+		int level = this.checkLevel(packed);
+		FaceGrid.fromPacked(packed, grid);
+		int octant = grid[0], i = grid[1], j = grid[2], k = grid[3];
+		int n = 1 << (level - 1);
+		float[] v = this.vertices[level - 1];
+		int base = octant * (n + 1) * (n + 2) / 2;
+		if(FaceGrid.isUpright(level, i, j, k)) {
+			copyVertex(v, base, n, i + 1, j, output, 0);
+			copyVertex(v, base, n, i, j + 1, output, 3);
+			copyVertex(v, base, n, i, j, output, 6);
+		} else {
+			copyVertex(v, base, n, i, j + 1, output, 0);
+			copyVertex(v, base, n, i + 1, j + 1, output, 3);
+			copyVertex(v, base, n, i + 1, j, output, 6);
+		}
+	}
+	private static void copyVertex(float[] v, int base, int n, int p, int q, float[] output, int offset) {
+		int index = 3 * (base + p * (n + 1) - p * (p - 1) / 2 + q);
+		output[offset] = v[index];
+		output[offset + 1] = v[index + 1];
+		output[offset + 2] = v[index + 2];
+	}
+	/**
+	 * Gets the planes of a subtriangle, oriented so that the signed distance is positive inside the subtriangle.  This
+	 * method does not allocate memory.
+	 * @param packed The 64-bit packed address, see {@link Subtriangle#pack64(byte[])}.  The length must not exceed the
+	 *               depth of the table.
+	 * @param grid Receives 4 values:  the grid coordinates of the subtriangle, see {@link FaceGrid#fromPacked(long, int[])}.
+	 * @param output Receives 9 values:  bx, by and bz of planes 0, 1 and 2, in the order of {@link Subtriangle#planes}.
+	 */
+	public void getPlanes(long packed, int[] grid, float[] output) {
+		int level = this.checkLevel(packed);
+		FaceGrid.fromPacked(packed, grid);
+		int octant = grid[0], i = grid[1], j = grid[2], k = grid[3];
+		int n = 1 << (level - 1);
+		float[] pl = this.planes[level - 1];
+		int base = octant * 3 * (n + 1);
+		if(FaceGrid.isUpright(level, i, j, k)) {
+			copyPlane(pl, base + 2 * (n + 1) + k, 1f, output, 0);
+			copyPlane(pl, base + i, 1f, output, 3);
+			copyPlane(pl, base + (n + 1) + j, 1f, output, 6);
+		} else {
+			copyPlane(pl, base + (n + 1) + j + 1, -1f, output, 0);
+			copyPlane(pl, base + i + 1, -1f, output, 3);
+			copyPlane(pl, base + 2 * (n + 1) + k + 1, -1f, output, 6);
+		}
+	}
+	private static void copyPlane(float[] pl, int plane, float sign, float[] output, int offset) {
+		output[offset] = sign * pl[3 * plane];
+		output[offset + 1] = sign * pl[3 * plane + 1];
+		output[offset + 2] = sign * pl[3 * plane + 2];
+	}
+	private int checkLevel(long packed) {
+		int level = (int)(packed >>> 59);
+		if(level < 1 || level > this.depth)
+			throw new IllegalArgumentException("The address length must be in the range [1," + this.depth + "].");
+		return level;
+	}
+	/**
+	 * Finds the subtriangle containing a coordinate at the depth of the table.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if the
+	 * coordinate is empty.
+	 */
+	public long locate(float lat, float lon) {
+		double rlon = D.RadiansPerDegree * lon;
+		double rlat = D.RadiansPerDegree * lat;
+		double cLat = Math.cos(rlat);
+		return this.locateUnitVector(cLat * Math.sin(rlon), Math.sin(rlat), -cLat * Math.cos(rlon));
+	}
+	/**
+	 * Finds the subtriangle containing a point on the unit sphere at the depth of the table.  At each layer the point is
+	 * tested against the three planes of the central child, which are read from the plane array of the next layer.  This
+	 * method does not allocate memory.
+	 *
+	 * Since the planes are stored with single precision, a point lying within about 1e-7 of an edge may be assigned to a
+	 * different subtriangle than {@link Tessellation#locateUnitVector(double, double, double, int)} would assign.
+	 *
+	 * @param x The x-ordinate of the unit vector.  See {@link LatLon#toUnitVector()}.
+	 * @param y The y-ordinate of the unit vector.
+	 * @param z The z-ordinate of the unit vector.
+	 * @return The 64-bit packed address of the subtriangle, see {@link Subtriangle#pack64(byte[])}.  Returns 0 if any
+	 * ordinate is NaN.
+	 */
+	public long locateUnitVector(double x, double y, double z) {
+		if(Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z))
+			return 0L;
+
+		int octant = Tessellation.octant(x, y, z);
+		long output = ((long)this.depth << 59) | ((long)octant << 56);
+
+		int i = 0, j = 0, k = 0;
+		boolean upright = true;
+		int shift = 54;
+		for(int level=2; level<=this.depth; level++) {
+			int n = 1 << (level - 1);
+			float[] pl = this.planes[level - 1];
+			int base = octant * 3 * (n + 1);
+
+			//	The central child is bounded by the planes a = (2i+1)/n, b = (2j+1)/n and c = (2k+1)/n.
+			int digit;
+			if(upright) {
+				if(signedDistance(pl, base + 2*i + 1, x, y, z) > 0.0)
+					digit = 1;
+				else if(signedDistance(pl, base + (n + 1) + 2*j + 1, x, y, z) > 0.0)
+					digit = 2;
+				else if(signedDistance(pl, base + 2 * (n + 1) + 2*k + 1, x, y, z) > 0.0)
+					digit = 3;
+				else
+					digit = 0;
+				i = 2*i + (digit == 1 ? 1 : 0);
+				j = 2*j + (digit == 2 ? 1 : 0);
+				k = 2*k + (digit == 3 ? 1 : 0);
+			} else {
+				if(signedDistance(pl, base + 2*i + 1, x, y, z) < 0.0)
+					digit = 1;
+				else if(signedDistance(pl, base + 2 * (n + 1) + 2*k + 1, x, y, z) < 0.0)
+					digit = 2;
+				else if(signedDistance(pl, base + (n + 1) + 2*j + 1, x, y, z) < 0.0)
+					digit = 3;
+				else
+					digit = 0;
+				i = 2*i + (digit == 1 ? 0 : 1);
+				j = 2*j + (digit == 3 ? 0 : 1);
+				k = 2*k + (digit == 2 ? 0 : 1);
+			}
+			if(digit == 0)
+				upright = !upright;
+			output |= (long)digit << shift;
+			shift -= 2;
+		}
+		return output;
+	}
+	private static double signedDistance(float[] pl, int plane, double x, double y, double z) {
+		int index = 3 * plane;
+		return pl[index] * x + pl[index + 1] * y + pl[index + 2] * z;
+	}
+	/**
+	 * Computes the memory occupied by the arrays of the table.
+	 * @return The number of bytes occupied by the vertex and plane arrays.
+	 */
+	public long sizeInBytes() {
+		long output = 0L;
+		for(int l=0; l<this.depth; l++)
+			output += 4L * (this.vertices[l].length + this.planes[l].length);
+		return output;
+	}
+}
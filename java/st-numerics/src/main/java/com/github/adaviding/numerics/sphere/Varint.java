@@ -0,0 +1,52 @@
+package com.github.adaviding.numerics.sphere;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes unsigned variable length integers.  Each byte holds 7 bits of the value, least significant first,
+ * and its high bit is set when more bytes follow.  A value of n significant bits takes ceil(n/7) bytes, at most 10.
+ */
+final class Varint
+{
+	/**
+	 * The greatest number of bytes in the encoding of a long.
+	 */
+	static final int MaxLength = 10;
+
+	private Varint() {}
+	/**
+	 * Gets the number of bytes in the encoding of a value.
+	 * @param value The value, treated as unsigned.
+	 * @return The number of bytes, in the range [1,{@link #MaxLength}].
+	 */
+	static int length(long value) {
+		return (63 - Long.numberOfLeadingZeros(value | 1L)) / 7 + 1;
+	}
+	/**
+	 * Writes a value at the position of a buffer, and advances the position.
+	 * @param buffer The buffer.
+	 * @param value The value, treated as unsigned.
+	 */
+	static void write(ByteBuffer buffer, long value) {
+		while((value & ~0x7FL) != 0L) {
+			buffer.put((byte)(value | 0x80L));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+	/**
+	 * Reads a value at the position of a buffer, and advances the position.
+	 * @param buffer The buffer.
+	 * @return The value, treated as unsigned.
+	 */
+	static long read(ByteBuffer buffer) {
+		long output = 0L;
+		for(int shift=0; shift<64; shift+=7) {
+			byte b = buffer.get();
+			output |= (long)(b & 0x7F) << shift;
+			if(b >= 0)
+				return output;
+		}
+		throw new IllegalArgumentException("A variable length integer is longer than " + MaxLength + " bytes.");
+	}
+}
@@ -0,0 +1,89 @@
+package com.github.adaviding.numerics;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link F#tryParse(CharSequence, int, int)} and {@link F#tryParse(ByteBuffer, int, int)} round exactly as
+ * {@link Float#parseFloat(String)} does.
+ */
+public class FTest
+{
+	@Test
+	public void coordinates() {
+		check("37.774929499999998");
+		check("-122.41941550000001");
+		check("-45.0");
+		check("0.1");
+		check("  +12.5e-1 ");
+		check("1e22");
+		check("123456789012345678901234567890");
+		check("0.000000000000000000000000000000000000000000001");
+	}
+	@Test
+	public void shortestDoubles() {
+		//	Double.toString gives the shortest digits that round trip, which are often 16 or 17 significant digits.
+		Random random = new Random(7);
+		for(int i=0; i<200000; i++) {
+			check(Double.toString(180.0 * random.nextDouble() - 90.0));
+			check(Double.toString(360.0 * random.nextDouble() - 180.0));
+			check(Double.toString(Math.scalb(random.nextDouble(), random.nextInt(200) - 100)));
+		}
+	}
+	@Test
+	public void longDigits() {
+		Random random = new Random(8);
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<200000; i++) {
+			text.setLength(0);
+			if(random.nextBoolean())
+				text.append('-');
+			int n = 1 + random.nextInt(25), point = random.nextInt(n + 1);
+			for(int k=0; k<n; k++) {
+				if(k == point)
+					text.append('.');
+				text.append((char)('0' + random.nextInt(10)));
+			}
+			if(random.nextInt(4) == 0)
+				text.append('e').append(random.nextInt(61) - 30);
+			check(text.toString());
+		}
+	}
+	@Test
+	public void nearHalfway() {
+		//	Values halfway between two floats, and values one unit of the 20th or 25th digit away from halfway.
+		Random random = new Random(9);
+		for(int i=0; i<20000; i++) {
+			float f = Float.intBitsToFloat(0x00800000 + random.nextInt(0x7E800000));
+			BigDecimal half = new BigDecimal(f).add(new BigDecimal(Math.nextUp(f))).divide(BigDecimal.valueOf(2));
+			check(half.toString());
+			for(int digits : new int[] { 20, 25 }) {
+				BigDecimal unit = BigDecimal.ONE.scaleByPowerOfTen(half.precision() - half.scale() - digits);
+				check(half.add(unit).toString());
+				check(half.subtract(unit).toString());
+			}
+		}
+	}
+	@Test
+	public void malformed() {
+		for(String s : new String[] { "", " ", "-", ".", "e5", "1e", "1.2.3", "1,5", "--1", "0x10", "1.5f", "NaN" })
+			assertTrue(s, Float.isNaN(F.tryParse(s, 0, s.length())));
+	}
+
+	/**
+	 * Checks both overloads against {@link Float#parseFloat(String)}, bit for bit.
+	 */
+	private static void check(String s) {
+		int expected = Float.floatToRawIntBits(Float.parseFloat(s));
+		assertEquals(s, expected, Float.floatToRawIntBits(F.tryParse(s, 0, s.length())));
+		ByteBuffer b = ByteBuffer.wrap(("x" + s + "y").getBytes(StandardCharsets.ISO_8859_1));
+		assertEquals(s, expected, Float.floatToRawIntBits(F.tryParse(b, 1, s.length() + 1)));
+	}
+}
@@ -0,0 +1,65 @@
+package com.github.adaviding.numerics.sphere;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link DelimitedPointLoader#read(Path)} on small files, which are parsed as one segment.
+ */
+public class DelimitedPointLoaderTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void emptyFile() throws IOException {
+		assertEquals(0, read("", false).size());
+		assertEquals(0, read("", true).size());
+	}
+	@Test
+	public void headerOnly() throws IOException {
+		assertEquals(0, read("lat,lon\n", true).size());
+		assertEquals(0, read("lat,lon", true).size());
+	}
+	@Test
+	public void crlfLineEndings() throws IOException {
+		DelimitedPointLoader.Rows rows = read("lat,lon\r\n1.5,2.5\r\n-3,4\r\n", true);
+		assertRows(rows, new float[] { 1.5f, -3f }, new float[] { 2.5f, 4f }, new long[] { 9, 18 });
+	}
+	@Test
+	public void quotedFields() throws IOException {
+		DelimitedPointLoader.Rows rows = read("\"1.5\",\"2.5\",\"a\"\n-3,\"4\",b\n", false);
+		assertRows(rows, new float[] { 1.5f, -3f }, new float[] { 2.5f, 4f }, new long[] { 0, 16 });
+	}
+	@Test
+	public void blankLastLine() throws IOException {
+		assertRows(read("1,2\n3,4\n\n", false), new float[] { 1f, 3f }, new float[] { 2f, 4f }, new long[] { 0, 4 });
+		assertRows(read("1,2\r\n3,4\r\n\r\n", false), new float[] { 1f, 3f }, new float[] { 2f, 4f }, new long[] { 0, 5 });
+		assertRows(read("1,2\n3,4", false), new float[] { 1f, 3f }, new float[] { 2f, 4f }, new long[] { 0, 4 });
+	}
+	@Test
+	public void malformedAndMissingFields() throws IOException {
+		DelimitedPointLoader.Rows rows = read("x,2\n3\n", false);
+		assertRows(rows, new float[] { Float.NaN, 3f }, new float[] { 2f, Float.NaN }, new long[] { 0, 4 });
+	}
+
+	private DelimitedPointLoader.Rows read(String text, boolean header) throws IOException {
+		Path path = this.folder.newFile().toPath();
+		Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+		return new DelimitedPointLoader(',', 0, 1, header).read(path);
+	}
+	private static void assertRows(DelimitedPointLoader.Rows rows, float[] lat, float[] lon, long[] offsets) {
+		assertArrayEquals(lat, rows.lat, 0f);
+		assertArrayEquals(lon, rows.lon, 0f);
+		assertArrayEquals(offsets, rows.offsets);
+	}
+}
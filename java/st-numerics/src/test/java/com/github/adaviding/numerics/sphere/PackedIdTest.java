@@ -0,0 +1,182 @@
+package com.github.adaviding.numerics.sphere;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link PackedId} and the packing methods of {@link Subtriangle} against the unpacked addresses.  Every address
+ * up to {@link #ExhaustiveLength} is checked, and longer addresses are checked at random.
+ */
+public class PackedIdTest
+{
+	/**
+	 * The greatest length of the addresses that are all checked, which is 8 * 4^8 addresses of the greatest length.
+	 */
+	private static final int ExhaustiveLength = 9;
+
+	@Test
+	public void everyShortAddress() {
+		byte[] address = new byte[ExhaustiveLength];
+		for(int length=1; length<=ExhaustiveLength; length++) {
+			Arrays.fill(address, (byte)0);
+			do {
+				check(Arrays.copyOf(address, length));
+			} while(increment(address, length));
+		}
+	}
+	@Test
+	public void randomLongAddresses() {
+		Random random = new Random(12);
+		for(int i=0; i<200000; i++) {
+			byte[] address = new byte[1 + random.nextInt(PackedId.MaxLevel64)];
+			address[0] = (byte)random.nextInt(8);
+			for(int k=1; k<address.length; k++)
+				address[k] = (byte)random.nextInt(4);
+			check(address);
+		}
+	}
+	@Test
+	public void root() {
+		assertEquals(0L, Subtriangle.pack64(new byte[0]));
+		assertEquals(0, Subtriangle.pack32(new byte[0]));
+		assertEquals(0, Subtriangle.unpack64(0L).length);
+		assertEquals(0, Subtriangle.unpack32(0).length);
+		assertEquals(0, PackedId.level(0L));
+		assertEquals(0, PackedId.level(0));
+		for(int octant=0; octant<8; octant++)
+			assertEquals(Subtriangle.pack64(new byte[] { (byte)octant }), PackedId.forOctant(octant));
+	}
+	/**
+	 * pack64 shifted the digits as an int, so address[1..12], which are at shifts 54 down to 32, wrapped into the low
+	 * bits.
+	 */
+	@Test
+	public void digitsAtShiftsOfAtLeast32() {
+		for(int k=1; k<=12; k++) {
+			for(int digit=1; digit<4; digit++) {
+				byte[] address = new byte[PackedId.MaxLevel64];
+				address[k] = (byte)digit;
+				long packed = Subtriangle.pack64(address);
+				assertEquals((long)PackedId.MaxLevel64 << 59 | (long)digit << (56 - 2*k), packed);
+				assertArrayEquals(address, Subtriangle.unpack64(packed));
+				assertEquals(digit, PackedId.digit(packed, k + 1));
+			}
+		}
+	}
+	/**
+	 * unpack64 and unpack32 used arithmetic shifts, so a set top bit was extended into the length and the digits.  The
+	 * top bit of a 64-bit address is set from length 16, and the top bit of each element is set by an octant of at
+	 * least 4 and a digit of at least 2.
+	 */
+	@Test
+	public void topBitSet() {
+		for(int length=16; length<=PackedId.MaxLevel64; length++) {
+			byte[] address = new byte[length];
+			Arrays.fill(address, (byte)3);
+			address[0] = 7;
+			long packed = Subtriangle.pack64(address);
+			assertEquals(true, packed < 0L);
+			assertArrayEquals(address, Subtriangle.unpack64(packed));
+			assertEquals(length, PackedId.level(packed));
+		}
+		for(int length=1; length<=PackedId.MaxLevel32; length++) {
+			byte[] address = new byte[length];
+			Arrays.fill(address, (byte)2);
+			address[0] = 4;
+			int packed = Subtriangle.pack32(address);
+			assertArrayEquals(address, Subtriangle.unpack32(packed));
+			assertEquals(length, PackedId.level(packed));
+			assertEquals(4, PackedId.octant(packed));
+		}
+	}
+
+	/**
+	 * Checks every operation on an address, in both layouts where the address fits.
+	 */
+	private static void check(byte[] address) {
+		int length = address.length;
+		long p64 = Subtriangle.pack64(address);
+		assertArrayEquals(address, Subtriangle.unpack64(p64));
+		assertEquals(length, PackedId.level(p64));
+		assertEquals(address[0], PackedId.octant(p64));
+		for(int k=0; k<length; k++)
+			assertEquals(address[k], PackedId.digit(p64, k + 1));
+		long id = CellId.fromPacked64(p64);
+		for(int level=2; level<=length; level++)
+			assertEquals(CellId.digit(id, level), PackedId.digit(p64, level));
+		assertEquals(CellId.octant(id), PackedId.digit(p64, 1));
+		assertEquals(Subtriangle.pack64(Arrays.copyOf(address, length - 1)), PackedId.parent(p64));
+		for(int level=0; level<=length; level++) {
+			long ancestor = Subtriangle.pack64(Arrays.copyOf(address, level));
+			assertEquals(ancestor, PackedId.truncate(p64, level));
+			assertEquals(level, PackedId.commonAncestorLevel(p64, ancestor));
+			assertEquals(level, PackedId.commonAncestorLevel(ancestor, p64));
+		}
+		if(length < PackedId.MaxLevel64) {
+			for(int digit=0; digit<4; digit++)
+				assertEquals(Subtriangle.pack64(append(address, digit)), PackedId.child(p64, digit));
+		}
+		for(int k=0; k<length; k++) {
+			long other = Subtriangle.pack64(differAt(address, k));
+			assertEquals(k, PackedId.commonAncestorLevel(p64, other));
+			assertEquals(k, PackedId.commonAncestorLevel(other, p64));
+		}
+
+		if(length > PackedId.MaxLevel32)
+			return;
+		int p32 = Subtriangle.pack32(address);
+		assertArrayEquals(address, Subtriangle.unpack32(p32));
+		assertEquals(length, PackedId.level(p32));
+		assertEquals(address[0], PackedId.octant(p32));
+		for(int k=0; k<length; k++)
+			assertEquals(address[k], PackedId.digit(p32, k + 1));
+		assertEquals(Subtriangle.pack32(Arrays.copyOf(address, length - 1)), PackedId.parent(p32));
+		for(int level=0; level<=length; level++) {
+			int ancestor = Subtriangle.pack32(Arrays.copyOf(address, level));
+			assertEquals(ancestor, PackedId.truncate(p32, level));
+			assertEquals(level, PackedId.commonAncestorLevel(p32, ancestor));
+			assertEquals(level, PackedId.commonAncestorLevel(ancestor, p32));
+		}
+		if(length < PackedId.MaxLevel32) {
+			for(int digit=0; digit<4; digit++)
+				assertEquals(Subtriangle.pack32(append(address, digit)), PackedId.child(p32, digit));
+		}
+		for(int k=0; k<length; k++) {
+			int other = Subtriangle.pack32(differAt(address, k));
+			assertEquals(k, PackedId.commonAncestorLevel(p32, other));
+			assertEquals(k, PackedId.commonAncestorLevel(other, p32));
+		}
+	}
+	/**
+	 * Advances the first elements of an address to the next address of that length, in the order of the packed
+	 * addresses.
+	 * @return False if the address was the last one, in which case it wraps around to the first.
+	 */
+	private static boolean increment(byte[] address, int length) {
+		for(int k=length-1; k>=0; k--) {
+			int radix = k == 0 ? 8 : 4;
+			if(++address[k] < radix)
+				return true;
+			address[k] = 0;
+		}
+		return false;
+	}
+	private static byte[] append(byte[] address, int digit) {
+		byte[] output = Arrays.copyOf(address, address.length + 1);
+		output[address.length] = (byte)digit;
+		return output;
+	}
+	/**
+	 * Changes one element of an address, so the common prefix of the two addresses has exactly k elements.
+	 */
+	private static byte[] differAt(byte[] address, int k) {
+		byte[] output = address.clone();
+		output[k] = (byte)((address[k] + 1) % (k == 0 ? 8 : 4));
+		return output;
+	}
+}
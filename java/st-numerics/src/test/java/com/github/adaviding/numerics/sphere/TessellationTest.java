@@ -0,0 +1,57 @@
+package com.github.adaviding.numerics.sphere;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link Tessellation#locateProjected(float, float, int)} returns the same addresses as
+ * {@link Tessellation#locate(float, float, int)}, in particular for points that lie on the edges of subtriangles.
+ */
+public class TessellationTest
+{
+	@Test
+	public void reportedLatticePoints() {
+		for(int depth=0; depth<=Tessellation.MaxDepth; depth++) {
+			assertEquals(Tessellation.locate(-45f, 90f, depth), Tessellation.locateProjected(-45f, 90f, depth));
+			assertEquals(Tessellation.locate(45f, 90f, depth), Tessellation.locateProjected(45f, 90f, depth));
+		}
+	}
+	@Test
+	public void lattice() {
+		//	Every point of a lattice of a quarter degree, which includes the poles, the equator and the octant boundaries.
+		for(int i=0; i<=720; i++) {
+			for(int j=0; j<1440; j++) {
+				float lat = -90f + 0.25f * i, lon = -180f + 0.25f * (j + 1);
+				assertEquals(lat + "," + lon,
+						Tessellation.locate(lat, lon, Tessellation.MaxDepth),
+						Tessellation.locateProjected(lat, lon, Tessellation.MaxDepth));
+			}
+		}
+	}
+	@Test
+	public void pointsOnEdges() {
+		//	Points whose barycentric coordinates on the face of an octant are multiples of 2^-d, which lie on the edges
+		//	of the subtriangles of layer d + 1 up to rounding, and some that are moved off the edge by a rounding error.
+		Random random = new Random(5);
+		for(int i=0; i<200000; i++) {
+			long denominator = 1L << (2 + random.nextInt(Tessellation.MaxDepth - 2));
+			long ia = (long)(random.nextDouble() * denominator);
+			long ib = (long)(random.nextDouble() * (denominator - ia));
+			double a = (double)ia / denominator, b = (double)ib / denominator, c = 1.0 - a - b;
+			if(random.nextBoolean())
+				a += (random.nextDouble() - 0.5) * 1e-15;
+			double norm = Math.sqrt(a*a + b*b + c*c);
+			double x = b / norm, y = a / norm, z = c / norm;
+			if(random.nextBoolean())
+				y = -y;
+			if(random.nextBoolean())
+				x = -x;
+			assertEquals(
+					Tessellation.locateUnitVector(x, y, z, Tessellation.MaxDepth),
+					Tessellation.locateProjectedUnitVector(x, y, z, Tessellation.MaxDepth));
+		}
+	}
+}
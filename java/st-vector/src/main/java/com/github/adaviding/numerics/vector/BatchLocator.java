@@ -0,0 +1,70 @@
+package com.github.adaviding.numerics.vector;
+
+import com.github.adaviding.numerics.sphere.Subtriangle;
+import com.github.adaviding.numerics.sphere.Tessellation;
+
+/**
+ * Locates batches of coordinates stored in primitive arrays.
+ *
+ * When the module jdk.incubator.vector is present (e.g. the JVM was started with --add-modules jdk.incubator.vector),
+ * the coordinates are processed in SIMD lanes:  the conversion to unit vectors, the octant tests, and the comparisons
+ * made at each layer by {@link Tessellation#locateProjectedUnitVector(double, double, double, int)}.  Otherwise each
+ * coordinate is located with {@link Tessellation#locateProjected(float, float, int)}.
+ *
+ * Both paths compute the same addresses, except that the vectorized sine and cosine may differ from {@link Math#sin(double)}
+ * and {@link Math#cos(double)} in the last bit.  A point lying within such a rounding error of an edge may therefore be
+ * assigned to a different one of the subtriangles that share the edge.
+ */
+public final class BatchLocator
+{
+	/**
+	 * True if the Vector API is available at runtime.
+	 */
+	private static final boolean Vectorized = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+	private BatchLocator() {}
+	/**
+	 * Determines whether batches are processed with the Vector API.
+	 * @return True if the module jdk.incubator.vector is available, false if the scalar fallback is used.
+	 */
+	public static boolean isVectorized() {
+		return Vectorized;
+	}
+	/**
+	 * Finds the subtriangles containing a batch of coordinates.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.  The length must equal the length of lat.
+	 * @param depth The length of the addresses to compute, in the range [0,{@link Tessellation#MaxDepth}].
+	 * @param outIds Receives the 64-bit packed addresses, see {@link Subtriangle#pack64(byte[])}.  The length must be at
+	 *               least the length of lat.  An empty coordinate yields 0.
+	 */
+	public static void locate(float[] lat, float[] lon, int depth, long[] outIds) {
+		if(lat.length != lon.length)
+			throw new IllegalArgumentException("The arrays of latitude and longitude must have equal length.");
+		locate(lat, lon, 0, lat.length, depth, outIds, 0);
+	}
+	/**
+	 * Finds the subtriangles containing a range of coordinates.
+	 * @param lat The latitudes in degrees.
+	 * @param lon The longitudes in degrees.
+	 * @param offset The index of the first coordinate.
+	 * @param length The number of coordinates.
+	 * @param depth The length of the addresses to compute, in the range [0,{@link Tessellation#MaxDepth}].
+	 * @param outIds Receives the 64-bit packed addresses, see {@link Subtriangle#pack64(byte[])}.  An empty coordinate
+	 *               yields 0.
+	 * @param outOffset The index in outIds where the address of the first coordinate is stored.
+	 */
+	public static void locate(float[] lat, float[] lon, int offset, int length, int depth, long[] outIds, int outOffset) {
+		if(depth < 0 || depth > Tessellation.MaxDepth)
+			throw new IllegalArgumentException("The depth must be in the range [0," + Tessellation.MaxDepth + "].");
+		if(offset < 0 || length < 0 || offset + length > lat.length || offset + length > lon.length
+				|| outOffset < 0 || outOffset + length > outIds.length)
+			throw new IndexOutOfBoundsException("The range exceeds the bounds of the arrays.");
+
+		if(Vectorized)
+			VectorKernel.locate(lat, lon, offset, length, depth, outIds, outOffset);
+		else
+			for(int i=0; i<length; i++)
+				outIds[outOffset + i] = Tessellation.locateProjected(lat[offset + i], lon[offset + i], depth);
+	}
+}
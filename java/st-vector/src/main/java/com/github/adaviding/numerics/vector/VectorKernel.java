@@ -0,0 +1,111 @@
+package com.github.adaviding.numerics.vector;
+
+import com.github.adaviding.numerics.D;
+import com.github.adaviding.numerics.sphere.Tessellation;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vectorized implementation of {@link BatchLocator}.  This class must only be loaded when the module
+ * jdk.incubator.vector is available.
+ *
+ * Each lane follows {@link Tessellation#locateProjectedUnitVector(double, double, double, int)}.  The branches of the scalar
+ * method become masks, so every lane executes the same instructions.
+ */
+final class VectorKernel
+{
+	private static final VectorSpecies<Double> DS = DoubleVector.SPECIES_PREFERRED;
+	/**
+	 * The species of the integer lanes.  Both species have 64-bit lanes, so they have the same number of lanes.
+	 */
+	private static final VectorSpecies<Long> LS = LongVector.SPECIES_PREFERRED;
+	/**
+	 * The fixed point representation of 1.0, as in {@link Tessellation#locateProjectedUnitVector(double, double, double, int)}.
+	 */
+	private static final long FixedPointOne = 1L << 62;
+
+	private VectorKernel() {}
+
+	static void locate(float[] lat, float[] lon, int offset, int length, int depth, long[] outIds, int outOffset) {
+		int lanes = DS.length();
+		double[] latLanes = new double[lanes];
+		double[] lonLanes = new double[lanes];
+
+		int i = 0;
+		if(depth > 0 && lanes == LS.length()) {
+			for(; i + lanes <= length; i += lanes) {
+				for(int l=0; l<lanes; l++) {
+					latLanes[l] = lat[offset + i + l];
+					lonLanes[l] = lon[offset + i + l];
+				}
+				locateLanes(latLanes, lonLanes, depth, outIds, outOffset + i);
+			}
+		}
+		for(; i<length; i++)
+			outIds[outOffset + i] = Tessellation.locateProjected(lat[offset + i], lon[offset + i], depth);
+	}
+
+	private static void locateLanes(double[] latLanes, double[] lonLanes, int depth, long[] outIds, int outOffset) {
+		//	Unit vectors, as in LatLon.toUnitVector().
+		DoubleVector rlat = DoubleVector.fromArray(DS, latLanes, 0).mul(D.RadiansPerDegree);
+		DoubleVector rlon = DoubleVector.fromArray(DS, lonLanes, 0).mul(D.RadiansPerDegree);
+		DoubleVector cLat = rlat.lanewise(VectorOperators.COS);
+		DoubleVector x = cLat.mul(rlon.lanewise(VectorOperators.SIN));
+		DoubleVector y = rlat.lanewise(VectorOperators.SIN);
+		DoubleVector z = cLat.mul(rlon.lanewise(VectorOperators.COS)).neg();
+
+		VectorMask<Double> empty = x.test(VectorOperators.IS_NAN).or(y.test(VectorOperators.IS_NAN)).or(z.test(VectorOperators.IS_NAN));
+
+		//	Octants, as in Tessellation.octant().
+		VectorMask<Double> xNeg = x.compare(VectorOperators.LT, 0.0);
+		VectorMask<Double> zNeg = z.compare(VectorOperators.LT, 0.0);
+		VectorMask<Double> zPos = z.compare(VectorOperators.GT, 0.0);
+		VectorMask<Double> yNeg = y.compare(VectorOperators.LT, 0.0);
+		VectorMask<Double> odd = xNeg.not().and(zNeg).or(xNeg.and(zPos));
+
+		LongVector octant = LongVector.zero(LS)
+				.add(1L, odd.cast(LS))
+				.add(2L, xNeg.cast(LS))
+				.add(4L, yNeg.cast(LS));
+
+		//	Fixed point barycentric coordinates.
+		DoubleVector ax = x.abs(), ay = y.abs(), az = z.abs();
+		DoubleVector scale = DoubleVector.broadcast(DS, (double)FixedPointOne).div(ax.add(ay).add(az));
+		LongVector a = (LongVector)ay.mul(scale).convert(VectorOperators.D2L, 0);
+		LongVector b = (LongVector)ax.blend(az, odd).mul(scale).convert(VectorOperators.D2L, 0);
+		LongVector c = LongVector.broadcast(LS, FixedPointOne).sub(a).sub(b);
+		VectorMask<Long> negative = c.compare(VectorOperators.LT, 0L);
+		b = b.add(c, negative);
+		c = c.blend(0L, negative);
+
+		LongVector id = octant.lanewise(VectorOperators.LSHL, 56).or((long)depth << 59);
+
+		//	The comparisons are expressed as lane masks of all ones or all zeros, i.e. (half - a) >> 63 is all ones where
+		//	a > half.  This keeps the loop within plain lanewise arithmetic.
+		long half = FixedPointOne;
+		int shift = 54;
+		for(int l=1; l<depth; l++) {
+			half >>= 1;
+			LongVector h = LongVector.broadcast(LS, half);
+			LongVector g1 = h.sub(a).lanewise(VectorOperators.ASHR, 63);
+			LongVector g2 = h.sub(b).lanewise(VectorOperators.ASHR, 63).and(g1.not());
+			LongVector g3 = h.sub(c).lanewise(VectorOperators.ASHR, 63).and(g1.or(g2).not());
+			LongVector g0 = g1.or(g2).or(g3).not();
+
+			LongVector a0 = h.sub(a);
+			LongVector b0 = h.sub(c);
+			LongVector c0 = h.sub(b);
+			a = a.sub(h.and(g1)).and(g0.not()).or(a0.and(g0));
+			b = b.sub(h.and(g2)).and(g0.not()).or(b0.and(g0));
+			c = c.sub(h.and(g3)).and(g0.not()).or(c0.and(g0));
+
+			id = id.or(g1.and(1L << shift)).or(g2.and(2L << shift)).or(g3.and(3L << shift));
+			shift -= 2;
+		}
+
+		id.blend(0L, empty.cast(LS)).intoArray(outIds, outOffset);
+	}
+}